@@ -6,13 +6,15 @@ import java.util.Date;
 import java.util.List;
 
 public class AppLogBuffer {
-    private static final int MAX_ENTRIES = 128;
+    private static final int DEFAULT_CAPACITY = 128;
     private static final AppLogBuffer INSTANCE = new AppLogBuffer();
     private static final DateFormat DF = DateFormat.getTimeInstance(DateFormat.MEDIUM);
 
-    private final String[] entries = new String[MAX_ENTRIES];
+    private String[] entries = new String[DEFAULT_CAPACITY];
     private int index = 0;
     private int count = 0;
+    private long sequence = 0;
+    private int generation = 0;
 
     public static AppLogBuffer getInstance() {
         return INSTANCE;
@@ -21,21 +23,62 @@ public class AppLogBuffer {
     public synchronized void log(String tag, String message) {
         String ts = DF.format(new Date());
         entries[index] = "[" + ts + "][" + tag + "] " + message;
-        index = (index + 1) % MAX_ENTRIES;
-        if (count < MAX_ENTRIES) count++;
+        index = (index + 1) % entries.length;
+        if (count < entries.length) count++;
+        sequence++;
     }
 
     public synchronized List<String> getLogs() {
         List<String> result = new ArrayList<>(count);
-        int start = count < MAX_ENTRIES ? 0 : index;
+        int start = count < entries.length ? 0 : index;
         for (int i = 0; i < count; i++) {
-            result.add(entries[(start + i) % MAX_ENTRIES]);
+            result.add(entries[(start + i) % entries.length]);
         }
         return result;
     }
 
+    /**
+     * Copies the entries logged after {@code since} that are still in the buffer.
+     *
+     * @param since Sequence number returned by a previous call, or 0 for all entries.
+     * @return Sequence number of the newest entry.
+     */
+    public synchronized long getLogsSince(long since, List<String> out) {
+        int start = count < entries.length ? 0 : index;
+        long firstSequence = sequence - count + 1;
+        for (int i = (int) Math.max(0, since + 1 - firstSequence); i < count; i++) {
+            out.add(entries[(start + i) % entries.length]);
+        }
+        return sequence;
+    }
+
+    /**
+     * Resizes the ring, keeping the newest entries that still fit.
+     */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity == entries.length || capacity <= 0) return;
+        List<String> kept = getLogs();
+        int keep = Math.min(kept.size(), capacity);
+        String[] resized = new String[capacity];
+        for (int i = 0; i < keep; i++) {
+            resized[i] = kept.get(kept.size() - keep + i);
+        }
+        entries = resized;
+        count = keep;
+        index = keep % capacity;
+    }
+
+    /**
+     * @return A number that changes whenever the buffer is cleared, so readers following it
+     * with {@link #getLogsSince} know to drop the lines they already have.
+     */
+    public synchronized int getGeneration() {
+        return generation;
+    }
+
     public synchronized void clear() {
         index = 0;
         count = 0;
+        generation++;
     }
 }
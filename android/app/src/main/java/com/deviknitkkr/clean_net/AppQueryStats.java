@@ -0,0 +1,66 @@
+package com.deviknitkkr.clean_net;
+
+import com.deviknitkkr.clean_net.net.SocketOwnerResolver;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Query counters per app UID, to find the apps and SDKs behind the DNS load. Every handled
+ * query counts, however it was answered; forwarded answers and their latency are counted
+ * separately. Queries whose owner is unknown are counted under
+ * {@link SocketOwnerResolver#UNKNOWN_UID}.
+ */
+public class AppQueryStats {
+    private final Map<Integer, Counters> apps = new ConcurrentHashMap<>();
+
+    public void onQuery(int uid) {
+        counters(uid).queries.incrementAndGet();
+    }
+
+    public void onBlocked(int uid) {
+        counters(uid).blocked.incrementAndGet();
+    }
+
+    /**
+     * @param latencyMs Time from forwarding the query to the upstream answer.
+     */
+    public void onForwardedAnswer(int uid, long latencyMs) {
+        Counters c = counters(uid);
+        c.forwarded.incrementAndGet();
+        c.latencyMs.addAndGet(latencyMs);
+    }
+
+    /**
+     * @return Per UID: queries, blocked queries, answered forwarded queries and their mean
+     * upstream latency in ms.
+     */
+    public Map<Integer, Map<String, Long>> snapshot() {
+        Map<Integer, Map<String, Long>> snapshot = new HashMap<>();
+        for (Map.Entry<Integer, Counters> entry : apps.entrySet()) {
+            Counters c = entry.getValue();
+            long forwarded = c.forwarded.get();
+            Map<String, Long> stats = new HashMap<>();
+            stats.put("queries", c.queries.get());
+            stats.put("blocked", c.blocked.get());
+            stats.put("forwarded", forwarded);
+            stats.put("avgLatencyMs", forwarded > 0 ? c.latencyMs.get() / forwarded : 0);
+            snapshot.put(entry.getKey(), stats);
+        }
+        return snapshot;
+    }
+
+    private Counters counters(int uid) {
+        Counters c = apps.get(uid);
+        return c != null ? c : apps.computeIfAbsent(uid, k -> new Counters());
+    }
+
+    private static class Counters {
+        final AtomicLong queries = new AtomicLong();
+        final AtomicLong blocked = new AtomicLong();
+        final AtomicLong forwarded = new AtomicLong();
+        final AtomicLong latencyMs = new AtomicLong();
+    }
+}
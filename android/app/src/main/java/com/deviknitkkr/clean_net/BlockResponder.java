@@ -0,0 +1,233 @@
+package com.deviknitkkr.clean_net;
+
+import com.deviknitkkr.clean_net.utils.DnsWire;
+
+import org.xbill.DNS.Name;
+import org.xbill.DNS.TextParseException;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Builds the DNS reply for blocked queries.
+ * <p>
+ * Every mode has its record sections precomputed, so a reply is the request header and
+ * question copied as-is, a few header bytes patched, and the template appended. The
+ * responder also counts how often a blocked name is asked again for the same type shortly
+ * afterwards, either verbatim or with a search-domain suffix, so the modes can be compared
+ * by retry traffic. Clients ask A and AAAA in parallel, so the other type isn't a retry.
+ */
+public class BlockResponder {
+    private static final int RETRY_WINDOW_MS = 10_000;
+    private static final int MAX_TRACKED_NAMES = 256;
+    private static final int RCODE_NOERROR = 0;
+    private static final int RCODE_NXDOMAIN = 3;
+    private static final int RCODE_REFUSED = 5;
+
+    public enum Mode {
+        NXDOMAIN,
+        NODATA,
+        NULL_IP,
+        REFUSED;
+
+        public static Mode parse(String value) {
+            if (value == null || value.isEmpty()) return NXDOMAIN;
+            try {
+                return valueOf(value.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                return NXDOMAIN;
+            }
+        }
+    }
+
+    private static final Map<Mode, long[]> modeStats = new EnumMap<>(Mode.class);
+
+    private final Mode mode;
+    private final int ttl;
+    private final byte[] soaAuthority;
+    private final byte[] nullIpv4Answer;
+    private final byte[] nullIpv6Answer;
+    // Keyed by name and QTYPE, as "name/type".
+    private final Map<String, Long> recentlyBlocked = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_TRACKED_NAMES;
+        }
+    };
+
+    /**
+     * @param mode Reply sent for blocked names.
+     * @param ttl  TTL in seconds of the synthesized records, which also bounds negative caching.
+     */
+    public BlockResponder(Mode mode, int ttl) {
+        this.mode = mode;
+        this.ttl = ttl;
+        this.soaAuthority = buildSoaRecord(ttl);
+        this.nullIpv4Answer = buildNullAnswer(DnsWire.TYPE_A, 4, ttl);
+        this.nullIpv6Answer = buildNullAnswer(DnsWire.TYPE_AAAA, 16, ttl);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getTtl() {
+        return ttl;
+    }
+
+    /**
+     * @param request Raw DNS request.
+     * @return The reply for the blocked request.
+     */
+    public byte[] build(byte[] request) {
+        int questionEnd = DnsWire.questionEnd(request, 0, request.length);
+        int qtype = questionEnd >= 0 ? DnsWire.qtype(request, questionEnd) : 0;
+        if (questionEnd < 0) questionEnd = request.length;
+
+        byte[] records;
+        int rcode;
+        int answers = 0;
+        int authorities = 0;
+        switch (mode) {
+            case NULL_IP:
+                if (qtype == DnsWire.TYPE_A) {
+                    records = nullIpv4Answer;
+                    answers = 1;
+                } else if (qtype == DnsWire.TYPE_AAAA) {
+                    records = nullIpv6Answer;
+                    answers = 1;
+                } else {
+                    records = soaAuthority;
+                    authorities = 1;
+                }
+                rcode = RCODE_NOERROR;
+                break;
+            case NODATA:
+                records = soaAuthority;
+                authorities = 1;
+                rcode = RCODE_NOERROR;
+                break;
+            case REFUSED:
+                records = new byte[0];
+                rcode = RCODE_REFUSED;
+                break;
+            default:
+                records = soaAuthority;
+                authorities = 1;
+                rcode = RCODE_NXDOMAIN;
+                break;
+        }
+
+        byte[] response = Arrays.copyOf(request, questionEnd + records.length);
+        response[2] = (byte) (0x80 | (request[2] & 0x79));
+        response[3] = (byte) (0x80 | rcode);
+        response[6] = 0;
+        response[7] = (byte) answers;
+        response[8] = 0;
+        response[9] = (byte) authorities;
+        response[10] = 0;
+        response[11] = 0;
+        System.arraycopy(records, 0, response, questionEnd, records.length);
+        return response;
+    }
+
+    /**
+     * Records a blocked query so later queries for it can be counted as retries.
+     */
+    public void onBlocked(String name, int qtype) {
+        synchronized (modeStats) {
+            modeStats.computeIfAbsent(mode, k -> new long[2])[0]++;
+        }
+        synchronized (recentlyBlocked) {
+            recentlyBlocked.put(name.toLowerCase(Locale.ROOT) + "/" + qtype, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Counts a query as retry traffic if it repeats, or extends with a search suffix, a query
+     * of the same type blocked within the retry window. Called for every query before it is handled.
+     */
+    public void onQuery(String name, int qtype) {
+        String candidate = name.toLowerCase(Locale.ROOT);
+        String type = "/" + qtype;
+        long now = System.currentTimeMillis();
+        synchronized (recentlyBlocked) {
+            if (recentlyBlocked.isEmpty()) return;
+            while (true) {
+                Long blockedAt = recentlyBlocked.get(candidate + type);
+                if (blockedAt != null && now - blockedAt < RETRY_WINDOW_MS) {
+                    synchronized (modeStats) {
+                        modeStats.computeIfAbsent(mode, k -> new long[2])[1]++;
+                    }
+                    return;
+                }
+                int dot = candidate.lastIndexOf('.');
+                if (dot <= 0) return;
+                candidate = candidate.substring(0, dot);
+            }
+        }
+    }
+
+    /**
+     * @return Per mode, the number of block replies sent and the retry queries that followed them.
+     */
+    public static Map<String, Map<String, Long>> getStatsSnapshot() {
+        Map<String, Map<String, Long>> snapshot = new HashMap<>();
+        synchronized (modeStats) {
+            for (Map.Entry<Mode, long[]> entry : modeStats.entrySet()) {
+                Map<String, Long> counters = new HashMap<>();
+                counters.put("responses", entry.getValue()[0]);
+                counters.put("retries", entry.getValue()[1]);
+                snapshot.put(entry.getKey().name(), counters);
+            }
+        }
+        return snapshot;
+    }
+
+    private static byte[] buildNullAnswer(int type, int addressLength, int ttl) {
+        ByteBuffer answer = ByteBuffer.allocate(12 + addressLength);
+        answer.putShort((short) 0xC00C);
+        answer.putShort((short) type);
+        answer.putShort((short) 1);
+        answer.putInt(ttl);
+        answer.putShort((short) addressLength);
+        return answer.array();
+    }
+
+    private static byte[] buildSoaRecord(int ttl) {
+        try {
+            Name origin = Name.fromString("blocked.example.com.");
+            Name mbox = Name.fromString("admin.example.com.");
+            byte[] mnameBytes = origin.toWire();
+            byte[] rnameBytes = mbox.toWire();
+
+            int rdataLen = mnameBytes.length + rnameBytes.length + 20;
+            ByteBuffer rdata = ByteBuffer.allocate(rdataLen);
+            rdata.put(mnameBytes);
+            rdata.put(rnameBytes);
+            rdata.putInt(1);
+            rdata.putInt(3600);
+            rdata.putInt(600);
+            rdata.putInt(86400);
+            rdata.putInt(ttl);
+
+            int soaLen = mnameBytes.length + 10 + rdataLen;
+            ByteBuffer soa = ByteBuffer.allocate(soaLen);
+            soa.put(mnameBytes);
+            soa.putShort((short) 6);
+            soa.putShort((short) 1);
+            soa.putInt(ttl);
+            soa.putShort((short) rdataLen);
+            soa.put(rdata.array(), 0, rdataLen);
+
+            return Arrays.copyOf(soa.array(), soaLen);
+        } catch (TextParseException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -1,10 +1,22 @@
 package com.deviknitkkr.clean_net;
 
+import android.net.Network;
 import android.net.VpnService;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 
+import com.deviknitkkr.clean_net.cache.DiskDnsCache;
+import com.deviknitkkr.clean_net.net.SocketOwnerCache;
+import com.deviknitkkr.clean_net.net.SocketOwnerResolver;
+import com.deviknitkkr.clean_net.trace.QueryTracer;
+import com.deviknitkkr.clean_net.upstream.FamilySelector;
+import com.deviknitkkr.clean_net.upstream.HedgeBudget;
+import com.deviknitkkr.clean_net.upstream.RttEstimator;
+import com.deviknitkkr.clean_net.upstream.Upstream;
+import com.deviknitkkr.clean_net.utils.DnsWire;
+import com.deviknitkkr.clean_net.utils.IpFragmenter;
+
 import org.pcap4j.packet.IpPacket;
 import org.pcap4j.packet.IpSelector;
 import org.pcap4j.packet.IpV4Packet;
@@ -12,8 +24,6 @@ import org.pcap4j.packet.IpV6Packet;
 import org.pcap4j.packet.UdpPacket;
 import org.pcap4j.packet.UnknownPacket;
 import org.xbill.DNS.Message;
-import org.xbill.DNS.Name;
-import org.xbill.DNS.TextParseException;
 
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -22,97 +32,333 @@ import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
 import java.nio.ByteBuffer;
+import java.net.UnknownHostException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Predicate;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+import java.util.function.IntConsumer;
 
 public class DnsHandler implements Runnable {
     private static final String TAG = "DnsHandler";
     private static final int TUN_BUF_SIZE = 2048;
     private static final int DNS_BUF_SIZE = 4096;
+    // Upstream replies larger than the receive buffer would be cut off, so forwarded queries never advertise more.
+    private static final int MAX_UDP_PAYLOAD = DNS_BUF_SIZE;
+    private static final int DEFAULT_MTU = 1500;
     private static final int DNS_CACHE_TTL_MS = 30_000;
     private static final int SELECT_TIMEOUT_MS = 1_000;
-    private static final int MAX_PENDING = 128;
+    private static final int RETRANSMIT_TICK_MS = 20;
+    private static final int MAX_SENDS = 3;
+    private static final double HEDGE_RATIO = 0.1;
+    private static final double HEDGE_BURST = 10;
+    private static final int DEFAULT_MAX_PENDING = 128;
+    private static final int MAX_ID_ATTEMPTS = 16;
     private static final int PENDING_CLEANUP_MS = 10_000;
-    private static final int MAX_CACHE_ENTRIES = 64;
+    private static final int DEFAULT_CACHE_ENTRIES_PER_SHARD = 64;
+    private static final int SHARD_QUEUE_SIZE = 256;
+    // Owner lookups waiting for the owner thread; beyond this queries go unattributed.
+    private static final int OWNER_QUEUE_SIZE = 1024;
+    private static final int DNS_PORT = 53;
+    private static final int PREFETCH_TICK_MS = 1_000;
+    private static final double PREFETCH_AT = 0.9;
+    private static final double PREFETCH_MIN_SCORE = 3;
+    private static final long POPULARITY_HALF_LIFE_MS = 60_000;
+    private static final double PREFETCH_RATIO = 0.2;
+    private static final double PREFETCH_BURST = 20;
+    private static final long MAX_DISK_TTL_S = 86_400;
+    private static final String DEFAULT_NETWORK_ID = "default";
 
-    private final InetAddress dnsServer;
-    private volatile Predicate<String> dnsQueryCallback;
+    private volatile List<Upstream> upstreams;
+    private final HedgeBudget hedgeBudget = new HedgeBudget(HEDGE_RATIO, HEDGE_BURST);
+    private final HedgeBudget prefetchBudget = new HedgeBudget(PREFETCH_RATIO, PREFETCH_BURST);
+    private volatile BiPredicate<String, Integer> dnsQueryCallback;
+    private final BlockResponder blockResponder;
+    private final QueryPolicy queryPolicy;
+    private final QueryRateLimiter rateLimiter;
+    private final QueryTracer tracer;
+    private final SocketOwnerCache socketOwners;
+    private final AppQueryStats appStats = new AppQueryStats();
+    // Resolves query owners off the answer path; null without socketOwners.
+    private final ThreadPoolExecutor ownerExecutor;
+    private final AtomicLong ownerLookupDrops = new AtomicLong();
+    private final BlockResponder refusedResponder = new BlockResponder(BlockResponder.Mode.REFUSED, 0);
     private final FileInputStream inputStream;
     private final FileOutputStream outputStream;
     private final VpnService vpnService;
+    private final int mtu;
 
-    private final DatagramChannel dnsChannel;
+    private volatile DatagramChannel dnsChannel4;
+    // Null when IPv6 sockets can't be opened; IPv6 upstreams are then skipped.
+    private volatile DatagramChannel dnsChannel6;
+    private volatile String networkId = DEFAULT_NETWORK_ID;
+    private volatile boolean ipv6Available;
+    private final FamilySelector familySelector = new FamilySelector();
     private final Selector selector;
+    private final Queue<Runnable> responseThreadTasks = new ConcurrentLinkedQueue<>();
     private final ByteBuffer dnsReceiveBuf = ByteBuffer.allocate(DNS_BUF_SIZE);
-    private final Map<String, CachedDnsResponse> dnsCache = new ConcurrentHashMap<>();
+    private final Shard[] shards;
+    private final DiskDnsCache diskCache;
     private final Map<Integer, PendingQuery> pendingQueries = new ConcurrentHashMap<>();
+    private final AtomicInteger fragmentIds = new AtomicInteger();
     private final AppLogBuffer appLog = AppLogBuffer.getInstance();
 
-    private volatile boolean running = true;
+    private final AtomicLong retransmits = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong shardDrops = new AtomicLong();
+    private final AtomicLong fragmentedResponses = new AtomicLong();
+    private final AtomicLong clampedQueries = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong prefetches = new AtomicLong();
+    private final AtomicLong prefetchSavedMisses = new AtomicLong();
+    private final AtomicLong forwarded = new AtomicLong();
+    private final AtomicLong familyRaces = new AtomicLong();
+    private final AtomicLong ipv6RaceWins = new AtomicLong();
+    private final AtomicLong ipv4RaceWins = new AtomicLong();
+    private final AtomicLong rateLimitedCacheAnswers = new AtomicLong();
+    private final AtomicLong rateLimitedRefused = new AtomicLong();
+    private final long startRequestedAt;
+    private final AtomicLong firstAnswerAt = new AtomicLong();
 
-    private static final byte[] NXDOMAIN_SOA_BYTES;
-    static {
-        try {
-            Name origin = Name.fromString("blocked.example.com.");
-            Name mbox = Name.fromString("admin.example.com.");
-            byte[] mnameBytes = origin.toWire();
-            byte[] rnameBytes = mbox.toWire();
-
-            int rdataLen = mnameBytes.length + rnameBytes.length + 20;
-            ByteBuffer rdata = ByteBuffer.allocate(rdataLen);
-            rdata.put(mnameBytes);
-            rdata.put(rnameBytes);
-            rdata.putInt(1);
-            rdata.putInt(3600);
-            rdata.putInt(600);
-            rdata.putInt(86400);
-            rdata.putInt(300);
-
-            int soaLen = mnameBytes.length + 10 + rdataLen;
-            ByteBuffer soa = ByteBuffer.allocate(soaLen);
-            soa.put(mnameBytes);
-            soa.putShort((short) 6);
-            soa.putShort((short) 1);
-            soa.putInt(300);
-            soa.putShort((short) rdataLen);
-            soa.put(rdata.array(), 0, rdataLen);
-
-            NXDOMAIN_SOA_BYTES = Arrays.copyOf(soa.array(), soaLen);
-        } catch (TextParseException e) {
-            throw new RuntimeException(e);
-        }
-    }
+    private volatile int maxPending = DEFAULT_MAX_PENDING;
+    private volatile int cacheEntriesPerShard = DEFAULT_CACHE_ENTRIES_PER_SHARD;
+    private volatile boolean running = true;
 
     private DnsHandler(Builder builder) throws IOException {
-        this.dnsServer = InetAddress.getByName(builder.dnsServerIp);
+        this.upstreams = buildUpstreams(resolveUpstreams(builder.dnsServerIp, builder.secondaryDnsServerIps),
+                Collections.emptyList());
+
+        int shardCount = Math.max(1, builder.shards);
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i, shardCount > 1);
+        }
+        long now = System.currentTimeMillis();
+        for (CachedAnswer answer : builder.warmCache) {
+            if (answer.expiresAt > now) {
+                shardFor(answer.data).cache.put(answer.key,
+                        new CachedDnsResponse(answer.data, null, DNS_PORT, now, answer.expiresAt, 0, 0));
+            }
+        }
+        this.diskCache = builder.diskCache;
         this.dnsQueryCallback = builder.dnsQueryCallback;
+        this.blockResponder = builder.blockResponder;
+        this.queryPolicy = builder.queryPolicy;
+        this.ipv6Available = builder.ipv6Available;
+        this.rateLimiter = builder.rateLimiter;
+        this.tracer = builder.tracer;
+        this.socketOwners = builder.socketOwners;
+        this.ownerExecutor = socketOwners == null ? null : new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(OWNER_QUEUE_SIZE), r -> new Thread(r, "dns-owner"),
+                (r, executor) -> ownerLookupDrops.incrementAndGet());
+        this.startRequestedAt = builder.startRequestedAt;
         this.inputStream = builder.inputStream;
         this.outputStream = builder.outputStream;
         this.vpnService = builder.vpnService;
-
-        this.dnsChannel = DatagramChannel.open();
-        this.dnsChannel.configureBlocking(false);
-        this.vpnService.protect(this.dnsChannel.socket());
+        this.mtu = builder.mtu;
 
         this.selector = Selector.open();
-        this.dnsChannel.register(this.selector, SelectionKey.OP_READ);
+        this.dnsChannel4 = openUpstreamChannel(null, StandardProtocolFamily.INET);
+        this.dnsChannel6 = openIpv6Channel(null);
+    }
+
+    /**
+     * @return The distinct resolver addresses, primary first.
+     */
+    private static List<InetAddress> resolveUpstreams(String primaryIp, List<String> secondaryIps)
+            throws UnknownHostException {
+        List<InetAddress> addresses = new ArrayList<>();
+        addresses.add(InetAddress.getByName(primaryIp));
+        for (String ip : secondaryIps) {
+            InetAddress address = InetAddress.getByName(ip);
+            if (!addresses.contains(address)) {
+                addresses.add(address);
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Keeps the {@link Upstream} of every address already in {@code existing}, so its RTT
+     * estimate survives a switch that doesn't change that resolver.
+     */
+    private static List<Upstream> buildUpstreams(List<InetAddress> addresses, List<Upstream> existing) {
+        List<Upstream> list = new ArrayList<>(addresses.size());
+        for (InetAddress address : addresses) {
+            Upstream upstream = null;
+            for (Upstream candidate : existing) {
+                if (candidate.getAddress().equals(address)) {
+                    upstream = candidate;
+                    break;
+                }
+            }
+            list.add(upstream != null ? upstream : new Upstream(address));
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Opens a protected upstream socket, bound to {@code network} if given, and registers it with the selector.
+     */
+    private DatagramChannel openUpstreamChannel(Network network, ProtocolFamily family) throws IOException {
+        DatagramChannel channel = DatagramChannel.open(family);
+        try {
+            channel.configureBlocking(false);
+            vpnService.protect(channel.socket());
+            if (network != null) {
+                network.bindSocket(channel.socket());
+            }
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Opens the IPv6 upstream socket like {@link #openUpstreamChannel}.
+     *
+     * @return The channel, or null if the device can't open IPv6 sockets; IPv6 upstreams are
+     * then skipped.
+     */
+    private DatagramChannel openIpv6Channel(Network network) {
+        try {
+            return openUpstreamChannel(network, StandardProtocolFamily.INET6);
+        } catch (IOException | UnsupportedOperationException e) {
+            Log.w(TAG, "No IPv6 upstream socket, using IPv4 upstreams only", e);
+            return null;
+        }
     }
 
-    public void updateBlocklist(Predicate<String> newCallback) {
+    /**
+     * @param newCallback Given a query name and its QTYPE, returns whether the query is blocked.
+     */
+    public void updateBlocklist(BiPredicate<String, Integer> newCallback) {
         this.dnsQueryCallback = newCallback;
     }
 
+    /**
+     * Tells the handler whether the underlying network currently has IPv6 connectivity: IPv6
+     * upstreams are only used with it, and the query policy answers AAAA queries without it.
+     */
+    public void setIpv6Available(boolean ipv6Available) {
+        this.ipv6Available = ipv6Available;
+        queryPolicy.setIpv6Available(ipv6Available);
+    }
+
+    /**
+     * Resizes the memory cache and the pending-query table, e.g. under memory pressure. Shards
+     * over the new size are trimmed on the response thread.
+     *
+     * @param cacheEntries   Entries across all shards.
+     * @param pendingQueries Queries awaiting an upstream answer before the oldest are dropped.
+     */
+    public void setMemoryLimits(int cacheEntries, int pendingQueries) {
+        cacheEntriesPerShard = Math.max(8, cacheEntries / shards.length);
+        maxPending = pendingQueries;
+        responseThreadTasks.add(() -> {
+            long now = System.currentTimeMillis();
+            for (Shard shard : shards) {
+                if (shard.cache.size() > cacheEntriesPerShard) {
+                    trimCache(shard.cache, now);
+                }
+            }
+        });
+        selector.wakeup();
+    }
+
+    /**
+     * Switches to new upstream resolvers without interrupting query handling, e.g. after the
+     * underlying network changed. The upstream socket is replaced by one protected and bound
+     * to {@code network}, and in-flight queries are re-sent to the new primary.
+     *
+     * @param network    Network to bind the new socket to, or null for the default route.
+     * @param flushCache Whether cached answers from the old resolvers must be dropped.
+     */
+    public void updateUpstreams(String primaryIp, List<String> secondaryIps, Network network,
+                                boolean flushCache) throws UnknownHostException {
+        List<InetAddress> addresses = resolveUpstreams(primaryIp, secondaryIps);
+        responseThreadTasks.add(() -> applyUpstreams(buildUpstreams(addresses, upstreams), network, flushCache));
+        selector.wakeup();
+    }
+
+    private void applyUpstreams(List<Upstream> next, Network network, boolean flushCache) {
+        DatagramChannel oldChannel4 = dnsChannel4;
+        try {
+            dnsChannel4 = openUpstreamChannel(network, StandardProtocolFamily.INET);
+            oldChannel4.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error rebinding upstream socket, keeping the old one", e);
+        }
+        DatagramChannel oldChannel6 = dnsChannel6;
+        dnsChannel6 = openIpv6Channel(network);
+        if (oldChannel6 != null) {
+            try { oldChannel6.close(); } catch (IOException ignored) {}
+        }
+        networkId = network != null ? network.toString() : DEFAULT_NETWORK_ID;
+        upstreams = next;
+        if (flushCache) {
+            for (Shard shard : shards) {
+                shard.cache.clear();
+            }
+            if (diskCache != null) {
+                diskCache.clear();
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        Upstream primary = chooseUpstreams(next, now, false)[0];
+        for (Map.Entry<Integer, PendingQuery> entry : pendingQueries.entrySet()) {
+            PendingQuery p = entry.getValue();
+            PendingQuery moved = p.movedTo(primary, now);
+            moved.race = null;
+            if (!pendingQueries.replace(entry.getKey(), p, moved)) continue;
+            try {
+                sendToUpstream(p.query, primary, p.serverPort);
+            } catch (IOException e) {
+                Log.e(TAG, "Error re-sending " + p.queryName, e);
+            }
+        }
+        appLog.log(TAG, "Upstreams switched to " + primary.getAddress().getHostAddress()
+                + (flushCache ? ", cache flushed" : ""));
+    }
+
     @Override
     public void run() {
         Thread responseThread = new Thread(this::responseLoop, "dns-response");
         responseThread.start();
+        if (shards.length > 1) {
+            for (Shard shard : shards) {
+                shard.thread = new Thread(shard, "dns-shard-" + shard.index);
+                shard.thread.start();
+            }
+        }
 
         byte[] tunBuf = new byte[TUN_BUF_SIZE];
         try {
@@ -120,36 +366,89 @@ public class DnsHandler implements Runnable {
                 int bytesRead = inputStream.read(tunBuf);
                 if (bytesRead <= 0) continue;
 
-                byte[] packetData = Arrays.copyOf(tunBuf, bytesRead);
-                handleDnsRequest(packetData);
+                // Covers the hand-off only; with a single shard the query's own stages nest inside.
+                boolean traced = isSampled(tunBuf, bytesRead);
+                tracer.begin(traced, QueryTracer.STAGE_TUN_READ);
+                try {
+                    byte[] packetData = Arrays.copyOf(tunBuf, bytesRead);
+                    dispatch(packetData);
+                } finally {
+                    tracer.end(traced);
+                }
             }
         } catch (IOException e) {
             Log.e(TAG, "Reader error", e);
         } finally {
             running = false;
             selector.wakeup();
+            for (Shard shard : shards) {
+                if (shard.thread == null) continue;
+                shard.thread.interrupt();
+                try { shard.thread.join(2000); } catch (InterruptedException ignored) {}
+            }
             try { responseThread.join(2000); } catch (InterruptedException ignored) {}
+            if (ownerExecutor != null) ownerExecutor.shutdownNow();
             cleanup();
         }
     }
 
+    /**
+     * Hands a TUN packet to the shard owning its query name. Sharding by name keeps each
+     * name's cache entries on one worker, so workers never contend on the same entries.
+     */
+    private void dispatch(byte[] packetData) {
+        if (shards.length == 1) {
+            handleDnsRequest(packetData, shards[0]);
+            return;
+        }
+        int dnsOffset = DnsWire.dnsOffset(packetData, packetData.length);
+        if (dnsOffset < 0) return;
+        int hash = DnsWire.qnameHash(packetData, dnsOffset, packetData.length);
+        Shard shard = shards[Math.floorMod(hash, shards.length)];
+        if (!shard.queue.offer(packetData)) {
+            shardDrops.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return Whether the query in a raw TUN packet is sampled for tracing.
+     */
+    private boolean isSampled(byte[] packetData, int length) {
+        if (!tracer.isEnabled()) return false;
+        int dnsOffset = DnsWire.dnsOffset(packetData, length);
+        if (dnsOffset < 0 || length < dnsOffset + 2) return false;
+        return tracer.isSampled(((packetData[dnsOffset] & 0xFF) << 8) | (packetData[dnsOffset + 1] & 0xFF));
+    }
+
     private void responseLoop() {
         long lastCleanup = 0;
+        long lastPrefetch = 0;
         try {
             while (running && !Thread.currentThread().isInterrupted()) {
-                int ready = selector.select(SELECT_TIMEOUT_MS);
+                int ready = selector.select(pendingQueries.isEmpty() ? SELECT_TIMEOUT_MS : RETRANSMIT_TICK_MS);
                 if (ready > 0) {
                     Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
                     while (iter.hasNext()) {
                         SelectionKey key = iter.next();
                         iter.remove();
-                        if (key.isReadable()) {
-                            handleDnsResponse();
+                        if (key.isValid() && key.isReadable()) {
+                            handleDnsResponse((DatagramChannel) key.channel());
                         }
                     }
                 }
+                Runnable task;
+                while ((task = responseThreadTasks.poll()) != null) {
+                    task.run();
+                }
 
                 long now = System.currentTimeMillis();
+                if (!pendingQueries.isEmpty()) {
+                    retransmitOrHedge(now);
+                }
+                if (now - lastPrefetch >= PREFETCH_TICK_MS) {
+                    prefetchHotEntries(now);
+                    lastPrefetch = now;
+                }
                 if (now - lastCleanup > PENDING_CLEANUP_MS) {
                     cleanupStalePendingQueries(now);
                     lastCleanup = now;
@@ -160,9 +459,10 @@ public class DnsHandler implements Runnable {
         }
     }
 
-    private void handleDnsResponse() throws IOException {
+    private void handleDnsResponse(DatagramChannel channel) throws IOException {
         dnsReceiveBuf.clear();
-        dnsChannel.receive(dnsReceiveBuf);
+        SocketAddress from = channel.receive(dnsReceiveBuf);
+        if (from == null) return;
         dnsReceiveBuf.flip();
 
         byte[] responseData = new byte[dnsReceiveBuf.remaining()];
@@ -170,109 +470,627 @@ public class DnsHandler implements Runnable {
         if (responseData.length < 2) return;
 
         int txnId = ((responseData[0] & 0xFF) << 8) | (responseData[1] & 0xFF);
-        PendingQuery pending = pendingQueries.remove(txnId);
-        if (pending == null) return;
+        PendingQuery pending = pendingQueries.get(txnId);
+        // A reply to another question under this id is stray or spoofed; keep waiting for the real one.
+        if (pending == null || !DnsWire.sameQuestion(pending.query, responseData)) return;
+        if (!pendingQueries.remove(txnId, pending)) return;
+        tracer.endAsync(pending.traced, QueryTracer.STAGE_UPSTREAM, txnId);
+        tracer.begin(pending.traced, QueryTracer.STAGE_UPSTREAM_RECEIVE);
+        try {
+            cacheResponse(pending, from, responseData);
+        } finally {
+            tracer.end(pending.traced);
+        }
 
-        dnsCache.put(pending.queryName, new CachedDnsResponse(responseData));
-        if (dnsCache.size() > MAX_CACHE_ENTRIES) {
-            long cutoff = System.currentTimeMillis() - DNS_CACHE_TTL_MS;
-            dnsCache.values().removeIf(c -> c.expiresAt < cutoff);
+        if (pending.requestPacket == null) {
+            appLog.log(TAG, "Prefetched: " + pending.queryName);
+            return;
         }
         appLog.log(TAG, "Response: " + pending.queryName);
+        byte[] reply = responseData.clone();
+        reply[0] = (byte) (pending.clientId >> 8);
+        reply[1] = (byte) pending.clientId;
+        sendResponse(pending.requestPacket, reply);
+        long latencyMs = System.currentTimeMillis() - pending.sentAt;
+        // The client's socket is still open and usually still cached from the forward.
+        attributeToOwner(pending.requestPacket, uid -> appStats.onForwardedAnswer(uid, latencyMs));
+        // Blocked and cached answers don't need the upstream, so only a forwarded one shows
+        // the tunnel actually works.
+        if (firstAnswerAt.get() == 0) {
+            long now = System.currentTimeMillis();
+            if (firstAnswerAt.compareAndSet(0, now) && startRequestedAt != 0) {
+                appLog.log(TAG, "First forwarded answer " + (now - startRequestedAt) + " ms after start");
+            }
+        }
+    }
+
+    /**
+     * Records the upstream timing of an answered query and stores the answer in both cache tiers.
+     */
+    private void cacheResponse(PendingQuery pending, SocketAddress from, byte[] responseData) {
+        long now = System.currentTimeMillis();
+        recordRtt(pending, from, now);
 
-        sendResponse(pending.requestPacket, responseData);
+        Map<String, CachedDnsResponse> dnsCache = pending.shard.cache;
+        CachedDnsResponse previous = dnsCache.get(pending.cacheKey);
+        double score = previous != null ? previous.score(now) : 1;
+        long replacedExpiry = pending.requestPacket == null && previous != null ? previous.expiresAt : 0;
+        dnsCache.put(pending.cacheKey, new CachedDnsResponse(responseData, pending.query, pending.serverPort,
+                now, now + DNS_CACHE_TTL_MS, score, replacedExpiry));
+        if (dnsCache.size() > cacheEntriesPerShard) {
+            trimCache(dnsCache, now);
+        }
+        if (diskCache != null && (responseData[2] & 0x02) == 0) {
+            long ttl = DnsWire.minTtl(responseData, 0, responseData.length);
+            if (ttl > 0) {
+                diskCache.put(pending.cacheKey, responseData, now + Math.min(ttl, MAX_DISK_TTL_S) * 1000);
+            }
+        }
     }
 
-    private void handleDnsRequest(byte[] packetData) {
-        IpPacket parsedPacket = parseIpPacket(packetData);
-        if (parsedPacket == null) return;
+    private void handleDnsRequest(byte[] packetData, Shard shard) {
+        boolean traced = isSampled(packetData, packetData.length);
+        IpPacket parsedPacket;
+        UdpPacket parsedUdp;
+        byte[] dnsRawData;
+        String dnsQueryName;
+        int qtype;
+        tracer.begin(traced, QueryTracer.STAGE_PARSE);
+        try {
+            parsedPacket = parseIpPacket(packetData);
+            if (parsedPacket == null) return;
 
-        UdpPacket parsedUdp = extractUdpPacket(parsedPacket);
-        if (parsedUdp == null) return;
+            parsedUdp = extractUdpPacket(parsedPacket);
+            if (parsedUdp == null) return;
 
-        byte[] dnsRawData = parsedUdp.getPayload().getRawData();
-        Message dnsMsg = parseDnsMessage(dnsRawData);
-        if (dnsMsg == null || dnsMsg.getQuestion() == null) return;
+            dnsRawData = parsedUdp.getPayload().getRawData();
+            Message dnsMsg = parseDnsMessage(dnsRawData);
+            if (dnsMsg == null || dnsMsg.getQuestion() == null) return;
 
-        String dnsQueryName = dnsMsg.getQuestion().getName().toString(true);
+            dnsQueryName = dnsMsg.getQuestion().getName().toString(true);
+            int questionEnd = DnsWire.questionEnd(dnsRawData, 0, dnsRawData.length);
+            if (questionEnd < 0) return;
+            qtype = DnsWire.qtype(dnsRawData, questionEnd);
+        } finally {
+            tracer.end(traced);
+        }
+        long receivedAt = System.currentTimeMillis();
+        // Over-limit queries are still answered, but never forwarded or logged.
+        boolean limited = !rateLimiter.tryAcquire(sourceKey(parsedPacket, parsedUdp, receivedAt), receivedAt);
+        attributeToOwner(parsedPacket, appStats::onQuery);
 
-        if (dnsQueryCallback.test(dnsQueryName)) {
-            appLog.log(TAG, "Blocking: " + dnsQueryName);
+        blockResponder.onQuery(dnsQueryName, qtype);
+        tracer.begin(traced, QueryTracer.STAGE_MATCH);
+        boolean blocked = dnsQueryCallback.test(dnsQueryName, qtype);
+        tracer.end(traced);
+        if (blocked) {
+            if (!limited) appLog.log(TAG, "Blocking: " + dnsQueryName);
             Log.d(TAG, "Blocking: " + dnsQueryName);
+            blockResponder.onBlocked(dnsQueryName, qtype);
             blockDnsQuery(parsedPacket, dnsRawData);
+            attributeToOwner(parsedPacket, appStats::onBlocked);
+            return;
+        }
+
+        byte[] localReply = queryPolicy.answerLocally(dnsRawData, qtype);
+        if (localReply != null) {
+            try {
+                sendResponse(parsedPacket, localReply);
+            } catch (IOException e) {
+                Log.e(TAG, "Error answering " + dnsQueryName + " locally", e);
+            }
             return;
         }
 
-        CachedDnsResponse cached = dnsCache.get(dnsQueryName);
+        if (DnsWire.clampEdnsPayload(dnsRawData, 0, dnsRawData.length, MAX_UDP_PAYLOAD)) {
+            clampedQueries.incrementAndGet();
+        }
+
+        int serverPort = parsedUdp.getHeader().getDstPort().valueAsInt();
+        // Answers differ per type, so the same name is cached once per QTYPE.
+        String cacheKey = dnsQueryName + "/" + qtype;
+        Map<String, CachedDnsResponse> dnsCache = shard.cache;
+        tracer.begin(traced, QueryTracer.STAGE_CACHE);
+        CachedDnsResponse cached = dnsCache.get(cacheKey);
+        tracer.end(traced);
         if (cached != null) {
-            if (cached.isValid()) {
+            long now = System.currentTimeMillis();
+            if (now < cached.expiresAt) {
+                cacheHits.incrementAndGet();
+                if (limited) rateLimitedCacheAnswers.incrementAndGet();
+                cached.touch(now);
+                if (cached.replacedExpiry != 0 && now >= cached.replacedExpiry && !cached.savedMissCounted) {
+                    cached.savedMissCounted = true;
+                    prefetchSavedMisses.incrementAndGet();
+                }
+                byte[] reply = cached.data.clone();
+                reply[0] = dnsRawData[0];
+                reply[1] = dnsRawData[1];
                 try {
-                    sendResponse(parsedPacket, cached.data);
+                    sendResponse(parsedPacket, reply);
                 } catch (IOException ignored) {}
                 return;
             }
-            dnsCache.remove(dnsQueryName);
+            dnsCache.remove(cacheKey);
+        }
+        if (diskCache != null) {
+            tracer.begin(traced, QueryTracer.STAGE_CACHE);
+            boolean answered;
+            try {
+                answered = answerFromDisk(parsedPacket, dnsRawData, cacheKey, serverPort, shard);
+            } finally {
+                tracer.end(traced);
+            }
+            if (answered) {
+                if (limited) rateLimitedCacheAnswers.incrementAndGet();
+                return;
+            }
+        }
+        cacheMisses.incrementAndGet();
+        if (limited) {
+            rateLimitedRefused.incrementAndGet();
+            try {
+                sendResponse(parsedPacket, refusedResponder.build(dnsRawData));
+            } catch (IOException ignored) {}
+            return;
         }
 
-        if (pendingQueries.size() >= MAX_PENDING) {
-            pendingQueries.values().removeIf(p -> p.queryName.equals(dnsQueryName));
+        if (pendingQueries.size() >= maxPending) {
+            pendingQueries.values().removeIf(p -> p.cacheKey.equals(cacheKey));
         }
 
-        int txnId = ((dnsRawData[0] & 0xFF) << 8) | (dnsRawData[1] & 0xFF);
-        int serverPort = parsedUdp.getHeader().getDstPort().valueAsInt();
-        ByteBuffer sendBuffer = ByteBuffer.wrap(dnsRawData);
+        long now = System.currentTimeMillis();
+        Upstream[] targets = chooseUpstreams(upstreams, now, true);
+        Upstream primary = targets[0];
+        Upstream race = targets[1];
+        PendingQuery pending = new PendingQuery(parsedPacket, dnsQueryName, cacheKey, dnsRawData,
+                serverPort, primary, shard, now);
+        pending.clientId = ((dnsRawData[0] & 0xFF) << 8) | (dnsRawData[1] & 0xFF);
+        pending.race = race;
+        pending.traced = traced;
+        int txnId = registerPending(pending);
+        if (txnId < 0) {
+            appLog.log(TAG, "Drop (no free upstream id): " + dnsQueryName);
+            return;
+        }
 
+        tracer.begin(traced, QueryTracer.STAGE_UPSTREAM_SEND);
         try {
-            InetSocketAddress target = new InetSocketAddress(dnsServer, serverPort);
-            boolean sent = false;
-            for (int i = 0; i < 5; i++) {
-                int n = dnsChannel.send(sendBuffer, target);
-                if (n > 0) { sent = true; break; }
-                sendBuffer.rewind();
-                try { Thread.sleep(1); } catch (InterruptedException e) { Thread.currentThread().interrupt(); break; }
+            boolean sent;
+            if (race == null) {
+                sent = sendToUpstream(dnsRawData, primary, serverPort);
+            } else if (trySend(dnsRawData, primary, serverPort)) {
+                sent = true;
+            } else {
+                // The first family can't even send; the other one wins without a race.
+                PendingQuery moved = pending.movedTo(race, now);
+                pendingQueries.replace(txnId, pending, moved);
+                pending = moved;
+                race = null;
+                sent = sendToUpstream(dnsRawData, moved.upstream, serverPort);
             }
             if (sent) {
-                pendingQueries.put(txnId, new PendingQuery(parsedPacket, dnsQueryName, System.currentTimeMillis()));
+                if (race != null) {
+                    familyRaces.incrementAndGet();
+                }
+                tracer.beginAsync(traced, QueryTracer.STAGE_UPSTREAM, txnId);
+                forwarded.incrementAndGet();
+                hedgeBudget.onQuery();
+                prefetchBudget.onQuery();
+                if (pendingQueries.size() == 1) {
+                    selector.wakeup();
+                }
                 Log.d(TAG, "Forwarding: " + dnsQueryName);
             } else {
+                pendingQueries.remove(txnId);
                 appLog.log(TAG, "Drop (send fail): " + dnsQueryName);
             }
         } catch (IOException e) {
+            pendingQueries.remove(txnId);
             Log.e(TAG, "Error forwarding " + dnsQueryName, e);
+        } finally {
+            tracer.end(traced);
         }
     }
 
-    private void sendResponse(IpPacket requestPacket, byte[] responsePayload) throws IOException {
-        IpPacket ipOutPacket = generateResponsePacket(requestPacket, responsePayload);
-        synchronized (outputStream) {
-            outputStream.write(ipOutPacket.getRawData());
+    /**
+     * Identifies the sender of a query for rate limiting: its app when the owner of its socket
+     * is already cached, otherwise its source address and port. Never waits for a lookup.
+     */
+    private String sourceKey(IpPacket packet, UdpPacket udp, long now) {
+        int port = udp.getHeader().getSrcPort().valueAsInt();
+        if (socketOwners != null) {
+            int uid = socketOwners.peek(port, packet instanceof IpV6Packet, now);
+            if (uid != SocketOwnerResolver.UNKNOWN_UID) return "uid " + uid;
         }
+        return packet.getHeader().getSrcAddr().getHostAddress() + ":" + port;
     }
 
-    private void blockDnsQuery(IpPacket requestPacket, byte[] requestDnsRaw) {
+    /**
+     * Looks up the app that sent a query on the owner thread and hands its UID, or
+     * {@link SocketOwnerResolver#UNKNOWN_UID}, to {@code counter}. No answer ever waits for
+     * the lookup. Lookups run in order, and are dropped when the owner thread falls behind.
+     */
+    private void attributeToOwner(IpPacket packet, IntConsumer counter) {
+        if (ownerExecutor == null) {
+            counter.accept(SocketOwnerResolver.UNKNOWN_UID);
+            return;
+        }
+        ownerExecutor.execute(() -> {
+            UdpPacket udp = extractUdpPacket(packet);
+            if (udp == null) return;
+            InetSocketAddress local = new InetSocketAddress(packet.getHeader().getSrcAddr(),
+                    udp.getHeader().getSrcPort().valueAsInt());
+            InetSocketAddress remote = new InetSocketAddress(packet.getHeader().getDstAddr(),
+                    udp.getHeader().getDstPort().valueAsInt());
+            counter.accept(socketOwners.uidFor(local, remote, System.currentTimeMillis()));
+        });
+    }
+
+    /**
+     * Answers a memory-cache miss from the disk tier, with the record TTLs aged to the time
+     * left, and promotes the entry into the shard's memory cache.
+     *
+     * @return Whether the query was answered.
+     */
+    private boolean answerFromDisk(IpPacket requestPacket, byte[] dnsRawData, String cacheKey,
+                                   int serverPort, Shard shard) {
+        long now = System.currentTimeMillis();
+        DiskDnsCache.Entry stored = diskCache.get(cacheKey, now);
+        if (stored == null) return false;
+        diskHits.incrementAndGet();
+
+        byte[] reply = stored.data.clone();
+        DnsWire.capTtls(reply, 0, reply.length, Math.max(1, (stored.expiresAt - now) / 1000));
+        Map<String, CachedDnsResponse> dnsCache = shard.cache;
+        dnsCache.put(cacheKey, new CachedDnsResponse(reply, dnsRawData, serverPort, now,
+                Math.min(stored.expiresAt, now + DNS_CACHE_TTL_MS), 1, 0));
+        if (dnsCache.size() > cacheEntriesPerShard) {
+            trimCache(dnsCache, now);
+        }
+
+        reply = reply.clone();
+        reply[0] = dnsRawData[0];
+        reply[1] = dnsRawData[1];
+        try {
+            sendResponse(requestPacket, reply);
+        } catch (IOException ignored) {}
+        return true;
+    }
+
+    /**
+     * Drops expired entries and, if the shard is still over capacity, the ones expiring first.
+     */
+    private void trimCache(Map<String, CachedDnsResponse> cache, long now) {
+        cache.values().removeIf(c -> c.expiresAt <= now);
+        int excess = cache.size() - cacheEntriesPerShard;
+        if (excess <= 0) return;
+        List<Map.Entry<String, CachedDnsResponse>> entries = new ArrayList<>(cache.entrySet());
+        entries.sort((a, b) -> Long.compare(a.getValue().expiresAt, b.getValue().expiresAt));
+        for (int i = 0; i < excess; i++) {
+            cache.remove(entries.get(i).getKey(), entries.get(i).getValue());
+        }
+    }
+
+    /**
+     * Picks the upstream for a query. While the faster address family on the current network
+     * is unknown, or due for a re-probe, a racing query goes to the first IPv6 upstream and
+     * is raced against the first IPv4 upstream after {@link FamilySelector#RACE_DELAY_MS}.
+     *
+     * @param race Whether this query may race; otherwise an undecided network uses IPv4.
+     * @return The upstream to send to, and the upstream to race against or null.
+     */
+    private Upstream[] chooseUpstreams(List<Upstream> current, long now, boolean race) {
+        Upstream first4 = firstOfFamily(current, FamilySelector.IPV4);
+        Upstream first6 = isIpv6Usable() ? firstOfFamily(current, FamilySelector.IPV6) : null;
+        if (first4 == null || first6 == null) {
+            Upstream only = first6 != null ? first6 : first4;
+            return new Upstream[]{only != null ? only : current.get(0), null};
+        }
+        int family = race ? familySelector.preferred(networkId, now) : familySelector.current(networkId);
+        if (family == FamilySelector.IPV6) return new Upstream[]{first6, null};
+        if (family == FamilySelector.IPV4 || !race) return new Upstream[]{first4, null};
+        return new Upstream[]{first6, first4};
+    }
+
+    private static Upstream firstOfFamily(List<Upstream> candidates, int family) {
+        for (Upstream u : candidates) {
+            if (FamilySelector.familyOf(u.getAddress()) == family) return u;
+        }
+        return null;
+    }
+
+    private boolean isIpv6Usable() {
+        return dnsChannel6 != null && ipv6Available;
+    }
+
+    /**
+     * @return The upstreams reachable on the current network.
+     */
+    private List<Upstream> usableUpstreams() {
+        List<Upstream> current = upstreams;
+        if (isIpv6Usable()) return current;
+        List<Upstream> usable = new ArrayList<>(current.size());
+        for (Upstream u : current) {
+            if (FamilySelector.familyOf(u.getAddress()) == FamilySelector.IPV4) usable.add(u);
+        }
+        return usable;
+    }
+
+    private DatagramChannel channelFor(Upstream upstream) {
+        return FamilySelector.familyOf(upstream.getAddress()) == FamilySelector.IPV6 ? dnsChannel6 : dnsChannel4;
+    }
+
+    /**
+     * Like {@link #sendToUpstream}, but treats errors such as an unreachable network as a failed send.
+     */
+    private boolean trySend(byte[] query, Upstream upstream, int serverPort) {
+        try {
+            return sendToUpstream(query, upstream, serverPort);
+        } catch (IOException e) {
+            Log.d(TAG, "Send to " + upstream + " failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean sendToUpstream(byte[] query, Upstream upstream, int serverPort) throws IOException {
+        ByteBuffer sendBuffer = ByteBuffer.wrap(query);
+        InetSocketAddress target = new InetSocketAddress(upstream.getAddress(), serverPort);
+        DatagramChannel channel = channelFor(upstream);
+        if (channel == null) return false;
+        for (int i = 0; i < 5; i++) {
+            int n;
+            try {
+                n = channel.send(sendBuffer, target);
+            } catch (ClosedChannelException e) {
+                // The socket was replaced after a network change; retry on the new one.
+                DatagramChannel replacement = channelFor(upstream);
+                if (replacement == null || channel == replacement) throw e;
+                channel = replacement;
+                continue;
+            }
+            if (n > 0) return true;
+            sendBuffer.rewind();
+            try { Thread.sleep(1); } catch (InterruptedException e) { Thread.currentThread().interrupt(); break; }
+        }
+        return false;
+    }
+
+    /**
+     * Starts due family races, retransmits queries whose RTO expired and hedges queries that
+     * are slower than the primary's p90 to the fastest other upstream. A racing query already
+     * goes to two upstreams and isn't hedged. Runs on the response thread only.
+     */
+    private void retransmitOrHedge(long now) {
+        List<Upstream> current = usableUpstreams();
+        for (PendingQuery p : pendingQueries.values()) {
+            try {
+                if (p.race != null && p.raceSentAt == 0 && now - p.sentAt >= FamilySelector.RACE_DELAY_MS) {
+                    p.raceSentAt = now;
+                    trySend(p.query, p.race, p.serverPort);
+                }
+                if (now >= p.retransmitAt && p.sends < MAX_SENDS) {
+                    if (sendToUpstream(p.query, p.upstream, p.serverPort)) {
+                        p.sends++;
+                        retransmits.incrementAndGet();
+                    }
+                    p.rto = RttEstimator.backoff(p.rto);
+                    p.retransmitAt = now + p.rto;
+                }
+                if (p.hedge == null && p.race == null && current.size() > 1
+                        && now - p.sentAt > p.upstream.getRtt().getP90()
+                        && hedgeBudget.tryAcquire()) {
+                    Upstream hedge = pickHedgeTarget(current, p.upstream);
+                    if (sendToUpstream(p.query, hedge, p.serverPort)) {
+                        p.hedge = hedge;
+                        p.hedgeSentAt = now;
+                        hedges.incrementAndGet();
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error retransmitting " + p.queryName, e);
+            }
+        }
+    }
+
+    /**
+     * Re-resolves popular cache entries that are past {@link #PREFETCH_AT} of their lifetime,
+     * so their next lookup is still a hit. Prefetches go through the normal forwarding path
+     * and are capped by {@link #prefetchBudget}.
+     * Runs on the response thread only.
+     */
+    private void prefetchHotEntries(long now) {
+        Upstream primary = chooseUpstreams(upstreams, now, false)[0];
+        for (Shard shard : shards) {
+            for (Map.Entry<String, CachedDnsResponse> entry : shard.cache.entrySet()) {
+                CachedDnsResponse cached = entry.getValue();
+                if (cached.query == null || cached.prefetching
+                        || now < cached.refreshAt || now >= cached.expiresAt
+                        || cached.score(now) < PREFETCH_MIN_SCORE) {
+                    continue;
+                }
+                if (!prefetchBudget.tryAcquire()) return;
+
+                byte[] query = cached.query.clone();
+                String key = entry.getKey();
+                PendingQuery pending = new PendingQuery(null, key.substring(0, key.lastIndexOf('/')), key,
+                        query, cached.serverPort, primary, shard, now);
+                int txnId = registerPending(pending);
+                if (txnId < 0) return;
+                cached.prefetching = true;
+                try {
+                    if (sendToUpstream(query, primary, cached.serverPort)) {
+                        prefetches.incrementAndGet();
+                        continue;
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Error prefetching " + entry.getKey(), e);
+                }
+                pendingQueries.remove(txnId);
+                cached.prefetching = false;
+            }
+        }
+    }
+
+    /**
+     * Gives a query a transaction id of its own for the upstream leg and registers it as
+     * pending under that id. Client ids are chosen by each app and can collide with each other
+     * and with prefetches, so they never reach the upstream; replies get the client's id back.
+     *
+     * @return The upstream id, or -1 if no free id was found.
+     */
+    private int registerPending(PendingQuery pending) {
+        for (int attempt = 0; attempt < MAX_ID_ATTEMPTS; attempt++) {
+            int txnId = ThreadLocalRandom.current().nextInt(0x10000);
+            if (pendingQueries.containsKey(txnId)) continue;
+            pending.query[0] = (byte) (txnId >> 8);
+            pending.query[1] = (byte) txnId;
+            if (pendingQueries.putIfAbsent(txnId, pending) == null) return txnId;
+        }
+        return -1;
+    }
+
+    private static Upstream pickHedgeTarget(List<Upstream> candidates, Upstream exclude) {
+        Upstream best = null;
+        for (Upstream u : candidates) {
+            if (u == exclude) continue;
+            if (best == null || u.getRtt().getSrtt() < best.getRtt().getSrtt()) best = u;
+        }
+        return best;
+    }
+
+    private void recordRtt(PendingQuery pending, SocketAddress from, long now) {
+        InetAddress source = from instanceof InetSocketAddress ? ((InetSocketAddress) from).getAddress() : null;
+        if (source == null) return;
+        if (pending.race != null) {
+            int family = FamilySelector.familyOf(source);
+            familySelector.onRaceWon(networkId, family, now);
+            (family == FamilySelector.IPV6 ? ipv6RaceWins : ipv4RaceWins).incrementAndGet();
+        }
+        if (source.equals(pending.upstream.getAddress())) {
+            if (pending.sends == 1) {
+                pending.upstream.getRtt().addSample(now - pending.sentAt);
+            }
+        } else if (pending.race != null && pending.raceSentAt != 0 && source.equals(pending.race.getAddress())) {
+            pending.race.getRtt().addSample(now - pending.raceSentAt);
+        } else if (pending.hedge != null && source.equals(pending.hedge.getAddress())) {
+            hedgeWins.incrementAndGet();
+            pending.hedge.getRtt().addSample(now - pending.hedgeSentAt);
+        }
+    }
+
+    /**
+     * Writes a reply to the TUN interface, fragmenting it if it exceeds the MTU; the
+     * interface drops oversized packets without any error.
+     */
+    private void sendResponse(IpPacket requestPacket, byte[] responsePayload) throws IOException {
+        // A reply carries its query's transaction id, so it is sampled like the query.
+        boolean traced = tracer.isEnabled() && responsePayload.length >= 2
+                && tracer.isSampled(((responsePayload[0] & 0xFF) << 8) | (responsePayload[1] & 0xFF));
+        tracer.begin(traced, QueryTracer.STAGE_TUN_WRITE);
         try {
-            byte[] responseDnsBytes = Arrays.copyOf(requestDnsRaw, requestDnsRaw.length + NXDOMAIN_SOA_BYTES.length);
-            responseDnsBytes[2] = (byte) (0x81 | (requestDnsRaw[2] & 0x01));
-            responseDnsBytes[3] = (byte) 0x83;
-            responseDnsBytes[6] = 0;
-            responseDnsBytes[7] = 0;
-            responseDnsBytes[8] = 0;
-            responseDnsBytes[9] = 1;
-            responseDnsBytes[10] = 0;
-            responseDnsBytes[11] = 0;
-            System.arraycopy(NXDOMAIN_SOA_BYTES, 0, responseDnsBytes, requestDnsRaw.length, NXDOMAIN_SOA_BYTES.length);
-            IpPacket ipOutPacket = generateResponsePacket(requestPacket, responseDnsBytes);
+            byte[] packet = generateResponsePacket(requestPacket, responsePayload).getRawData();
+            List<byte[]> fragments = IpFragmenter.fragment(packet, mtu, fragmentIds.incrementAndGet());
+            if (fragments.size() > 1) {
+                fragmentedResponses.incrementAndGet();
+            }
             synchronized (outputStream) {
-                outputStream.write(ipOutPacket.getRawData());
+                for (byte[] fragment : fragments) {
+                    outputStream.write(fragment);
+                }
             }
+        } finally {
+            tracer.end(traced);
+        }
+    }
+
+    private void blockDnsQuery(IpPacket requestPacket, byte[] requestDnsRaw) {
+        try {
+            sendResponse(requestPacket, blockResponder.build(requestDnsRaw));
         } catch (IOException e) {
             Log.e(TAG, "Error blocking DNS query", e);
         }
     }
 
+    /**
+     * @return Cache hits and misses, prefetches sent upstream, the misses prefetching avoided,
+     * queries forwarded upstream, AAAA and HTTPS/SVCB queries answered by the query policy,
+     * over-limit queries with how they were answered, and the time from the start request to
+     * the first answer once there was one.
+     */
+    public Map<String, Long> getQueryStats() {
+        Map<String, Long> stats = new HashMap<>();
+        stats.put("hits", cacheHits.get());
+        stats.put("misses", cacheMisses.get());
+        stats.put("diskHits", diskHits.get());
+        stats.put("prefetches", prefetches.get());
+        stats.put("prefetchSavedMisses", prefetchSavedMisses.get());
+        stats.put("forwarded", forwarded.get());
+        stats.put("familyRaces", familyRaces.get());
+        stats.put("ipv6RaceWins", ipv6RaceWins.get());
+        stats.put("ipv4RaceWins", ipv4RaceWins.get());
+        stats.put("aaaaAnswered", queryPolicy.getAaaaAnswered());
+        stats.put("httpsAnswered", queryPolicy.getHttpsAnswered());
+        stats.put("rateLimited", rateLimiter.getLimitedQueries());
+        stats.put("rateLimitedSources", rateLimiter.getLimitedSources());
+        stats.put("rateLimitedCacheAnswers", rateLimitedCacheAnswers.get());
+        stats.put("rateLimitedRefused", rateLimitedRefused.get());
+        if (socketOwners != null) {
+            stats.put("ownerLookups", socketOwners.getLookups());
+            stats.put("ownerLookupDrops", ownerLookupDrops.get());
+        }
+        long firstAnswer = firstAnswerAt.get();
+        if (firstAnswer != 0 && startRequestedAt != 0) {
+            stats.put("startToFirstForwardedMs", firstAnswer - startRequestedAt);
+        }
+        return stats;
+    }
+
+    /**
+     * @return Query counters per app UID; see {@link AppQueryStats#snapshot()}.
+     */
+    public Map<Integer, Map<String, Long>> getAppStats() {
+        return appStats.snapshot();
+    }
+
+    /**
+     * @param max Maximum number of entries to return.
+     * @return The still-valid cache entries that live longest, for persisting across restarts.
+     */
+    public List<CachedAnswer> exportCache(int max) {
+        long now = System.currentTimeMillis();
+        List<CachedAnswer> entries = new ArrayList<>();
+        for (Shard shard : shards) {
+            for (Map.Entry<String, CachedDnsResponse> entry : shard.cache.entrySet()) {
+                CachedDnsResponse cached = entry.getValue();
+                if (cached.expiresAt > now) {
+                    entries.add(new CachedAnswer(entry.getKey(), cached.data, cached.expiresAt));
+                }
+            }
+        }
+        entries.sort((a, b) -> Long.compare(b.expiresAt, a.expiresAt));
+        return entries.size() > max ? new ArrayList<>(entries.subList(0, max)) : entries;
+    }
+
+    private Shard shardFor(byte[] dnsData) {
+        if (shards.length == 1) return shards[0];
+        int hash = DnsWire.qnameHash(dnsData, 0, dnsData.length);
+        return shards[Math.floorMod(hash, shards.length)];
+    }
+
     private void cleanupStalePendingQueries(long now) {
         int before = pendingQueries.size();
-        pendingQueries.values().removeIf(p -> now - p.sentAt > PENDING_CLEANUP_MS);
+        pendingQueries.entrySet().removeIf(e -> {
+            PendingQuery p = e.getValue();
+            if (now - p.sentAt <= PENDING_CLEANUP_MS) return false;
+            tracer.endAsync(p.traced, QueryTracer.STAGE_UPSTREAM, e.getKey());
+            if (p.requestPacket == null) {
+                // A lost prefetch; let the entry be prefetched again.
+                CachedDnsResponse cached = p.shard.cache.get(p.cacheKey);
+                if (cached != null) cached.prefetching = false;
+            }
+            return true;
+        });
         int removed = before - pendingQueries.size();
         if (removed > 0) {
             appLog.log(TAG, "Cleaned " + removed + " stale pending queries (" + pendingQueries.size() + " remaining)");
@@ -280,10 +1098,35 @@ public class DnsHandler implements Runnable {
     }
 
     private void cleanup() {
-        dnsCache.clear();
+        appLog.log(TAG, "Upstream stats: " + retransmits.get() + " retransmits, "
+                + hedges.get() + " hedges, " + hedgeWins.get() + " hedge wins, "
+                + shardDrops.get() + " shard queue drops, "
+                + fragmentedResponses.get() + " fragmented responses, "
+                + clampedQueries.get() + " EDNS sizes clamped, "
+                + familyRaces.get() + " family races (IPv6 won " + ipv6RaceWins.get()
+                + ", IPv4 won " + ipv4RaceWins.get() + ")");
+        appLog.log(TAG, "Cache stats: " + cacheHits.get() + " hits, " + diskHits.get() + " disk hits, "
+                + cacheMisses.get() + " misses, "
+                + prefetches.get() + " prefetches, " + prefetchSavedMisses.get() + " misses saved by prefetching");
+        appLog.log(TAG, "Query stats: " + forwarded.get() + " forwarded, "
+                + queryPolicy.getAaaaAnswered() + " AAAA and "
+                + queryPolicy.getHttpsAnswered() + " HTTPS/SVCB answered locally");
+        appLog.log(TAG, "Rate limit: " + rateLimiter.getLimitedQueries() + " queries over limit in "
+                + rateLimiter.getLimitedSources() + " bursts, " + rateLimitedCacheAnswers.get() + " answered from cache, "
+                + rateLimitedRefused.get() + " refused");
+        for (Shard shard : shards) {
+            shard.cache.clear();
+            if (shard.queue != null) shard.queue.clear();
+        }
         pendingQueries.clear();
+        if (diskCache != null) {
+            diskCache.close();
+        }
         try { selector.close(); } catch (IOException ignored) {}
-        try { dnsChannel.close(); } catch (IOException ignored) {}
+        try { dnsChannel4.close(); } catch (IOException ignored) {}
+        if (dnsChannel6 != null) {
+            try { dnsChannel6.close(); } catch (IOException ignored) {}
+        }
     }
 
     private IpPacket parseIpPacket(byte[] packetData) {
@@ -345,43 +1188,173 @@ public class DnsHandler implements Runnable {
 
     private static class CachedDnsResponse {
         final byte[] data;
+        final byte[] query;
+        final int serverPort;
         final long expiresAt;
+        final long refreshAt;
+        // Expiry of the entry this one replaced by prefetching, or 0 if it came from a client query.
+        final long replacedExpiry;
+        volatile boolean prefetching;
+        volatile boolean savedMissCounted;
+        // Access count decaying with POPULARITY_HALF_LIFE_MS. Updated without locking, so a
+        // concurrent hit may occasionally be lost; good enough to rank popularity.
+        private double score;
+        private long scoredAt;
 
-        CachedDnsResponse(byte[] data) {
+        /**
+         * @param query Query that produced {@code data}, used for prefetching; null if unknown.
+         */
+        CachedDnsResponse(byte[] data, byte[] query, int serverPort, long storedAt, long expiresAt,
+                          double score, long replacedExpiry) {
             this.data = data;
-            this.expiresAt = System.currentTimeMillis() + DNS_CACHE_TTL_MS;
+            this.query = query;
+            this.serverPort = serverPort;
+            this.expiresAt = expiresAt;
+            this.refreshAt = storedAt + (long) ((expiresAt - storedAt) * PREFETCH_AT);
+            this.replacedExpiry = replacedExpiry;
+            this.score = score;
+            this.scoredAt = storedAt;
         }
 
-        boolean isValid() {
-            return System.currentTimeMillis() < expiresAt;
+        double score(long now) {
+            return score * Math.pow(0.5, (double) (now - scoredAt) / POPULARITY_HALF_LIFE_MS);
+        }
+
+        void touch(long now) {
+            score = score(now) + 1;
+            scoredAt = now;
+        }
+    }
+
+    /**
+     * A cache entry in a form that can outlive the handler, e.g. in an engine snapshot.
+     */
+    public static class CachedAnswer {
+        // Query name and QTYPE, as "name/type".
+        public final String key;
+        public final byte[] data;
+        public final long expiresAt;
+
+        public CachedAnswer(String key, byte[] data, long expiresAt) {
+            this.key = key;
+            this.data = data;
+            this.expiresAt = expiresAt;
         }
     }
 
     private static class PendingQuery {
         final IpPacket requestPacket;
         final String queryName;
+        final String cacheKey;
+        // Sent with the upstream transaction id; clientId is the one the reply must carry.
+        final byte[] query;
+        final int serverPort;
+        final Upstream upstream;
+        final Shard shard;
         final long sentAt;
+        volatile int clientId;
+        volatile int sends = 1;
+        // Timeout of the latest send, doubled per retransmission of this query only.
+        volatile long rto;
+        volatile long retransmitAt;
+        volatile Upstream hedge;
+        volatile long hedgeSentAt;
+        // Upstream of the other address family this query races against, sent after RACE_DELAY_MS.
+        volatile Upstream race;
+        volatile long raceSentAt;
+        // Sampled for tracing; its upstream round trip is an open async span until answered.
+        volatile boolean traced;
 
-        PendingQuery(IpPacket requestPacket, String queryName, long sentAt) {
+        PendingQuery(IpPacket requestPacket, String queryName, String cacheKey, byte[] query,
+                     int serverPort, Upstream upstream, Shard shard, long sentAt) {
             this.requestPacket = requestPacket;
             this.queryName = queryName;
+            this.cacheKey = cacheKey;
+            this.query = query;
+            this.serverPort = serverPort;
+            this.upstream = upstream;
+            this.shard = shard;
             this.sentAt = sentAt;
+            this.rto = upstream.getRtt().getRto();
+            this.retransmitAt = sentAt + rto;
+        }
+
+        /**
+         * @return This query as if first sent to {@code target} at {@code now}, keeping its
+         * client and tracing state.
+         */
+        PendingQuery movedTo(Upstream target, long now) {
+            PendingQuery moved = new PendingQuery(requestPacket, queryName, cacheKey, query,
+                    serverPort, target, shard, now);
+            moved.clientId = clientId;
+            moved.race = race == target ? null : race;
+            moved.traced = traced;
+            return moved;
+        }
+    }
+
+    /**
+     * A query-processing worker with its own slice of the DNS cache. In inline mode the single
+     * shard has no queue and runs on the TUN reader thread.
+     */
+    private class Shard implements Runnable {
+        final int index;
+        final Map<String, CachedDnsResponse> cache = new ConcurrentHashMap<>();
+        final BlockingQueue<byte[]> queue;
+        Thread thread;
+
+        Shard(int index, boolean pipelined) {
+            this.index = index;
+            this.queue = pipelined ? new ArrayBlockingQueue<>(SHARD_QUEUE_SIZE) : null;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    byte[] packetData = queue.poll(SELECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    if (packetData != null) {
+                        handleDnsRequest(packetData, this);
+                    }
+                }
+            } catch (InterruptedException ignored) {
+            }
         }
     }
 
     public static class Builder {
         private String dnsServerIp;
-        private Predicate<String> dnsQueryCallback = query -> true;
+        private List<String> secondaryDnsServerIps = Collections.emptyList();
+        private BiPredicate<String, Integer> dnsQueryCallback = (query, qtype) -> true;
         private FileInputStream inputStream;
         private FileOutputStream outputStream;
         private VpnService vpnService;
+        private int shards = 1;
+        private int mtu = DEFAULT_MTU;
+        private BlockResponder blockResponder = new BlockResponder(BlockResponder.Mode.NXDOMAIN, 300);
+        private QueryPolicy queryPolicy = new QueryPolicy(true, false);
+        private boolean ipv6Available = true;
+        private QueryRateLimiter rateLimiter = new QueryRateLimiter(0, 0);
+        private QueryTracer tracer = QueryTracer.DISABLED;
+        private long startRequestedAt;
+        private List<CachedAnswer> warmCache = Collections.emptyList();
+        private DiskDnsCache diskCache;
+        private SocketOwnerCache socketOwners;
 
         public Builder dnsServerIp(String dnsServerIp) {
             this.dnsServerIp = dnsServerIp;
             return this;
         }
 
-        public Builder dnsQueryCallback(Predicate<String> dnsQueryCallback) {
+        public Builder secondaryDnsServerIps(List<String> secondaryDnsServerIps) {
+            this.secondaryDnsServerIps = secondaryDnsServerIps;
+            return this;
+        }
+
+        /**
+         * Given a query name and its QTYPE, returns whether the query is blocked.
+         */
+        public Builder dnsQueryCallback(BiPredicate<String, Integer> dnsQueryCallback) {
             this.dnsQueryCallback = dnsQueryCallback;
             return this;
         }
@@ -401,6 +1374,97 @@ public class DnsHandler implements Runnable {
             return this;
         }
 
+        /**
+         * Number of worker threads queries are sharded across by name. 1 (the default) handles
+         * every query inline on the TUN reader thread.
+         */
+        public Builder shards(int shards) {
+            this.shards = shards;
+            return this;
+        }
+
+        /**
+         * MTU of the TUN interface. Larger replies are fragmented before being written.
+         */
+        public Builder mtu(int mtu) {
+            this.mtu = mtu;
+            return this;
+        }
+
+        public Builder blockResponder(BlockResponder blockResponder) {
+            this.blockResponder = blockResponder;
+            return this;
+        }
+
+        /**
+         * Decides which query types are answered locally. By default every query is resolved.
+         */
+        public Builder queryPolicy(QueryPolicy queryPolicy) {
+            this.queryPolicy = queryPolicy;
+            return this;
+        }
+
+        /**
+         * Whether the underlying network has IPv6 connectivity when the handler starts; see
+         * {@link DnsHandler#setIpv6Available(boolean)}. Assumed by default.
+         */
+        public Builder ipv6Available(boolean ipv6Available) {
+            this.ipv6Available = ipv6Available;
+            return this;
+        }
+
+        /**
+         * Limits queries per source. Over-limit queries are answered from the cache or refused,
+         * never forwarded. By default there is no limit.
+         */
+        public Builder rateLimiter(QueryRateLimiter rateLimiter) {
+            this.rateLimiter = rateLimiter;
+            return this;
+        }
+
+        /**
+         * Seeds the cache, e.g. with entries restored from an engine snapshot. Expired entries are ignored.
+         */
+        public Builder warmCache(List<CachedAnswer> warmCache) {
+            this.warmCache = warmCache;
+            return this;
+        }
+
+        /**
+         * Optional second cache tier consulted on memory-cache misses. The handler closes it when it stops.
+         */
+        public Builder diskCache(DiskDnsCache diskCache) {
+            this.diskCache = diskCache;
+            return this;
+        }
+
+        /**
+         * Receives the stage spans of sampled queries. By default nothing is traced.
+         */
+        public Builder tracer(QueryTracer tracer) {
+            this.tracer = tracer;
+            return this;
+        }
+
+        /**
+         * Wall-clock time the user asked for the VPN; the time to the first forwarded answer is
+         * measured from it.
+         */
+        public Builder startRequestedAt(long startRequestedAt) {
+            this.startRequestedAt = startRequestedAt;
+            return this;
+        }
+
+        /**
+         * Attributes queries to the app that sent them, for per-app stats, and rate-limits
+         * apps whose socket owner is already cached as a whole. Without it all queries count
+         * as from an unknown app.
+         */
+        public Builder socketOwners(SocketOwnerCache socketOwners) {
+            this.socketOwners = socketOwners;
+            return this;
+        }
+
         public DnsHandler build() throws IOException {
             if (dnsServerIp == null || inputStream == null || outputStream == null || vpnService == null) {
                 throw new IllegalStateException("DNS server IP, InputStream, OutputStream, and VpnService are required");
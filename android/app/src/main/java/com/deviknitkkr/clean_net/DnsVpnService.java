@@ -1,5 +1,6 @@
 package com.deviknitkkr.clean_net;
 
+import android.app.ActivityManager;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
@@ -7,21 +8,45 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
 import android.net.ConnectivityManager;
 import android.net.LinkProperties;
 import android.net.Network;
 import android.net.VpnService;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.util.Log;
 
+import com.deviknitkkr.clean_net.blocklist.BlocklistFetcher;
+import com.deviknitkkr.clean_net.blocklist.BlocklistMerger;
+import com.deviknitkkr.clean_net.blocklist.CompactTrie;
+import com.deviknitkkr.clean_net.blocklist.DomainMatcher;
+import com.deviknitkkr.clean_net.blocklist.PatternRules;
+import com.deviknitkkr.clean_net.blocklist.RuleParser;
+import com.deviknitkkr.clean_net.blocklist.SubscriptionManager;
+import com.deviknitkkr.clean_net.blocklist.TypedRules;
 import com.deviknitkkr.clean_net.blocklist.WildcardTrie;
+import com.deviknitkkr.clean_net.cache.DiskDnsCache;
+import com.deviknitkkr.clean_net.memory.MemoryBudget;
+import com.deviknitkkr.clean_net.net.AndroidNetworkMonitor;
+import com.deviknitkkr.clean_net.net.ConnectionOwnerResolver;
+import com.deviknitkkr.clean_net.net.NetworkMonitor;
+import com.deviknitkkr.clean_net.net.NetworkState;
+import com.deviknitkkr.clean_net.net.ProcNetUdpResolver;
+import com.deviknitkkr.clean_net.net.SocketOwnerCache;
+import com.deviknitkkr.clean_net.net.SocketOwnerResolver;
+import com.deviknitkkr.clean_net.net.UpstreamSwitcher;
+import com.deviknitkkr.clean_net.trace.AndroidTraceSink;
+import com.deviknitkkr.clean_net.trace.QueryTracer;
 import com.deviknitkkr.clean_net.utils.SubNetUtils;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.net.Inet4Address;
+import java.io.IOException;
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -30,26 +55,80 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 public class DnsVpnService extends VpnService {
     private static final String TAG = "DnsVpnService";
     private static final String CHANNEL_ID = "clean_net_vpn";
     private static final int NOTIFICATION_ID = 1;
     private static final String PREFS_NAME = "clean_net_prefs";
+    private static final String SNAPSHOT_FILE = "engine.snapshot";
+    private static final String SNAPSHOT_CACHE_FILE = "engine.cache";
+    private static final int SNAPSHOT_CACHE_ENTRIES = 64;
+    private static final int SNAPSHOT_INTERVAL_TICKS = 60;
+    private static final String DISK_CACHE_FILE = "dns-cache.bin";
+    private static final int DISK_CACHE_SLOTS = 2048;
+    /**
+     * Custom rules, one per line, written by the Flutter side before it starts the VPN or
+     * updates the list. Only its path crosses the Binder, so the list size isn't limited by
+     * the transaction buffer.
+     */
+    public static final String CUSTOM_RULES_FILE = "custom-rules.txt";
 
     public static final String ACTION_START = "START";
     public static final String ACTION_STOP = "STOP";
     public static final String EXTRA_DNS_SERVER = "DNS_SERVER";
-    public static final String EXTRA_BLOCKED_DOMAINS = "BLOCKED_DOMAINS";
+    public static final String EXTRA_BLOCKLIST_PATH = "BLOCKLIST_PATH";
+    public static final String EXTRA_BLOCK_MODE = "BLOCK_MODE";
+    public static final String EXTRA_BLOCK_TTL = "BLOCK_TTL";
+    public static final String EXTRA_ANSWER_HTTPS_LOCALLY = "ANSWER_HTTPS_LOCALLY";
+    /** Wall-clock time the user asked for the VPN, for the time-to-first-answer metric. */
+    public static final String EXTRA_START_REQUESTED_AT = "START_REQUESTED_AT";
+    private static final int DEFAULT_BLOCK_TTL = 300;
+    private static final int VPN_MTU = 1500;
+    private static final int RATE_LIMIT_QPS = 50;
+    private static final int RATE_LIMIT_BURST = 200;
+    // Share of queries whose stages show up as sections in a Perfetto trace of the app.
+    private static final double TRACE_SAMPLE_RATE = 0.01;
+    private static final int DEFAULT_MEMORY_CLASS_MB = 64;
+    // Blocks nothing; active until the first blocklist of a start is ready.
+    private static final DomainMatcher PASS_THROUGH = domain -> false;
+    // Blocked queries for domains beyond the stats limit are counted under this key.
+    private static final String OTHER_DOMAINS = "(other domains)";
 
     public static volatile boolean isRunning = false;
     private static final Map<String, int[]> blockedStats = new HashMap<>();
+    private static final Set<String> changedStats = new HashSet<>();
+    private static int statsGeneration;
+    private static volatile int maxStatsEntries = Integer.MAX_VALUE;
+    private static final ExecutorService blocklistExecutor =
+            Executors.newSingleThreadExecutor(lowPriorityThreadFactory("blocklist"));
+    // Brings the tunnel up and down off the main thread; one thread, so a stop queued
+    // behind a start runs after it.
+    private static final ExecutorService vpnExecutor =
+            Executors.newSingleThreadExecutor(r -> new Thread(r, "vpn-start"));
+    private static final ExecutorService blocklistParseExecutor = Executors.newFixedThreadPool(
+            Math.min(4, Runtime.getRuntime().availableProcessors()), lowPriorityThreadFactory("blocklist-parse"));
 
     private ParcelFileDescriptor vpnInterface = null;
-    private volatile WildcardTrie wildcardTrie;
-    private DnsHandler dnsHandler;
+    private volatile DomainMatcher matcher = PASS_THROUGH;
+    private volatile TypedRules typedRules = new TypedRules();
+    private volatile PatternRules patternRules = new PatternRules();
+    private volatile File customRulesFile;
+    private volatile DnsHandler dnsHandler;
+    private NetworkMonitor networkMonitor;
     private String rootDns;
+    private BlockResponder.Mode blockMode = BlockResponder.Mode.NXDOMAIN;
+    private int blockTtl = DEFAULT_BLOCK_TTL;
+    private boolean answerHttpsLocally;
     private Thread notificationUpdater;
+    private MemoryBudget memoryBudget;
+    private volatile long startRequestedAt;
+    private volatile long blocklistReadyAt;
 
     private static volatile DnsVpnService activeInstance;
 
@@ -57,22 +136,289 @@ public class DnsVpnService extends VpnService {
     public void onCreate() {
         super.onCreate();
         activeInstance = this;
+        ActivityManager am = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+        memoryBudget = new MemoryBudget(am != null ? am.getMemoryClass() : DEFAULT_MEMORY_CLASS_MB);
+        memoryBudget.addListener(this::applyMemoryLimits);
     }
 
-    public static void updateBlocklist(List<String> domains) {
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        memoryBudget.onTrimMemory(level, System.currentTimeMillis());
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        memoryBudget.onLowMemory(System.currentTimeMillis());
+    }
+
+    /**
+     * Applies new limits to the log, the blocked-domain stats and the running handler.
+     * Called on whichever thread reported the change.
+     */
+    private void applyMemoryLimits(MemoryBudget.Limits limits) {
+        AppLogBuffer.getInstance().setCapacity(limits.logEntries);
+        setMaxStatsEntries(limits.statsEntries);
+        DnsHandler handler = dnsHandler;
+        if (handler != null) {
+            handler.setMemoryLimits(limits.cacheEntries, limits.pendingQueries);
+        }
+        Log.d(TAG, "Memory limits: " + limits);
+    }
+
+    /**
+     * @param rulesPath File holding the new custom rules, one per line.
+     */
+    public static void updateBlocklist(String rulesPath) {
         DnsVpnService instance = activeInstance;
         if (instance != null) {
-            instance.buildAndSwapBlocklist(domains);
+            instance.customRulesFile = new File(rulesPath);
+            instance.rebuildBlocklistAsync();
         }
     }
 
-    private void buildAndSwapBlocklist(List<String> domains) {
-        WildcardTrie newTrie = new WildcardTrie();
-        for (String domain : domains) {
-            newTrie.insert(domain);
+    /**
+     * Streams the custom rules file into {@code sink} without holding the list in memory.
+     *
+     * @return Number of rules read.
+     */
+    private int loadCustomRules(Consumer<String> sink) {
+        File file = customRulesFile;
+        if (file == null) return 0;
+        try {
+            return BlocklistFetcher.loadCached(file, sink);
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading custom rules " + file, e);
+            return 0;
         }
-        wildcardTrie = newTrie;
-        Log.d(TAG, "Blocklist updated: " + domains.size() + " domains");
+    }
+
+    /**
+     * Downloads and merges the subscription lists on the background blocklist executor. The
+     * trie built by the merge, plus the custom rules, replaces the active one once it is complete.
+     *
+     * @param callback Called on the blocklist thread with either the result or the error.
+     */
+    public static void refreshSubscription(Context context, List<String> urls,
+                                           BiConsumer<SubscriptionManager.RefreshResult, IOException> callback) {
+        SubscriptionManager subscriptions = subscriptionManager(context);
+        blocklistExecutor.execute(() -> {
+            DnsVpnService instance = activeInstance;
+            TypedRules newTypedRules = new TypedRules();
+            PatternRules newPatternRules = new PatternRules();
+            try {
+                // Plain rules arrive in the result's trie, so only the others are streamed here.
+                SubscriptionManager.RefreshResult result = subscriptions.refresh(urls, rule -> {
+                    if (!newTypedRules.add(rule)) newPatternRules.add(rule);
+                });
+                if (result.updated && instance != null) {
+                    instance.loadCustomRules(ruleSink(result.trie, newTypedRules, newPatternRules));
+                    instance.installMatcher(CompactTrie.compile(result.trie), newTypedRules, newPatternRules);
+                }
+                Log.d(TAG, "Subscription " + (result.updated ? "updated" : "unchanged") + ": "
+                        + result.ruleCount + " domains");
+                for (BlocklistMerger.SourceStats stats : result.sources) {
+                    AppLogBuffer.getInstance().log(TAG, "Blocklist source " + stats);
+                }
+                callback.accept(result, null);
+            } catch (IOException e) {
+                Log.e(TAG, "Error refreshing subscription", e);
+                callback.accept(null, e);
+            }
+        });
+    }
+
+    /**
+     * Finds the custom domains that the subscription already holds. Releases that downloaded
+     * the list in the UI stored it with the custom domains, so after an upgrade the old
+     * download would be merged in a second time and shown as added by the user.
+     *
+     * @param path     Custom domains, one per line.
+     * @param callback Called on the blocklist thread with the domains the subscription doesn't
+     *                 hold, or the error.
+     */
+    public static void filterSubscribedDomains(Context context, String path,
+                                               BiConsumer<List<String>, IOException> callback) {
+        SubscriptionManager subscriptions = subscriptionManager(context);
+        blocklistExecutor.execute(() -> {
+            try {
+                Set<String> subscribed = new HashSet<>();
+                subscriptions.load(subscribed::add);
+                List<String> kept = new ArrayList<>();
+                BlocklistFetcher.loadCached(new File(path), line -> {
+                    String rule = RuleParser.parseLine(line);
+                    if (!subscribed.contains(rule != null ? rule : line)) kept.add(line);
+                });
+                Log.d(TAG, "Custom domains: " + kept.size() + " kept, " + subscribed.size() + " subscribed");
+                callback.accept(kept, null);
+            } catch (IOException e) {
+                Log.e(TAG, "Error filtering custom domains", e);
+                callback.accept(null, e);
+            }
+        });
+    }
+
+    public static int getSubscriptionRuleCount(Context context) {
+        return subscriptionManager(context).ruleCount();
+    }
+
+    private static SubscriptionManager subscriptionManager(Context context) {
+        return new SubscriptionManager(context.getFilesDir(), blocklistParseExecutor);
+    }
+
+    /**
+     * @return A consumer adding rules limited to certain query types to {@code typed}, keyword
+     * and regex rules to {@code patterns}, and all other rules to {@code trie}.
+     */
+    private static Consumer<String> ruleSink(WildcardTrie trie, TypedRules typed, PatternRules patterns) {
+        return rule -> {
+            if (!typed.add(rule) && !patterns.add(rule) && !PatternRules.isPatternRule(rule)) {
+                trie.insert(rule);
+            }
+        };
+    }
+
+    private static ThreadFactory lowPriorityThreadFactory(String name) {
+        return r -> {
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, name);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        };
+    }
+
+    private void rebuildBlocklistAsync() {
+        SubscriptionManager subscriptions = subscriptionManager(this);
+        blocklistExecutor.execute(() -> {
+            WildcardTrie newTrie = new WildcardTrie();
+            TypedRules newTypedRules = new TypedRules();
+            PatternRules newPatternRules = new PatternRules();
+            Consumer<String> sink = ruleSink(newTrie, newTypedRules, newPatternRules);
+            int custom = loadCustomRules(sink);
+            int subscribed = 0;
+            try {
+                subscribed = subscriptions.load(sink);
+            } catch (IOException e) {
+                Log.e(TAG, "Error loading cached subscription", e);
+            }
+            installMatcher(CompactTrie.compile(newTrie), newTypedRules, newPatternRules);
+            Log.d(TAG, "Blocklist updated: " + custom + " custom, " + subscribed + " subscribed domains");
+        });
+    }
+
+    /**
+     * Activates a compiled matcher with its type-specific and pattern rules and persists them
+     * for warm restarts. Runs on the blocklist executor.
+     */
+    private void installMatcher(CompactTrie compiled, TypedRules typed, PatternRules patterns) {
+        patterns.compile();
+        if (!patterns.isEmpty()) {
+            AppLogBuffer.getInstance().log(TAG, "Pattern rules: " + patterns.getRules().size() + " in "
+                    + patterns.getDfaCount() + " regex automata, " + patterns.getRejectedCount() + " too complex");
+        }
+        matcher = compiled;
+        typedRules = typed;
+        patternRules = patterns;
+        if (blocklistReadyAt == 0) {
+            blocklistReadyAt = System.currentTimeMillis();
+            AppLogBuffer.getInstance().log(TAG, "Blocklist ready " + (blocklistReadyAt - startRequestedAt)
+                    + " ms after start");
+        }
+        saveSnapshot();
+    }
+
+    /**
+     * Filters with the blocklist of the last snapshot while the current one is still being
+     * built, unless a blocklist is already active. Runs on the blocklist executor, so it
+     * never replaces a build that finished first.
+     */
+    private void loadSnapshotBlocklist() {
+        File snapshotFile = new File(getFilesDir(), SNAPSHOT_FILE);
+        if (matcher != PASS_THROUGH || !snapshotFile.exists()) return;
+        try {
+            applySnapshotRules(EngineSnapshot.load(snapshotFile));
+            AppLogBuffer.getInstance().log(TAG, "Filtering with the snapshot blocklist until the new one is built");
+        } catch (IOException e) {
+            Log.e(TAG, "Error loading snapshot blocklist", e);
+        }
+    }
+
+    private void applySnapshotRules(EngineSnapshot snapshot) {
+        TypedRules typed = new TypedRules();
+        PatternRules patterns = new PatternRules();
+        snapshot.sideRules.forEach(ruleSink(new WildcardTrie(), typed, patterns));
+        patterns.compile();
+        matcher = snapshot.matcher;
+        typedRules = typed;
+        patternRules = patterns;
+    }
+
+    private List<String> sideRules() {
+        List<String> rules = new ArrayList<>(typedRules.getRules());
+        rules.addAll(patternRules.getRules());
+        return rules;
+    }
+
+    private void saveSnapshot() {
+        DomainMatcher current = matcher;
+        if (!(current instanceof CompactTrie)) return;
+        try {
+            EngineSnapshot.write(new File(getFilesDir(), SNAPSHOT_FILE), rootDns, blockMode, blockTtl,
+                    answerHttpsLocally, (CompactTrie) current, sideRules());
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving engine snapshot", e);
+        }
+        saveSnapshotCache();
+    }
+
+    /**
+     * Saves only the hottest cache entries; the blocklist part of the snapshot is rewritten
+     * when a new blocklist is installed.
+     */
+    private void saveSnapshotCache() {
+        DnsHandler handler = dnsHandler;
+        if (handler == null) return;
+        try {
+            EngineSnapshot.writeCache(new File(getFilesDir(), SNAPSHOT_CACHE_FILE),
+                    handler.exportCache(SNAPSHOT_CACHE_ENTRIES));
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving snapshot cache", e);
+        }
+    }
+
+    /**
+     * Restarts filtering from the last engine snapshot after the process was killed. Only
+     * runs while the user still has the VPN enabled and the VPN permission is granted.
+     *
+     * @return Whether the VPN was restored.
+     */
+    private boolean restoreFromSnapshot() {
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        File snapshotFile = new File(getFilesDir(), SNAPSHOT_FILE);
+        if (!prefs.getBoolean("vpn_enabled", false) || !snapshotFile.exists() || VpnService.prepare(this) != null) {
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        startRequestedAt = start;
+        try {
+            EngineSnapshot snapshot = EngineSnapshot.load(snapshotFile);
+            rootDns = snapshot.rootDns;
+            blockMode = snapshot.blockMode;
+            blockTtl = snapshot.blockTtl;
+            answerHttpsLocally = snapshot.answerHttpsLocally;
+            customRulesFile = new File(getFilesDir(), CUSTOM_RULES_FILE);
+            applySnapshotRules(snapshot);
+            blocklistReadyAt = System.currentTimeMillis();
+            startVpn(EngineSnapshot.loadCache(new File(getFilesDir(), SNAPSHOT_CACHE_FILE)));
+        } catch (IOException e) {
+            Log.e(TAG, "Error restoring engine snapshot", e);
+            return false;
+        }
+        AppLogBuffer.getInstance().log(TAG, "Restored from snapshot in " + (System.currentTimeMillis() - start) + " ms");
+        return isRunning;
     }
 
     private void createNotificationChannel() {
@@ -116,15 +462,36 @@ public class DnsVpnService extends VpnService {
                 .build();
     }
 
-    private List<InetAddress> getSystemDns() {
+    /**
+     * Must be called before the VPN is established; afterwards the active network is the VPN itself.
+     */
+    private NetworkState getActiveNetworkState() {
         ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
         if (cm != null) {
             Network activeNetwork = cm.getActiveNetwork();
-            return Optional.ofNullable(cm.getLinkProperties(activeNetwork))
+            LinkProperties link = cm.getLinkProperties(activeNetwork);
+            List<InetAddress> dnsServers = Optional.ofNullable(link)
                     .map(LinkProperties::getDnsServers)
                     .orElse(Collections.emptyList());
+            return new NetworkState(String.valueOf(activeNetwork), dnsServers,
+                    AndroidNetworkMonitor.hasGlobalIpv6(link), null);
+        }
+        // Without connectivity information, don't suppress AAAA queries.
+        return new NetworkState(null, Collections.emptyList(), true, null);
+    }
+
+    /**
+     * Hands a new upstream selection to the running handler. Called on the connectivity thread.
+     */
+    private void onUpstreamsChanged(UpstreamSwitcher.Selection selection, NetworkState network, boolean flushCache) {
+        DnsHandler handler = dnsHandler;
+        if (handler == null) return;
+        Log.d(TAG, "Network changed to " + network + ", upstreams " + selection);
+        try {
+            handler.updateUpstreams(selection.primary, selection.secondaries, network.network, flushCache);
+        } catch (IOException e) {
+            Log.e(TAG, "Error switching upstreams", e);
         }
-        return Collections.emptyList();
     }
 
     @Override
@@ -133,13 +500,29 @@ public class DnsVpnService extends VpnService {
             String action = intent.getAction();
             if (ACTION_START.equals(action)) {
                 rootDns = intent.getStringExtra(EXTRA_DNS_SERVER);
-                Set<String> blockedDomains = new HashSet<>(Objects.requireNonNull(
-                        intent.getStringArrayListExtra(EXTRA_BLOCKED_DOMAINS)));
-                wildcardTrie = new WildcardTrie();
-                startVpn(blockedDomains);
+                blockMode = BlockResponder.Mode.parse(intent.getStringExtra(EXTRA_BLOCK_MODE));
+                blockTtl = intent.getIntExtra(EXTRA_BLOCK_TTL, DEFAULT_BLOCK_TTL);
+                answerHttpsLocally = intent.getBooleanExtra(EXTRA_ANSWER_HTTPS_LOCALLY, false);
+                customRulesFile = new File(Objects.requireNonNull(intent.getStringExtra(EXTRA_BLOCKLIST_PATH)));
+                startRequestedAt = intent.getLongExtra(EXTRA_START_REQUESTED_AT, System.currentTimeMillis());
+                blocklistReadyAt = 0;
+                // The blocklist is built in the background while the tunnel comes up. Until
+                // then the previous blocklist filters, or queries pass through unfiltered.
+                blocklistExecutor.execute(this::loadSnapshotBlocklist);
+                rebuildBlocklistAsync();
+                vpnExecutor.execute(() -> startVpn(Collections.emptyList()));
             } else if (ACTION_STOP.equals(action)) {
-                stopVpn();
+                vpnExecutor.execute(this::stopVpn);
             }
+        } else {
+            vpnExecutor.execute(this::restoreOrStop);
+        }
+        return START_STICKY;
+    }
+
+    private void restoreOrStop() {
+        if (restoreFromSnapshot()) {
+            Log.d(TAG, "Service restarted with null intent, VPN restored from snapshot");
         } else {
             Log.d(TAG, "Service restarted with null intent, VPN no longer active");
             isRunning = false;
@@ -147,14 +530,23 @@ public class DnsVpnService extends VpnService {
             stopForeground(STOP_FOREGROUND_REMOVE);
             stopSelf();
         }
-        return START_STICKY;
     }
 
-    private void startVpn(Set<String> blockedDomains) {
+    /**
+     * Brings up the tunnel and the handler. Runs on {@link #vpnExecutor}, like
+     * {@link #stopVpn()}, so the main thread never waits for subnet selection or
+     * {@code establish()}; the blocklist is never built here.
+     */
+    private void startVpn(List<DnsHandler.CachedAnswer> warmCache) {
         SubNetUtils subNetUtils = new SubNetUtils();
-        List<String> localSubnets = subNetUtils.getLocalSubnets();
+        List<SubNetUtils.Subnet> localSubnets = subNetUtils.getLocalSubnets();
+        Log.d(TAG, "Local subnets: " + localSubnets);
         Map<String, String> availableSubnets = subNetUtils.findAvailableSubnets(localSubnets);
 
+        NetworkState activeNetwork = getActiveNetworkState();
+        List<InetAddress> systemDns = activeNetwork.dnsServers;
+        Log.d(TAG, "System DNS: " + systemDns);
+
         if (availableSubnets == null) {
             Log.e(TAG, "No available subnets found!");
             return;
@@ -163,17 +555,13 @@ public class DnsVpnService extends VpnService {
         String ipv4Subnet = availableSubnets.get("ipv4");
         String ipv6Subnet = availableSubnets.get("ipv6");
 
-        Log.d(TAG, "Local subnets: " + localSubnets);
         Log.d(TAG, "Available IPv4 subnet: " + ipv4Subnet);
         Log.d(TAG, "Available IPv6 subnet: " + ipv6Subnet);
 
-        List<InetAddress> systemDns = getSystemDns();
-        Log.d(TAG, "System DNS: " + systemDns);
-
         if (vpnInterface == null) {
             Builder builder = new Builder()
                     .setSession("CleanNet")
-                    .setMtu(1500);
+                    .setMtu(VPN_MTU);
 
             if (ipv4Subnet != null) {
                 String ipv4Address = ipv4Subnet.split("/")[0];
@@ -204,49 +592,77 @@ public class DnsVpnService extends VpnService {
                 FileInputStream in = new FileInputStream(vpnInterface.getFileDescriptor());
                 FileOutputStream out = new FileOutputStream(vpnInterface.getFileDescriptor());
 
+                UpstreamSwitcher upstreamSwitcher = new UpstreamSwitcher(rootDns, activeNetwork, this::onUpstreamsChanged);
+                UpstreamSwitcher.Selection upstreams = upstreamSwitcher.getSelection();
+
                 dnsHandler = new DnsHandler.Builder()
-                        .dnsServerIp(rootDns == null || rootDns.isBlank() ?
-                                systemDns.stream()
-                                        .filter(x -> x instanceof Inet4Address)
-                                        .map(InetAddress::getHostAddress)
-                                        .findFirst()
-                                        .orElse("1.1.1.1")
-                                : rootDns
-                        )
+                        .dnsServerIp(upstreams.primary)
+                        .secondaryDnsServerIps(upstreams.secondaries)
                         .inputStream(in)
                         .outputStream(out)
                         .vpnService(this)
-                        .dnsQueryCallback(domain -> {
-                            Log.d(TAG, "Received query: " + domain);
-                            boolean blocked = wildcardTrie.matches(domain);
+                        .shards(Runtime.getRuntime().availableProcessors())
+                        .mtu(VPN_MTU)
+                        .warmCache(warmCache)
+                        .diskCache(new DiskDnsCache(new File(getCacheDir(), DISK_CACHE_FILE), DISK_CACHE_SLOTS))
+                        .blockResponder(new BlockResponder(blockMode, blockTtl))
+                        .queryPolicy(new QueryPolicy(activeNetwork.ipv6, answerHttpsLocally))
+                        .ipv6Available(activeNetwork.ipv6)
+                        .rateLimiter(new QueryRateLimiter(RATE_LIMIT_QPS, RATE_LIMIT_BURST))
+                        .tracer(new QueryTracer(new AndroidTraceSink(), TRACE_SAMPLE_RATE))
+                        .startRequestedAt(startRequestedAt)
+                        .socketOwners(new SocketOwnerCache(Collections.singletonList(socketOwnerResolver())))
+                        .dnsQueryCallback((domain, qtype) -> {
+                            Log.d(TAG, "Received query: " + domain + " type " + qtype);
+                            boolean blocked = matcher.matches(domain) || patternRules.matches(domain)
+                                    || typedRules.matches(domain, qtype);
                             if (blocked) {
-                                synchronized (blockedStats) {
-                                    blockedStats.computeIfAbsent(domain, k -> new int[1])[0]++;
-                                }
+                                countBlocked(domain);
                             }
                             return blocked;
                         })
                         .build();
+                MemoryBudget.Limits limits = memoryBudget.getLimits();
+                dnsHandler.setMemoryLimits(limits.cacheEntries, limits.pendingQueries);
 
-                for (String domain : blockedDomains) {
-                    wildcardTrie.insert(domain);
-                }
-                synchronized (blockedStats) {
-                    blockedStats.clear();
-                }
-                blockedDomains = null;
+                clearBlockedStats();
 
                 createNotificationChannel();
                 startForeground(NOTIFICATION_ID, buildNotification());
 
                 new Thread(dnsHandler).start();
 
+                ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+                if (cm != null) {
+                    networkMonitor = new AndroidNetworkMonitor(cm);
+                    networkMonitor.start(new NetworkMonitor.Listener() {
+                        @Override
+                        public void onNetworkChanged(NetworkState state) {
+                            DnsHandler handler = dnsHandler;
+                            if (handler != null) {
+                                handler.setIpv6Available(state.ipv6);
+                            }
+                            upstreamSwitcher.onNetworkChanged(state);
+                        }
+
+                        @Override
+                        public void onNetworkLost() {
+                            upstreamSwitcher.onNetworkLost();
+                        }
+                    });
+                }
+
                 notificationUpdater = new Thread(() -> {
+                    int ticks = 0;
                     while (!Thread.currentThread().isInterrupted()) {
                         try {
                             Thread.sleep(10_000);
+                            memoryBudget.relax(System.currentTimeMillis());
                             NotificationManager nm = getSystemService(NotificationManager.class);
                             if (nm != null) nm.notify(NOTIFICATION_ID, buildNotification());
+                            if (++ticks % SNAPSHOT_INTERVAL_TICKS == 0) {
+                                blocklistExecutor.execute(this::saveSnapshotCache);
+                            }
                         } catch (InterruptedException e) {
                             break;
                         }
@@ -267,6 +683,10 @@ public class DnsVpnService extends VpnService {
         Log.d(TAG, "Stopping DNS Proxy");
         isRunning = false;
         saveVpnState(false);
+        if (networkMonitor != null) {
+            networkMonitor.stop();
+            networkMonitor = null;
+        }
         if (notificationUpdater != null) {
             notificationUpdater.interrupt();
             notificationUpdater = null;
@@ -279,9 +699,7 @@ public class DnsVpnService extends VpnService {
             }
             vpnInterface = null;
         }
-        synchronized (blockedStats) {
-            blockedStats.clear();
-        }
+        clearBlockedStats();
         stopForeground(STOP_FOREGROUND_REMOVE);
         stopSelf();
     }
@@ -305,9 +723,120 @@ public class DnsVpnService extends VpnService {
         return snapshot;
     }
 
+    /**
+     * @return The owner lookup this release allows: {@code getConnectionOwnerUid} from Android
+     * 10, the {@code /proc/net} socket tables before.
+     */
+    private SocketOwnerResolver socketOwnerResolver() {
+        ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && cm != null) {
+            return new ConnectionOwnerResolver(cm);
+        }
+        return new ProcNetUdpResolver();
+    }
+
+    /**
+     * @return Per-app query counters of the running handler, most queries first, each with
+     * the UID and the app's package name. Empty when the VPN is stopped.
+     */
+    public static List<Map<String, Object>> getAppStats() {
+        DnsVpnService instance = activeInstance;
+        DnsHandler handler = instance != null ? instance.dnsHandler : null;
+        List<Map<String, Object>> apps = new ArrayList<>();
+        if (handler == null) return apps;
+        PackageManager pm = instance.getPackageManager();
+        for (Map.Entry<Integer, Map<String, Long>> entry : handler.getAppStats().entrySet()) {
+            int uid = entry.getKey();
+            String name = uid == SocketOwnerResolver.UNKNOWN_UID ? null : pm.getNameForUid(uid);
+            Map<String, Object> app = new HashMap<>(entry.getValue());
+            app.put("uid", (long) uid);
+            app.put("app", name != null ? name : "(unknown)");
+            apps.add(app);
+        }
+        apps.sort((a, b) -> Long.compare((Long) b.get("queries"), (Long) a.get("queries")));
+        return apps;
+    }
+
+    /**
+     * @return Cache, prefetch and query-policy counters of the running handler and the startup
+     * timings, empty when the VPN is stopped.
+     */
+    public static Map<String, Long> getQueryStats() {
+        DnsVpnService instance = activeInstance;
+        DnsHandler handler = instance != null ? instance.dnsHandler : null;
+        if (handler == null) return new HashMap<>();
+        Map<String, Long> stats = handler.getQueryStats();
+        long readyAt = instance.blocklistReadyAt;
+        if (readyAt != 0) {
+            stats.put("startToBlocklistMs", readyAt - instance.startRequestedAt);
+        }
+        return stats;
+    }
+
+    private static void countBlocked(String domain) {
+        synchronized (blockedStats) {
+            String key = domain;
+            if (!blockedStats.containsKey(key) && blockedStats.size() >= maxStatsEntries) {
+                key = OTHER_DOMAINS;
+            }
+            blockedStats.computeIfAbsent(key, k -> new int[1])[0]++;
+            changedStats.add(key);
+        }
+    }
+
+    /**
+     * Caps the number of domains with their own counter. When shrinking, the domains blocked
+     * least often are folded into {@link #OTHER_DOMAINS}, so totals stay correct.
+     */
+    private static void setMaxStatsEntries(int max) {
+        synchronized (blockedStats) {
+            maxStatsEntries = max;
+            if (blockedStats.size() <= max) return;
+            List<Map.Entry<String, int[]>> entries = new ArrayList<>(blockedStats.entrySet());
+            entries.sort((a, b) -> Integer.compare(b.getValue()[0], a.getValue()[0]));
+            int folded = 0;
+            for (Map.Entry<String, int[]> entry : entries.subList(max - 1, entries.size())) {
+                folded += entry.getValue()[0];
+                blockedStats.remove(entry.getKey());
+            }
+            blockedStats.computeIfAbsent(OTHER_DOMAINS, k -> new int[1])[0] += folded;
+            // Removed counters can't be sent as deltas; make telemetry resend everything.
+            changedStats.clear();
+            statsGeneration++;
+        }
+    }
+
     public static void resetBlockedStats() {
+        clearBlockedStats();
+    }
+
+    private static void clearBlockedStats() {
         synchronized (blockedStats) {
             blockedStats.clear();
+            changedStats.clear();
+            statsGeneration++;
+        }
+    }
+
+    /**
+     * Collects blocked-domain counters for the telemetry stream.
+     *
+     * @param out Receives the counters changed since the last call, or all counters if {@code all}.
+     * @return The stats generation, which changes whenever the counters are cleared.
+     */
+    static int collectBlockedStats(Map<String, Integer> out, boolean all) {
+        synchronized (blockedStats) {
+            if (all) {
+                for (Map.Entry<String, int[]> entry : blockedStats.entrySet()) {
+                    out.put(entry.getKey(), entry.getValue()[0]);
+                }
+            } else {
+                for (String domain : changedStats) {
+                    out.put(domain, blockedStats.get(domain)[0]);
+                }
+            }
+            changedStats.clear();
+            return statsGeneration;
         }
     }
 
@@ -315,6 +844,6 @@ public class DnsVpnService extends VpnService {
     public void onDestroy() {
         super.onDestroy();
         activeInstance = null;
-        stopVpn();
+        vpnExecutor.execute(this::stopVpn);
     }
 }
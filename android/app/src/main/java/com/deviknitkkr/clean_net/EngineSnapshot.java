@@ -0,0 +1,170 @@
+package com.deviknitkkr.clean_net;
+
+import com.deviknitkkr.clean_net.blocklist.CompactTrie;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Persisted state of the filtering engine, used to restart the VPN without the Flutter UI.
+ * <p>
+ * The file holds the upstream, block-response and query-policy configuration, the compiled
+ * blocklist as a {@link CompactTrie}, and the rules the trie can't hold: type-specific, keyword
+ * and regex rules. Loading maps the file once and matches straight from the mapping, so restore
+ * time doesn't grow with the list.
+ * <p>
+ * The hottest cache entries change far more often than the blocklist, so they live in a small
+ * file of their own, see {@link #writeCache} and {@link #loadCache}.
+ */
+public class EngineSnapshot {
+    private static final int MAGIC = 0x434E4553; // "CNES"
+    private static final int VERSION = 5;
+    private static final int CACHE_MAGIC = 0x434E4543; // "CNEC"
+    private static final int CACHE_VERSION = 1;
+
+    public final String rootDns;
+    public final BlockResponder.Mode blockMode;
+    public final int blockTtl;
+    public final boolean answerHttpsLocally;
+    public final CompactTrie matcher;
+    public final List<String> sideRules;
+
+    private EngineSnapshot(String rootDns, BlockResponder.Mode blockMode, int blockTtl, boolean answerHttpsLocally,
+                           CompactTrie matcher, List<String> sideRules) {
+        this.rootDns = rootDns;
+        this.blockMode = blockMode;
+        this.blockTtl = blockTtl;
+        this.answerHttpsLocally = answerHttpsLocally;
+        this.matcher = matcher;
+        this.sideRules = sideRules;
+    }
+
+    public static void write(File file, String rootDns, BlockResponder.Mode blockMode, int blockTtl,
+                             boolean answerHttpsLocally, CompactTrie matcher, List<String> sideRules) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, rootDns == null ? "" : rootDns);
+            writeString(out, blockMode.name());
+            out.writeInt(blockTtl);
+            out.writeBoolean(answerHttpsLocally);
+            out.writeInt(sideRules.size());
+            for (String rule : sideRules) {
+                writeString(out, rule);
+            }
+            out.writeInt(matcher.size());
+            matcher.writeTo(out);
+        }
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("Failed to replace " + file);
+        }
+    }
+
+    public static EngineSnapshot load(File file) throws IOException {
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Unsupported engine snapshot " + file);
+            }
+            String rootDns = readString(buffer);
+            BlockResponder.Mode blockMode = BlockResponder.Mode.parse(readString(buffer));
+            int blockTtl = buffer.getInt();
+            boolean answerHttpsLocally = buffer.get() != 0;
+            int sideCount = buffer.getInt();
+            List<String> sideRules = new ArrayList<>(sideCount);
+            for (int i = 0; i < sideCount; i++) {
+                sideRules.add(readString(buffer));
+            }
+            int trieSize = buffer.getInt();
+            ByteBuffer trie = buffer.slice();
+            trie.limit(trieSize);
+            return new EngineSnapshot(rootDns.isEmpty() ? null : rootDns, blockMode, blockTtl, answerHttpsLocally,
+                    CompactTrie.wrap(trie), sideRules);
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt engine snapshot " + file, e);
+        }
+    }
+
+    /**
+     * Replaces the saved hot cache entries, independently of the snapshot itself.
+     */
+    public static void writeCache(File file, List<DnsHandler.CachedAnswer> cache) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(CACHE_MAGIC);
+            out.writeInt(CACHE_VERSION);
+            out.writeInt(cache.size());
+            for (DnsHandler.CachedAnswer answer : cache) {
+                writeString(out, answer.key);
+                out.writeLong(answer.expiresAt);
+                out.writeInt(answer.data.length);
+                out.write(answer.data);
+            }
+        }
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("Failed to replace " + file);
+        }
+    }
+
+    /**
+     * @return The saved hot cache entries, or none if the file is missing or unreadable; a
+     * restore works without them.
+     */
+    public static List<DnsHandler.CachedAnswer> loadCache(File file) {
+        if (!file.exists()) return Collections.emptyList();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != CACHE_MAGIC || in.readInt() != CACHE_VERSION) return Collections.emptyList();
+            int count = in.readInt();
+            List<DnsHandler.CachedAnswer> cache = new ArrayList<>(Math.min(count, 1024));
+            for (int i = 0; i < count; i++) {
+                String key = readString(in);
+                long expiresAt = in.readLong();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                cache.add(new DnsHandler.CachedAnswer(key, data, expiresAt));
+            }
+            return cache;
+        } catch (IOException | RuntimeException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -5,33 +5,59 @@ import android.net.VpnService;
 
 import androidx.annotation.NonNull;
 
+import com.deviknitkkr.clean_net.blocklist.BlocklistMerger;
+
+import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import io.flutter.embedding.android.FlutterActivity;
 import io.flutter.embedding.engine.FlutterEngine;
+import io.flutter.plugin.common.EventChannel;
 import io.flutter.plugin.common.MethodChannel;
 
 public class MainActivity extends FlutterActivity {
     private static final String CHANNEL = "com.deviknitkkr.clean_net/vpn";
+    private static final String TELEMETRY_CHANNEL = "com.deviknitkkr.clean_net/telemetry";
     private static final int VPN_REQUEST_CODE = 1;
 
     private String pendingDnsServer = null;
-    private List<String> pendingBlockedDomains = null;
+    private String pendingBlocklistPath = null;
+    private String pendingBlockMode = null;
+    private int pendingBlockTtl = 300;
+    private boolean pendingAnswerHttpsLocally;
+    private long pendingStartRequestedAt;
+    private final TelemetryStream telemetryStream = new TelemetryStream();
 
     @Override
     public void configureFlutterEngine(@NonNull FlutterEngine flutterEngine) {
         super.configureFlutterEngine(flutterEngine);
 
+        new EventChannel(flutterEngine.getDartExecutor().getBinaryMessenger(), TELEMETRY_CHANNEL)
+                .setStreamHandler(telemetryStream);
+
         new MethodChannel(flutterEngine.getDartExecutor().getBinaryMessenger(), CHANNEL)
                 .setMethodCallHandler((call, result) -> {
                     switch (call.method) {
                         case "startVpn":
+                            // Stamped by the UI at the tap; older callers don't send it.
+                            Number startRequestedAt = call.argument("startRequestedAt");
+                            pendingStartRequestedAt = startRequestedAt != null
+                                    ? startRequestedAt.longValue() : System.currentTimeMillis();
                             String dnsServer = call.argument("dnsServer");
-                            List<String> blockedDomains = call.argument("blockedDomains");
-                            startVpn(dnsServer, blockedDomains);
+                            String blocklistPath = call.argument("blocklistPath");
+                            pendingBlockMode = call.argument("blockMode");
+                            Integer blockTtl = call.argument("blockTtl");
+                            pendingBlockTtl = blockTtl != null ? blockTtl : 300;
+                            pendingAnswerHttpsLocally = Boolean.TRUE.equals(call.argument("answerHttpsLocally"));
+                            startVpn(dnsServer, blocklistPath);
                             result.success(null);
                             break;
+                        case "getBlocklistPath":
+                            result.success(new File(getFilesDir(), DnsVpnService.CUSTOM_RULES_FILE).getPath());
+                            break;
                         case "stopVpn":
                             stopVpn();
                             result.success(null);
@@ -42,6 +68,15 @@ public class MainActivity extends FlutterActivity {
                         case "getStats":
                             result.success(DnsVpnService.getBlockedStatsSnapshot());
                             break;
+                        case "getBlockModeStats":
+                            result.success(BlockResponder.getStatsSnapshot());
+                            break;
+                        case "getQueryStats":
+                            result.success(DnsVpnService.getQueryStats());
+                            break;
+                        case "getAppStats":
+                            result.success(DnsVpnService.getAppStats());
+                            break;
                         case "resetStats":
                             DnsVpnService.resetBlockedStats();
                             result.success(null);
@@ -53,10 +88,49 @@ public class MainActivity extends FlutterActivity {
                             AppLogBuffer.getInstance().clear();
                             result.success(null);
                             break;
+                        case "refreshBlocklist":
+                            List<String> urls = call.argument("urls");
+                            DnsVpnService.refreshSubscription(getApplicationContext(), urls, (refreshResult, error) ->
+                                    runOnUiThread(() -> {
+                                        if (error != null) {
+                                            result.error("FETCH_FAILED", error.getMessage(), null);
+                                            return;
+                                        }
+                                        List<Map<String, Object>> sources = new ArrayList<>();
+                                        for (BlocklistMerger.SourceStats stats : refreshResult.sources) {
+                                            Map<String, Object> source = new HashMap<>();
+                                            source.put("name", stats.name);
+                                            source.put("parsed", stats.parsed);
+                                            source.put("duplicates", stats.duplicates);
+                                            source.put("redundant", stats.redundant);
+                                            source.put("kept", stats.contributed);
+                                            sources.add(source);
+                                        }
+                                        Map<String, Object> reply = new HashMap<>();
+                                        reply.put("updated", refreshResult.updated);
+                                        reply.put("count", refreshResult.ruleCount);
+                                        reply.put("sources", sources);
+                                        result.success(reply);
+                                    }));
+                            break;
+                        case "filterSubscribedDomains":
+                            DnsVpnService.filterSubscribedDomains(getApplicationContext(),
+                                    call.argument("blocklistPath"), (kept, error) ->
+                                    runOnUiThread(() -> {
+                                        if (error != null) {
+                                            result.error("FILTER_FAILED", error.getMessage(), null);
+                                        } else {
+                                            result.success(kept);
+                                        }
+                                    }));
+                            break;
+                        case "getSubscriptionCount":
+                            result.success(DnsVpnService.getSubscriptionRuleCount(this));
+                            break;
                         case "updateBlocklist":
-                            List<String> newDomains = call.argument("blockedDomains");
-                            if (newDomains != null) {
-                                DnsVpnService.updateBlocklist(newDomains);
+                            String newPath = call.argument("blocklistPath");
+                            if (newPath != null) {
+                                DnsVpnService.updateBlocklist(newPath);
                             }
                             result.success(null);
                             break;
@@ -66,14 +140,20 @@ public class MainActivity extends FlutterActivity {
                 });
     }
 
-    private void startVpn(String dnsServer, List<String> blockedDomains) {
+    @Override
+    public void cleanUpFlutterEngine(@NonNull FlutterEngine flutterEngine) {
+        telemetryStream.onCancel(null);
+        super.cleanUpFlutterEngine(flutterEngine);
+    }
+
+    private void startVpn(String dnsServer, String blocklistPath) {
         Intent intent = VpnService.prepare(this);
         if (intent != null) {
             pendingDnsServer = dnsServer;
-            pendingBlockedDomains = blockedDomains;
+            pendingBlocklistPath = blocklistPath;
             startActivityForResult(intent, VPN_REQUEST_CODE);
         } else {
-            onVpnPermissionGranted(dnsServer, blockedDomains);
+            onVpnPermissionGranted(dnsServer, blocklistPath);
         }
     }
 
@@ -87,15 +167,21 @@ public class MainActivity extends FlutterActivity {
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
         if (requestCode == VPN_REQUEST_CODE && resultCode == RESULT_OK) {
-            onVpnPermissionGranted(pendingDnsServer, pendingBlockedDomains);
+            // Time spent in the permission dialog is the user's, not the start's.
+            pendingStartRequestedAt = System.currentTimeMillis();
+            onVpnPermissionGranted(pendingDnsServer, pendingBlocklistPath);
         }
     }
 
-    private void onVpnPermissionGranted(String dnsServer, List<String> blockedDomains) {
+    private void onVpnPermissionGranted(String dnsServer, String blocklistPath) {
         Intent intent = new Intent(this, DnsVpnService.class);
         intent.setAction(DnsVpnService.ACTION_START);
         intent.putExtra(DnsVpnService.EXTRA_DNS_SERVER, dnsServer);
-        intent.putStringArrayListExtra(DnsVpnService.EXTRA_BLOCKED_DOMAINS, new ArrayList<>(blockedDomains));
+        intent.putExtra(DnsVpnService.EXTRA_BLOCKLIST_PATH, blocklistPath);
+        intent.putExtra(DnsVpnService.EXTRA_BLOCK_MODE, pendingBlockMode);
+        intent.putExtra(DnsVpnService.EXTRA_BLOCK_TTL, pendingBlockTtl);
+        intent.putExtra(DnsVpnService.EXTRA_ANSWER_HTTPS_LOCALLY, pendingAnswerHttpsLocally);
+        intent.putExtra(DnsVpnService.EXTRA_START_REQUESTED_AT, pendingStartRequestedAt);
         startService(intent);
     }
 }
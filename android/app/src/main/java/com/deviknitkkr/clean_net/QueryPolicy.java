@@ -0,0 +1,63 @@
+package com.deviknitkkr.clean_net;
+
+import com.deviknitkkr.clean_net.utils.DnsWire;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Answers queries locally that cannot be useful upstream given the query type and the
+ * current network, before they reach the cache or a resolver.
+ * <p>
+ * Without an IPv6 route an AAAA answer is never used, so AAAA queries get an empty NOERROR
+ * (NODATA) reply and clients fall back to A at once. HTTPS/SVCB queries (types 65/64), which
+ * browsers send next to every A lookup, can be answered the same way when enabled; clients
+ * then connect without the hints they would carry, such as ECH keys or ALPN.
+ */
+public class QueryPolicy {
+    private static final int NODATA_TTL = 60;
+
+    private final BlockResponder nodata = new BlockResponder(BlockResponder.Mode.NODATA, NODATA_TTL);
+    private final boolean answerHttpsLocally;
+    private volatile boolean ipv6Available;
+
+    private final AtomicLong aaaaAnswered = new AtomicLong();
+    private final AtomicLong httpsAnswered = new AtomicLong();
+
+    /**
+     * @param ipv6Available      Whether the underlying network has a global IPv6 address.
+     * @param answerHttpsLocally Whether HTTPS and SVCB queries are answered with NODATA.
+     */
+    public QueryPolicy(boolean ipv6Available, boolean answerHttpsLocally) {
+        this.ipv6Available = ipv6Available;
+        this.answerHttpsLocally = answerHttpsLocally;
+    }
+
+    public void setIpv6Available(boolean ipv6Available) {
+        this.ipv6Available = ipv6Available;
+    }
+
+    /**
+     * @param request Raw DNS request.
+     * @param qtype   QTYPE of its question.
+     * @return A local reply for the request, or null if it has to be resolved normally.
+     */
+    public byte[] answerLocally(byte[] request, int qtype) {
+        if (qtype == DnsWire.TYPE_AAAA && !ipv6Available) {
+            aaaaAnswered.incrementAndGet();
+            return nodata.build(request);
+        }
+        if ((qtype == DnsWire.TYPE_HTTPS || qtype == DnsWire.TYPE_SVCB) && answerHttpsLocally) {
+            httpsAnswered.incrementAndGet();
+            return nodata.build(request);
+        }
+        return null;
+    }
+
+    public long getAaaaAnswered() {
+        return aaaaAnswered.get();
+    }
+
+    public long getHttpsAnswered() {
+        return httpsAnswered.get();
+    }
+}
@@ -0,0 +1,104 @@
+package com.deviknitkkr.clean_net;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token-bucket limit on the query rate of each source, so one flooding app can't crowd out
+ * the others.
+ * <p>
+ * Every source starts with {@code burst} tokens and regains {@code ratePerSecond} per second;
+ * a query spends one. Sources are tracked independently, so only the flooding source runs
+ * dry. Once too many sources are tracked the least recently seen one is forgotten, so a
+ * source that keeps querying keeps its bucket however many other sources come and go.
+ */
+public class QueryRateLimiter {
+    private static final String TAG = "QueryRateLimiter";
+    static final int MAX_SOURCES = 1024;
+
+    private final double ratePerMs;
+    private final double burst;
+    private final Map<String, Bucket> buckets = new LinkedHashMap<String, Bucket>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+            return size() > MAX_SOURCES;
+        }
+    };
+    private final AppLogBuffer appLog = AppLogBuffer.getInstance();
+
+    private final AtomicLong limitedQueries = new AtomicLong();
+    private final AtomicLong limitedSources = new AtomicLong();
+
+    /**
+     * @param ratePerSecond Sustained queries per second allowed per source; 0 disables limiting.
+     * @param burst         Queries a source may send at once before the rate applies.
+     */
+    public QueryRateLimiter(double ratePerSecond, double burst) {
+        this.ratePerMs = ratePerSecond / 1000;
+        this.burst = burst;
+    }
+
+    /**
+     * @param source Identifies the sender, e.g. its source address and port.
+     * @return Whether the query is within the source's limit.
+     */
+    public boolean tryAcquire(String source, long now) {
+        if (ratePerMs <= 0) return true;
+        Bucket bucket;
+        synchronized (buckets) {
+            bucket = buckets.get(source);
+            if (bucket == null) {
+                bucket = new Bucket(burst, now);
+                buckets.put(source, bucket);
+            }
+        }
+        synchronized (bucket) {
+            bucket.refill(now);
+            if (bucket.tokens >= 1) {
+                bucket.tokens -= 1;
+                bucket.limited = false;
+                return true;
+            }
+            limitedQueries.incrementAndGet();
+            if (!bucket.limited) {
+                bucket.limited = true;
+                limitedSources.incrementAndGet();
+                appLog.log(TAG, "Rate limiting " + source);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return Queries rejected for exceeding their source's limit.
+     */
+    public long getLimitedQueries() {
+        return limitedQueries.get();
+    }
+
+    /**
+     * @return How often a source went over its limit.
+     */
+    public long getLimitedSources() {
+        return limitedSources.get();
+    }
+
+    private class Bucket {
+        double tokens;
+        long refilledAt;
+        boolean limited;
+
+        Bucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.refilledAt = now;
+        }
+
+        void refill(long now) {
+            if (now > refilledAt) {
+                tokens = Math.min(burst, tokens + (now - refilledAt) * ratePerMs);
+                refilledAt = now;
+            }
+        }
+    }
+}
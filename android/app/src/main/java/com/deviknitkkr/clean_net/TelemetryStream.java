@@ -0,0 +1,161 @@
+package com.deviknitkkr.clean_net;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import io.flutter.plugin.common.EventChannel;
+
+/**
+ * Pushes blocked-domain counters and new log lines to Flutter as binary deltas.
+ * <p>
+ * While a listener is attached, a background thread looks for changes every
+ * {@code intervalMs} (chosen by the listener) and emits at most one frame per tick with only
+ * what changed; idle ticks emit nothing. Domain names are sent once and referenced by index
+ * afterwards. Cancelling the stream stops the thread, so a detached UI costs nothing.
+ * <p>
+ * Frame layout; integers are unsigned LEB128 varints, strings are a varint byte length
+ * followed by UTF-8:
+ * <pre>
+ * version (byte), flags (byte: 1 = counters reset, 2 = logs reset)
+ * sequence of the newest log line
+ * new names: count, names; they take the next free indices of the name table
+ * counters:  count, (name index, value) pairs
+ * log lines: count, lines
+ * </pre>
+ */
+public class TelemetryStream implements EventChannel.StreamHandler {
+    private static final int VERSION = 1;
+    private static final int FLAG_STATS_RESET = 1;
+    private static final int FLAG_LOGS_RESET = 2;
+    private static final int DEFAULT_INTERVAL_MS = 1_000;
+    private static final int MIN_INTERVAL_MS = 100;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile Session session;
+
+    @Override
+    public void onListen(Object arguments, EventChannel.EventSink events) {
+        onCancel(null);
+        int intervalMs = DEFAULT_INTERVAL_MS;
+        if (arguments instanceof Map) {
+            Object value = ((Map<?, ?>) arguments).get("intervalMs");
+            if (value instanceof Number) {
+                intervalMs = Math.max(MIN_INTERVAL_MS, ((Number) value).intValue());
+            }
+        }
+        session = new Session(events, intervalMs);
+    }
+
+    @Override
+    public void onCancel(Object arguments) {
+        Session current = session;
+        session = null;
+        if (current != null) {
+            current.executor.shutdownNow();
+        }
+    }
+
+    private class Session implements Runnable {
+        final EventChannel.EventSink sink;
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "telemetry");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        final Map<String, Integer> nameIds = new HashMap<>();
+        int statsGeneration = -1;
+        int logGeneration = -1;
+        long logSequence = 0;
+
+        Session(EventChannel.EventSink sink, int intervalMs) {
+            this.sink = sink;
+            executor.scheduleWithFixedDelay(this, 0, intervalMs, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            int flags = 0;
+
+            Map<String, Integer> counters = new LinkedHashMap<>();
+            int generation = DnsVpnService.collectBlockedStats(counters, false);
+            if (generation != statsGeneration) {
+                counters.clear();
+                statsGeneration = DnsVpnService.collectBlockedStats(counters, true);
+                nameIds.clear();
+                flags |= FLAG_STATS_RESET;
+            }
+            AppLogBuffer appLog = AppLogBuffer.getInstance();
+            int currentLogGeneration = appLog.getGeneration();
+            if (currentLogGeneration != logGeneration) {
+                // First frame, or the log was cleared: resend whatever the buffer holds now.
+                logGeneration = currentLogGeneration;
+                logSequence = 0;
+                flags |= FLAG_LOGS_RESET;
+            }
+            List<String> logs = new ArrayList<>();
+            logSequence = appLog.getLogsSince(logSequence, logs);
+            if (flags == 0 && counters.isEmpty() && logs.isEmpty()) return;
+
+            byte[] frame = encode(flags, counters, logs);
+            mainHandler.post(() -> {
+                if (session == this) {
+                    sink.success(frame);
+                }
+            });
+        }
+
+        private byte[] encode(int flags, Map<String, Integer> counters, List<String> logs) {
+            List<String> newNames = new ArrayList<>();
+            for (String name : counters.keySet()) {
+                if (!nameIds.containsKey(name)) {
+                    nameIds.put(name, nameIds.size());
+                    newNames.add(name);
+                }
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(VERSION);
+            out.write(flags);
+            writeVarint(out, logSequence);
+            writeVarint(out, newNames.size());
+            for (String name : newNames) {
+                writeString(out, name);
+            }
+            writeVarint(out, counters.size());
+            for (Map.Entry<String, Integer> counter : counters.entrySet()) {
+                writeVarint(out, nameIds.get(counter.getKey()));
+                writeVarint(out, counter.getValue());
+            }
+            writeVarint(out, logs.size());
+            for (String line : logs) {
+                writeString(out, line);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
@@ -0,0 +1,240 @@
+package com.deviknitkkr.clean_net.blocklist;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.function.Consumer;
+
+/**
+ * Downloads a blocklist subscription and streams it into a rule consumer line by line.
+ * <p>
+ * The normalized rules are written through to a cache file as they are parsed, so the full
+ * response body is never held in memory. ETag and Last-Modified validators are kept in a
+ * sidecar file and sent back as conditional request headers on the next refresh.
+ */
+public class BlocklistFetcher {
+    private static final int CONNECT_TIMEOUT_MS = 15_000;
+    private static final int READ_TIMEOUT_MS = 30_000;
+    private static final String META_SUFFIX = ".meta";
+    private static final String KEY_URL = "url";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+    private static final String KEY_RULE_COUNT = "ruleCount";
+
+    public enum Status {
+        UPDATED,
+        NOT_MODIFIED
+    }
+
+    public static class Result {
+        public final Status status;
+        public final int ruleCount;
+
+        Result(Status status, int ruleCount) {
+            this.status = status;
+            this.ruleCount = ruleCount;
+        }
+    }
+
+    /**
+     * Fetches {@code url}, skipping the download when the server reports the cached copy is current.
+     *
+     * @param url          Subscription URL.
+     * @param cacheFile    File holding the normalized rules of the last successful download.
+     * @param ruleConsumer Receives every rule of a fresh download; not called on NOT_MODIFIED.
+     * @return Whether the list changed and how many rules it holds.
+     * @throws IOException If the request fails or the server answers with an unexpected status.
+     */
+    public Result fetch(String url, File cacheFile, Consumer<String> ruleConsumer) throws IOException {
+        Properties meta = readMeta(cacheFile);
+        boolean sameUrl = url.equals(meta.getProperty(KEY_URL)) && cacheFile.exists();
+
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            conn.setReadTimeout(READ_TIMEOUT_MS);
+            if (sameUrl) {
+                String etag = meta.getProperty(KEY_ETAG);
+                String lastModified = meta.getProperty(KEY_LAST_MODIFIED);
+                if (etag != null) conn.setRequestProperty("If-None-Match", etag);
+                if (lastModified != null) conn.setRequestProperty("If-Modified-Since", lastModified);
+            }
+
+            int code = conn.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED && sameUrl) {
+                return new Result(Status.NOT_MODIFIED, Integer.parseInt(meta.getProperty(KEY_RULE_COUNT, "0")));
+            }
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected HTTP status " + code + " for " + url);
+            }
+
+            int ruleCount;
+            try (InputStream in = conn.getInputStream()) {
+                ruleCount = streamRules(in, cacheFile, ruleConsumer);
+            }
+
+            Properties newMeta = new Properties();
+            newMeta.setProperty(KEY_URL, url);
+            newMeta.setProperty(KEY_RULE_COUNT, Integer.toString(ruleCount));
+            String etag = conn.getHeaderField("ETag");
+            String lastModified = conn.getHeaderField("Last-Modified");
+            if (etag != null) newMeta.setProperty(KEY_ETAG, etag);
+            if (lastModified != null) newMeta.setProperty(KEY_LAST_MODIFIED, lastModified);
+            writeMeta(cacheFile, newMeta);
+            return new Result(Status.UPDATED, ruleCount);
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Streams the rules of a previously downloaded list into {@code ruleConsumer}.
+     *
+     * @return Number of rules read, or 0 if there is no cached list.
+     */
+    public static int loadCached(File cacheFile, Consumer<String> ruleConsumer) throws IOException {
+        if (!cacheFile.exists()) return 0;
+        int count = 0;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(cacheFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                ruleConsumer.accept(line);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Replaces the cached list with {@code rules}, e.g. the merged result of several downloads.
+     */
+    public static void writeCached(File cacheFile, Collection<String> rules) throws IOException {
+        try (CacheWriter writer = new CacheWriter(cacheFile)) {
+            for (String rule : rules) {
+                writer.add(rule);
+            }
+            writer.commit();
+        }
+    }
+
+    /**
+     * Streams a list into a temporary file that replaces the cached list on {@link #commit()},
+     * so a list produced rule by rule never has to be collected first. Closing without
+     * committing leaves the cached list untouched.
+     */
+    public static class CacheWriter implements Closeable {
+        private final File cacheFile;
+        private final File tmpFile;
+        private final BufferedWriter writer;
+        private int count;
+        private boolean committed;
+
+        public CacheWriter(File cacheFile) throws IOException {
+            this.cacheFile = cacheFile;
+            this.tmpFile = new File(cacheFile.getPath() + ".tmp");
+            this.writer = new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8));
+        }
+
+        public void add(String rule) throws IOException {
+            writer.write(rule);
+            writer.write('\n');
+            count++;
+        }
+
+        public void commit() throws IOException {
+            writer.close();
+            if (!tmpFile.renameTo(cacheFile)) {
+                tmpFile.delete();
+                throw new IOException("Failed to replace " + cacheFile);
+            }
+            committed = true;
+            Properties meta = new Properties();
+            meta.setProperty(KEY_RULE_COUNT, Integer.toString(count));
+            writeMeta(cacheFile, meta);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (committed) return;
+            writer.close();
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * @return The rule count recorded for the cached list, or 0 if nothing was downloaded yet.
+     */
+    public static int cachedRuleCount(File cacheFile) {
+        if (!cacheFile.exists()) return 0;
+        try {
+            return Integer.parseInt(readMeta(cacheFile).getProperty(KEY_RULE_COUNT, "0"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static int streamRules(InputStream in, File cacheFile, Consumer<String> ruleConsumer) throws IOException {
+        File tmpFile = new File(cacheFile.getPath() + ".tmp");
+        int count = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+             BufferedWriter writer = new BufferedWriter(
+                     new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8))) {
+            List<String> lineRules = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineRules.clear();
+                RuleParser.parse(line, lineRules::add);
+                for (String rule : lineRules) {
+                    ruleConsumer.accept(rule);
+                    writer.write(rule);
+                    writer.write('\n');
+                    count++;
+                }
+            }
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw e;
+        }
+        if (!tmpFile.renameTo(cacheFile)) {
+            tmpFile.delete();
+            throw new IOException("Failed to replace " + cacheFile);
+        }
+        return count;
+    }
+
+    private static Properties readMeta(File cacheFile) {
+        Properties meta = new Properties();
+        File metaFile = new File(cacheFile.getPath() + META_SUFFIX);
+        if (metaFile.exists()) {
+            try (InputStream in = new FileInputStream(metaFile)) {
+                meta.load(in);
+            } catch (IOException ignored) {
+            }
+        }
+        return meta;
+    }
+
+    private static void writeMeta(File cacheFile, Properties meta) throws IOException {
+        try (OutputStream out = new FileOutputStream(cacheFile.getPath() + META_SUFFIX)) {
+            meta.store(out, null);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.deviknitkkr.clean_net.blocklist;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Combines several blocklists into one minimal rule set.
+ * <p>
+ * Sources are parsed in parallel with format auto-detection, then deduplicated and pruned:
+ * a rule is dropped when a broader rule already covers it, e.g. {@code a.ads.example.com}
+ * next to {@code *.ads.example.com} or {@code ads.example.com}. The merged set blocks
+ * exactly what the union of the sources blocks.
+ */
+public class BlocklistMerger {
+
+    public interface ReaderSupplier {
+        Reader open() throws IOException;
+    }
+
+    public interface RuleConsumer {
+        void accept(String rule) throws IOException;
+    }
+
+    public static class Source {
+        final String name;
+        final ReaderSupplier reader;
+
+        public Source(String name, ReaderSupplier reader) {
+            this.name = name;
+            this.reader = reader;
+        }
+    }
+
+    public static class SourceStats {
+        public final String name;
+        public int parsed;
+        public int duplicates;
+        public int redundant;
+        public int contributed;
+
+        SourceStats(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + parsed + " parsed, " + duplicates + " duplicate, "
+                    + redundant + " redundant, " + contributed + " kept";
+        }
+    }
+
+    public static class Result {
+        // The kept plain rules, see isPlainRule. Built for pruning anyway, so callers can match with it.
+        public final WildcardTrie trie;
+        public final int ruleCount;
+        public final List<SourceStats> stats;
+
+        Result(WildcardTrie trie, int ruleCount, List<SourceStats> stats) {
+            this.trie = trie;
+            this.ruleCount = ruleCount;
+            this.stats = stats;
+        }
+    }
+
+    private final ExecutorService executor;
+
+    /**
+     * @param executor Pool the sources are parsed on, one task per source.
+     */
+    public BlocklistMerger(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @param keptRules Receives every rule of the merged set once, broadest first.
+     */
+    public Result merge(List<Source> sources, RuleConsumer keptRules) throws IOException {
+        List<Future<Set<String>>> parsed = new ArrayList<>(sources.size());
+        for (Source source : sources) {
+            parsed.add(executor.submit(() -> parseSource(source)));
+        }
+
+        List<SourceStats> stats = new ArrayList<>(sources.size());
+        Map<String, SourceStats> owners = new HashMap<>();
+        for (int i = 0; i < sources.size(); i++) {
+            SourceStats sourceStats = new SourceStats(sources.get(i).name);
+            stats.add(sourceStats);
+            Set<String> rules = await(parsed.get(i));
+            sourceStats.parsed = rules.size();
+            for (String rule : rules) {
+                if (owners.putIfAbsent(rule, sourceStats) != null) {
+                    sourceStats.duplicates++;
+                }
+            }
+        }
+
+        List<String> ordered = new ArrayList<>(owners.keySet());
+        Collections.sort(ordered, BlocklistMerger::compareBreadth);
+
+        WildcardTrie covered = new WildcardTrie();
+        int kept = 0;
+        for (String rule : ordered) {
+            SourceStats owner = owners.get(rule);
+            // A literal "*" label only matches an existing "*" rule, so this is true exactly
+            // when every name the rule could match is already blocked. Rules limited to some
+            // query types can be covered but never cover anything themselves.
+            // Keyword and regex rules don't follow labels, so they are never pruned either.
+            if (!PatternRules.isPatternRule(rule) && covered.matches(RuleParser.patternOf(rule))) {
+                owner.redundant++;
+            } else {
+                if (isPlainRule(rule)) {
+                    covered.insert(rule);
+                }
+                keptRules.accept(rule);
+                kept++;
+                owner.contributed++;
+            }
+        }
+        return new Result(covered, kept, stats);
+    }
+
+    /**
+     * @return Whether a rule applies to every query type and matches by labels, i.e. whether it
+     * belongs in the name trie rather than in {@link TypedRules} or {@link PatternRules}.
+     */
+    public static boolean isPlainRule(String rule) {
+        return RuleParser.patternOf(rule).equals(rule) && !PatternRules.isPatternRule(rule);
+    }
+
+    private static Set<String> parseSource(Source source) throws IOException {
+        Set<String> rules = new LinkedHashSet<>();
+        try (BufferedReader reader = new BufferedReader(source.reader.open())) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                RuleParser.parse(line, rules::add);
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * Orders broader rules first: fewer labels, and a wildcard before a literal of equal length.
+     */
+    private static int compareBreadth(String a, String b) {
+        int byLabels = Integer.compare(labelCount(a), labelCount(b));
+        if (byLabels != 0) return byLabels;
+        boolean aWildcard = a.startsWith("*.");
+        boolean bWildcard = b.startsWith("*.");
+        if (aWildcard != bWildcard) return aWildcard ? -1 : 1;
+        return a.compareTo(b);
+    }
+
+    private static int labelCount(String rule) {
+        int count = 1;
+        for (int i = 0; i < rule.length(); i++) {
+            if (rule.charAt(i) == '.') count++;
+        }
+        return count;
+    }
+
+    private static Set<String> await(Future<Set<String>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while parsing blocklists", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.deviknitkkr.clean_net.blocklist;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only, flat binary form of a {@link WildcardTrie}.
+ * <p>
+ * The whole trie lives in one {@link ByteBuffer}, so it can be matched straight from a
+ * memory-mapped file without deserializing anything, and it needs a fraction of the heap
+ * of the pointer-based trie. Layout (big-endian):
+ * <pre>
+ * header: magic, version, nodes length, labels length (4 x int)
+ * node:   flags (byte), child count (int), children sorted by label: label offset, node offset (int, int)
+ * label:  length (short), UTF-8 bytes
+ * </pre>
+ * Matching semantics are identical to {@link WildcardTrie#matches(String)}.
+ */
+public class CompactTrie implements DomainMatcher {
+    private static final int MAGIC = 0x43545249; // "CTRI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int CHILD_ENTRY_SIZE = 8;
+    private static final byte[] WILDCARD_LABEL = {'*'};
+
+    private final ByteBuffer buffer;
+    private final int nodesBase;
+    private final int labelsBase;
+
+    private CompactTrie(ByteBuffer buffer) {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("Not a compact trie");
+        }
+        int nodesLength = buffer.getInt(8);
+        int labelsLength = buffer.getInt(12);
+        if (HEADER_SIZE + nodesLength + labelsLength > buffer.limit()) {
+            throw new IllegalArgumentException("Truncated compact trie");
+        }
+        this.nodesBase = HEADER_SIZE;
+        this.labelsBase = HEADER_SIZE + nodesLength;
+    }
+
+    /**
+     * Wraps an existing buffer, e.g. a slice of a memory-mapped snapshot. The buffer is not copied.
+     */
+    public static CompactTrie wrap(ByteBuffer buffer) {
+        return new CompactTrie(buffer);
+    }
+
+    public static CompactTrie compile(WildcardTrie trie) {
+        List<WildcardTrie.TrieNode> order = new ArrayList<>();
+        Map<WildcardTrie.TrieNode, Integer> nodeOffsets = new IdentityHashMap<>();
+        Map<String, Integer> labelOffsets = new HashMap<>();
+        List<byte[]> labels = new ArrayList<>();
+
+        ArrayDeque<WildcardTrie.TrieNode> queue = new ArrayDeque<>();
+        queue.add(trie.root);
+        int nodesLength = 0;
+        int labelsLength = 0;
+        while (!queue.isEmpty()) {
+            WildcardTrie.TrieNode node = queue.poll();
+            order.add(node);
+            nodeOffsets.put(node, nodesLength);
+            nodesLength += 5 + CHILD_ENTRY_SIZE * node.children.size();
+            for (Map.Entry<String, WildcardTrie.TrieNode> child : node.children.entrySet()) {
+                if (!labelOffsets.containsKey(child.getKey())) {
+                    byte[] bytes = child.getKey().getBytes(StandardCharsets.UTF_8);
+                    labelOffsets.put(child.getKey(), labelsLength);
+                    labels.add(bytes);
+                    labelsLength += 2 + bytes.length;
+                }
+                queue.add(child.getValue());
+            }
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + nodesLength + labelsLength);
+        out.putInt(MAGIC).putInt(VERSION).putInt(nodesLength).putInt(labelsLength);
+        for (WildcardTrie.TrieNode node : order) {
+            List<Map.Entry<String, WildcardTrie.TrieNode>> children = new ArrayList<>(node.children.entrySet());
+            children.sort((a, b) -> compare(a.getKey().getBytes(StandardCharsets.UTF_8),
+                    b.getKey().getBytes(StandardCharsets.UTF_8)));
+            out.put((byte) (node.isWildcard ? 1 : 0));
+            out.putInt(children.size());
+            for (Map.Entry<String, WildcardTrie.TrieNode> child : children) {
+                out.putInt(labelOffsets.get(child.getKey()));
+                out.putInt(nodeOffsets.get(child.getValue()));
+            }
+        }
+        for (byte[] label : labels) {
+            out.putShort((short) label.length);
+            out.put(label);
+        }
+        out.flip();
+        return new CompactTrie(out);
+    }
+
+    @Override
+    public boolean matches(String domain) {
+        if (domain == null || domain.isEmpty()) {
+            return false;
+        }
+        String[] parts = domain.split("\\.");
+        byte[][] labels = new byte[parts.length][];
+        for (int i = 0; i < parts.length; i++) {
+            labels[i] = parts[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return matchesRecursive(0, labels, labels.length - 1);
+    }
+
+    private boolean matchesRecursive(int node, byte[][] labels, int i) {
+        if (buffer.get(nodesBase + node) != 0) {
+            return true;
+        }
+        if (i < 0) {
+            return false;
+        }
+
+        int child = findChild(node, labels[i]);
+        if (child >= 0 && matchesRecursive(child, labels, i - 1)) {
+            return true;
+        }
+
+        child = findChild(node, WILDCARD_LABEL);
+        return child >= 0 && matchesRecursive(child, labels, i - 1);
+    }
+
+    private int findChild(int node, byte[] label) {
+        int base = nodesBase + node;
+        int low = 0;
+        int high = buffer.getInt(base + 1) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int entry = base + 5 + mid * CHILD_ENTRY_SIZE;
+            int cmp = compareLabel(buffer.getInt(entry), label);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return buffer.getInt(entry + 4);
+            }
+        }
+        return -1;
+    }
+
+    private int compareLabel(int labelOffset, byte[] label) {
+        int pos = labelsBase + labelOffset;
+        int length = buffer.getShort(pos) & 0xFFFF;
+        int n = Math.min(length, label.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = (buffer.get(pos + 2 + i) & 0xFF) - (label[i] & 0xFF);
+            if (cmp != 0) return cmp;
+        }
+        return length - label.length;
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (cmp != 0) return cmp;
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * @return Size of the serialized trie in bytes.
+     */
+    public int size() {
+        return labelsBase + buffer.getInt(12);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        ByteBuffer source = buffer.duplicate();
+        source.position(0).limit(size());
+        byte[] chunk = new byte[8192];
+        while (source.hasRemaining()) {
+            int n = Math.min(chunk.length, source.remaining());
+            source.get(chunk, 0, n);
+            out.write(chunk, 0, n);
+        }
+    }
+}
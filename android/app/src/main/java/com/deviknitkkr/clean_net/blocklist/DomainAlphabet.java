@@ -0,0 +1,30 @@
+package com.deviknitkkr.clean_net.blocklist;
+
+/**
+ * Maps the characters of a domain name onto a small dense alphabet, so automata over names
+ * need only {@link #SIZE} transitions per state. Letters are case-folded; everything that
+ * can't appear in a host name shares one symbol.
+ */
+final class DomainAlphabet {
+    static final int SIZE = 40;
+    static final int DASH = 36;
+    static final int UNDERSCORE = 37;
+    static final int DOT = 38;
+    static final int OTHER = 39;
+    static final long ALL = (1L << SIZE) - 1;
+    static final long DIGITS = ((1L << 10) - 1) << 26;
+    static final long LETTERS = (1L << 26) - 1;
+
+    private DomainAlphabet() {
+    }
+
+    static int symbol(char c) {
+        if (c >= 'a' && c <= 'z') return c - 'a';
+        if (c >= 'A' && c <= 'Z') return c - 'A';
+        if (c >= '0' && c <= '9') return 26 + c - '0';
+        if (c == '-') return DASH;
+        if (c == '_') return UNDERSCORE;
+        if (c == '.') return DOT;
+        return OTHER;
+    }
+}
@@ -0,0 +1,8 @@
+package com.deviknitkkr.clean_net.blocklist;
+
+/**
+ * Decides whether a domain is blocked.
+ */
+public interface DomainMatcher {
+    boolean matches(String domain);
+}
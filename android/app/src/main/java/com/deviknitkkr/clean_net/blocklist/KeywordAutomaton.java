@@ -0,0 +1,83 @@
+package com.deviknitkkr.clean_net.blocklist;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Aho-Corasick automaton telling whether a name contains any of a set of keywords.
+ * <p>
+ * The failure links are folded into a full transition table over {@link DomainAlphabet},
+ * so a lookup is one table read per character of the name, however many keywords there are.
+ */
+final class KeywordAutomaton {
+    private final int[] delta;
+    private final boolean[] output;
+
+    private KeywordAutomaton(int[] delta, boolean[] output) {
+        this.delta = delta;
+        this.output = output;
+    }
+
+    static KeywordAutomaton build(List<String> keywords) {
+        int capacity = 1;
+        for (String keyword : keywords) {
+            capacity += keyword.length();
+        }
+        int[] delta = new int[capacity * DomainAlphabet.SIZE];
+        Arrays.fill(delta, -1);
+        boolean[] output = new boolean[capacity];
+        int states = 1;
+
+        for (String keyword : keywords) {
+            int state = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                int slot = state * DomainAlphabet.SIZE + DomainAlphabet.symbol(keyword.charAt(i));
+                if (delta[slot] < 0) {
+                    delta[slot] = states++;
+                }
+                state = delta[slot];
+            }
+            output[state] = true;
+        }
+
+        // Breadth-first, so a state's failure target is complete before the state itself.
+        int[] fail = new int[states];
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int symbol = 0; symbol < DomainAlphabet.SIZE; symbol++) {
+            int next = delta[symbol];
+            if (next < 0) {
+                delta[symbol] = 0;
+            } else {
+                fail[next] = 0;
+                queue.add(next);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            output[state] |= output[fail[state]];
+            for (int symbol = 0; symbol < DomainAlphabet.SIZE; symbol++) {
+                int slot = state * DomainAlphabet.SIZE + symbol;
+                int fallback = delta[fail[state] * DomainAlphabet.SIZE + symbol];
+                if (delta[slot] < 0) {
+                    delta[slot] = fallback;
+                } else {
+                    fail[delta[slot]] = fallback;
+                    queue.add(delta[slot]);
+                }
+            }
+        }
+        return new KeywordAutomaton(Arrays.copyOf(delta, states * DomainAlphabet.SIZE),
+                Arrays.copyOf(output, states));
+    }
+
+    boolean matches(String name) {
+        int state = 0;
+        for (int i = 0; i < name.length(); i++) {
+            state = delta[state * DomainAlphabet.SIZE + DomainAlphabet.symbol(name.charAt(i))];
+            if (output[state]) return true;
+        }
+        return false;
+    }
+}
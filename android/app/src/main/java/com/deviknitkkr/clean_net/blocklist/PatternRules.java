@@ -0,0 +1,119 @@
+package com.deviknitkkr.clean_net.blocklist;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Blocklist rules that don't follow label boundaries: keywords such as {@code *adserver*},
+ * matching any name containing them, and regular expressions such as {@code /^ads?[0-9]*\./}.
+ * <p>
+ * All keywords are compiled into one {@link KeywordAutomaton} and the expressions into as few
+ * {@link RegexDfa}s as fit the state limit, so a lookup is one pass over the name per
+ * automaton rather than one match per rule. Not thread-safe while being built; call
+ * {@link #compile()} before publishing it and only read it afterwards.
+ */
+public class PatternRules implements DomainMatcher {
+    private static final int MAX_DFA_STATES = 4096;
+
+    private final List<String> keywords = new ArrayList<>();
+    private final List<String> regexes = new ArrayList<>();
+    private final List<String> rules = new ArrayList<>();
+    private KeywordAutomaton keywordAutomaton;
+    private final List<RegexDfa> regexDfas = new ArrayList<>();
+    private int rejected;
+
+    public static boolean isPatternRule(String rule) {
+        return isKeywordRule(rule) || isRegexRule(rule);
+    }
+
+    static boolean isKeywordRule(String rule) {
+        return rule.length() > 2 && rule.startsWith("*") && rule.endsWith("*");
+    }
+
+    static boolean isRegexRule(String rule) {
+        return rule.length() > 2 && rule.startsWith("/") && rule.endsWith("/");
+    }
+
+    /**
+     * @param rule Rule as emitted by {@link RuleParser}.
+     * @return Whether the rule is a keyword or regex rule and was added.
+     */
+    public boolean add(String rule) {
+        if (isKeywordRule(rule)) {
+            keywords.add(rule.substring(1, rule.length() - 1).toLowerCase(Locale.ROOT));
+        } else if (isRegexRule(rule)) {
+            String regex = rule.substring(1, rule.length() - 1);
+            if (!RegexDfa.isSupported(regex)) return false;
+            regexes.add(regex);
+        } else {
+            return false;
+        }
+        rules.add(rule);
+        return true;
+    }
+
+    /**
+     * Builds the automata from the rules added so far.
+     */
+    public void compile() {
+        keywordAutomaton = keywords.isEmpty() ? null : KeywordAutomaton.build(keywords);
+        regexDfas.clear();
+        rejected = 0;
+        if (!regexes.isEmpty()) {
+            compileRegexes(regexes);
+        }
+    }
+
+    /**
+     * Compiles the expressions into one DFA, halving the set until each part fits the state
+     * limit. A single expression that doesn't fit on its own is dropped.
+     */
+    private void compileRegexes(List<String> group) {
+        RegexDfa dfa = RegexDfa.compile(group, MAX_DFA_STATES);
+        if (dfa != null) {
+            regexDfas.add(dfa);
+        } else if (group.size() == 1) {
+            rejected++;
+        } else {
+            int half = group.size() / 2;
+            compileRegexes(group.subList(0, half));
+            compileRegexes(group.subList(half, group.size()));
+        }
+    }
+
+    @Override
+    public boolean matches(String domain) {
+        if (keywordAutomaton != null && keywordAutomaton.matches(domain)) return true;
+        for (RegexDfa dfa : regexDfas) {
+            if (dfa.matches(domain)) return true;
+        }
+        return false;
+    }
+
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    /**
+     * @return Number of regex rules dropped by the last {@link #compile()} for exceeding the state limit.
+     */
+    public int getRejectedCount() {
+        return rejected;
+    }
+
+    /**
+     * @return Number of DFAs the regex rules were compiled into.
+     */
+    public int getDfaCount() {
+        return regexDfas.size();
+    }
+
+    /**
+     * @return The rules in the form they were added, e.g. for persisting them.
+     */
+    public List<String> getRules() {
+        return Collections.unmodifiableList(rules);
+    }
+}
@@ -0,0 +1,362 @@
+package com.deviknitkkr.clean_net.blocklist;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Several regular expressions over domain names compiled into one deterministic automaton,
+ * so testing a name against all of them is a single pass with one table read per character.
+ * <p>
+ * Supported syntax: literals, {@code .}, classes such as {@code [a-z0-9]} and {@code [^.]},
+ * {@code \d}, {@code \w} and escaped punctuation, groups with {@code |}, the quantifiers
+ * {@code * + ?} and bounded {@code {m,n}}, and {@code ^}/{@code $} at the very start/end.
+ * Matching is case-insensitive. Anything else, e.g. back-references or lookaround, is
+ * rejected by {@link #isSupported(String)}.
+ * <p>
+ * The expressions are converted to one NFA (Thompson construction) and then to a DFA by
+ * subset construction, which can grow exponentially; {@link #compile(List, int)} gives up
+ * once the DFA exceeds its state limit.
+ */
+final class RegexDfa {
+    private static final int MAX_REPEAT = 32;
+
+    private final int[] delta;
+    // A state that reached an expression without "$"; the name matches whatever follows.
+    private final boolean[] acceptNow;
+    // A state in which the name matches if it ends here.
+    private final boolean[] acceptAtEnd;
+
+    private RegexDfa(int[] delta, boolean[] acceptNow, boolean[] acceptAtEnd) {
+        this.delta = delta;
+        this.acceptNow = acceptNow;
+        this.acceptAtEnd = acceptAtEnd;
+    }
+
+    /**
+     * @param regex Expression without the surrounding slashes.
+     */
+    static boolean isSupported(String regex) {
+        try {
+            new Nfa().add(regex);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param regexes   Expressions without the surrounding slashes; all must be {@link #isSupported supported}.
+     * @param maxStates Maximum number of DFA states.
+     * @return The combined automaton, or null if it would need more than {@code maxStates} states.
+     */
+    static RegexDfa compile(List<String> regexes, int maxStates) {
+        Nfa nfa = new Nfa();
+        List<Integer> starts = new ArrayList<>();
+        for (String regex : regexes) {
+            starts.add(nfa.add(regex));
+        }
+
+        BitSet initial = new BitSet();
+        for (int start : starts) {
+            nfa.closure(start, initial);
+        }
+        List<BitSet> states = new ArrayList<>();
+        Map<BitSet, Integer> ids = new HashMap<>();
+        states.add(initial);
+        ids.put(initial, 0);
+
+        int[] delta = new int[Math.min(maxStates, 64) * DomainAlphabet.SIZE];
+        boolean[] acceptNow = new boolean[Math.min(maxStates, 64)];
+        boolean[] acceptAtEnd = new boolean[acceptNow.length];
+        Queue<Integer> queue = new ArrayDeque<>();
+        queue.add(0);
+        while (!queue.isEmpty()) {
+            int id = queue.poll();
+            BitSet set = states.get(id);
+            if (acceptNow.length <= id) {
+                acceptNow = Arrays.copyOf(acceptNow, Math.min(maxStates, acceptNow.length * 2));
+                acceptAtEnd = Arrays.copyOf(acceptAtEnd, acceptNow.length);
+                delta = Arrays.copyOf(delta, acceptNow.length * DomainAlphabet.SIZE);
+            }
+            for (int s = set.nextSetBit(0); s >= 0; s = set.nextSetBit(s + 1)) {
+                if (nfa.type.get(s) == Nfa.ACCEPT) acceptNow[id] = true;
+                if (nfa.type.get(s) == Nfa.ACCEPT_AT_END) acceptAtEnd[id] = true;
+            }
+            acceptAtEnd[id] |= acceptNow[id];
+            // Lookups stop at the first accepting state, so it needs no transitions.
+            if (acceptNow[id]) continue;
+
+            for (int symbol = 0; symbol < DomainAlphabet.SIZE; symbol++) {
+                BitSet next = new BitSet();
+                for (int s = set.nextSetBit(0); s >= 0; s = set.nextSetBit(s + 1)) {
+                    if (nfa.type.get(s) == Nfa.CHAR && (nfa.mask.get(s) & (1L << symbol)) != 0) {
+                        nfa.closure(nfa.out1.get(s), next);
+                    }
+                }
+                int target = -1;
+                if (!next.isEmpty()) {
+                    Integer existing = ids.get(next);
+                    if (existing == null) {
+                        if (states.size() >= maxStates) return null;
+                        existing = states.size();
+                        states.add(next);
+                        ids.put(next, existing);
+                        queue.add(existing);
+                    }
+                    target = existing;
+                }
+                delta[id * DomainAlphabet.SIZE + symbol] = target;
+            }
+        }
+        int count = states.size();
+        return new RegexDfa(Arrays.copyOf(delta, count * DomainAlphabet.SIZE),
+                Arrays.copyOf(acceptNow, count), Arrays.copyOf(acceptAtEnd, count));
+    }
+
+    boolean matches(String name) {
+        int state = 0;
+        if (acceptNow[state]) return true;
+        for (int i = 0; i < name.length(); i++) {
+            state = delta[state * DomainAlphabet.SIZE + DomainAlphabet.symbol(name.charAt(i))];
+            if (state < 0) return false;
+            if (acceptNow[state]) return true;
+        }
+        return acceptAtEnd[state];
+    }
+
+    /**
+     * Thompson NFA. Every construct is a fragment with one entry state and one exit state,
+     * an epsilon state whose {@code out1} is patched to whatever follows.
+     */
+    private static class Nfa {
+        static final int EPSILON = 0;
+        static final int CHAR = 1;
+        static final int ACCEPT = 2;
+        static final int ACCEPT_AT_END = 3;
+
+        final List<Integer> type = new ArrayList<>();
+        final List<Long> mask = new ArrayList<>();
+        final List<Integer> out1 = new ArrayList<>();
+        final List<Integer> out2 = new ArrayList<>();
+
+        private String pattern;
+        private int pos;
+        private int end;
+
+        /**
+         * @return Entry state of the expression.
+         */
+        int add(String regex) {
+            pattern = regex;
+            pos = 0;
+            end = regex.length();
+            boolean anchoredStart = regex.startsWith("^");
+            boolean anchoredEnd = regex.endsWith("$") && !regex.endsWith("\\$");
+            if (anchoredStart) pos++;
+            if (anchoredEnd) end--;
+
+            int[] body = parseAlternation();
+            if (pos != end) throw new IllegalArgumentException("Unexpected " + pattern.charAt(pos));
+            out1.set(body[1], state(anchoredEnd ? ACCEPT_AT_END : ACCEPT, 0, -1, -1));
+            if (anchoredStart) return body[0];
+
+            // An unanchored expression may start anywhere: loop over any prefix first.
+            int loop = state(EPSILON, 0, -1, body[0]);
+            out1.set(loop, state(CHAR, DomainAlphabet.ALL, loop, -1));
+            return loop;
+        }
+
+        void closure(int start, BitSet into) {
+            ArrayDeque<Integer> stack = new ArrayDeque<>();
+            stack.push(start);
+            while (!stack.isEmpty()) {
+                int s = stack.pop();
+                if (s < 0 || into.get(s)) continue;
+                into.set(s);
+                if (type.get(s) == EPSILON) {
+                    stack.push(out1.get(s));
+                    stack.push(out2.get(s));
+                }
+            }
+        }
+
+        private int state(int stateType, long stateMask, int next1, int next2) {
+            type.add(stateType);
+            mask.add(stateMask);
+            out1.add(next1);
+            out2.add(next2);
+            return type.size() - 1;
+        }
+
+        private int[] parseAlternation() {
+            int[] fragment = parseConcatenation();
+            while (pos < end && pattern.charAt(pos) == '|') {
+                pos++;
+                int[] other = parseConcatenation();
+                int exit = state(EPSILON, 0, -1, -1);
+                out1.set(fragment[1], exit);
+                out1.set(other[1], exit);
+                fragment = new int[]{state(EPSILON, 0, fragment[0], other[0]), exit};
+            }
+            return fragment;
+        }
+
+        private int[] parseConcatenation() {
+            int entry = state(EPSILON, 0, -1, -1);
+            int exit = entry;
+            while (pos < end && pattern.charAt(pos) != '|' && pattern.charAt(pos) != ')') {
+                int[] next = parseRepetition();
+                out1.set(exit, next[0]);
+                exit = next[1];
+            }
+            return new int[]{entry, exit};
+        }
+
+        private int[] parseRepetition() {
+            int atomStart = pos;
+            int[] atom = parseAtom();
+            if (pos >= end) return atom;
+            char c = pattern.charAt(pos);
+            if (c == '*' || c == '+' || c == '?') {
+                pos++;
+                int exit = state(EPSILON, 0, -1, -1);
+                int split = state(EPSILON, 0, atom[0], exit);
+                out1.set(atom[1], c == '?' ? exit : split);
+                return new int[]{c == '+' ? atom[0] : split, exit};
+            }
+            if (c != '{') return atom;
+
+            int close = pattern.indexOf('}', pos);
+            if (close < 0 || close >= end) throw new IllegalArgumentException("Unclosed {");
+            String[] bounds = pattern.substring(pos + 1, close).split(",", -1);
+            int min = parseBound(bounds[0]);
+            int max = bounds.length == 1 ? min : bounds[1].isEmpty() ? -1 : parseBound(bounds[1]);
+            if (bounds.length > 2 || (max >= 0 && max < min)) throw new IllegalArgumentException("Bad bounds");
+            int atomEnd = pos;
+            int afterBounds = close + 1;
+
+            // The atom is re-parsed for every copy, so each copy gets its own states.
+            int entry = state(EPSILON, 0, -1, -1);
+            int exit = entry;
+            int copies = max < 0 ? min + 1 : max;
+            for (int i = 0; i < copies; i++) {
+                int[] copy = i == 0 ? atom : reparse(atomStart, atomEnd);
+                if (i < min) {
+                    out1.set(exit, copy[0]);
+                    exit = copy[1];
+                } else if (max < 0) {
+                    int next = state(EPSILON, 0, -1, -1);
+                    int split = state(EPSILON, 0, copy[0], next);
+                    out1.set(exit, split);
+                    out1.set(copy[1], split);
+                    exit = next;
+                } else {
+                    int next = state(EPSILON, 0, -1, -1);
+                    out1.set(exit, state(EPSILON, 0, copy[0], next));
+                    out1.set(copy[1], next);
+                    exit = next;
+                }
+            }
+            pos = afterBounds;
+            return new int[]{entry, exit};
+        }
+
+        private int[] reparse(int from, int to) {
+            int saved = pos;
+            pos = from;
+            int[] copy = parseAtom();
+            if (pos != to) throw new IllegalStateException();
+            pos = saved;
+            return copy;
+        }
+
+        private int parseBound(String value) {
+            if (value.isEmpty() || value.length() > 2) throw new IllegalArgumentException("Bad bound " + value);
+            for (int i = 0; i < value.length(); i++) {
+                if (!Character.isDigit(value.charAt(i))) throw new IllegalArgumentException("Bad bound " + value);
+            }
+            int bound = Integer.parseInt(value);
+            if (bound > MAX_REPEAT) throw new IllegalArgumentException("Bound too large " + value);
+            return bound;
+        }
+
+        private int[] parseAtom() {
+            char c = pattern.charAt(pos++);
+            switch (c) {
+                case '(':
+                    if (pattern.startsWith("?:", pos)) {
+                        pos += 2;
+                    } else if (pos < end && pattern.charAt(pos) == '?') {
+                        throw new IllegalArgumentException("Unsupported group");
+                    }
+                    int[] group = parseAlternation();
+                    if (pos >= end || pattern.charAt(pos) != ')') throw new IllegalArgumentException("Unclosed (");
+                    pos++;
+                    return group;
+                case '[':
+                    return charFragment(parseClass());
+                case '.':
+                    return charFragment(DomainAlphabet.ALL);
+                case '\\':
+                    return charFragment(parseEscape());
+                case '*': case '+': case '?': case '{': case '}': case ')': case '^': case '$': case '|':
+                    throw new IllegalArgumentException("Unexpected " + c);
+                default:
+                    return charFragment(1L << DomainAlphabet.symbol(c));
+            }
+        }
+
+        private int[] charFragment(long charMask) {
+            int exit = state(EPSILON, 0, -1, -1);
+            return new int[]{state(CHAR, charMask, exit, -1), exit};
+        }
+
+        private long parseClass() {
+            boolean negated = pos < end && pattern.charAt(pos) == '^';
+            if (negated) pos++;
+            long result = 0;
+            boolean first = true;
+            while (true) {
+                if (pos >= end) throw new IllegalArgumentException("Unclosed [");
+                char c = pattern.charAt(pos++);
+                if (c == ']' && !first) break;
+                first = false;
+                if (c == '\\') {
+                    char escaped = pattern.charAt(pos);
+                    if (escaped == 'd' || escaped == 'w') {
+                        result |= parseEscape();
+                        continue;
+                    }
+                    result |= parseEscape();
+                    c = escaped;
+                } else {
+                    result |= 1L << DomainAlphabet.symbol(c);
+                }
+                if (pos + 1 < end && pattern.charAt(pos) == '-' && pattern.charAt(pos + 1) != ']') {
+                    char to = pattern.charAt(pos + 1);
+                    if (to == '\\' || to < c) throw new IllegalArgumentException("Bad range");
+                    for (int x = c; x <= to; x++) {
+                        result |= 1L << DomainAlphabet.symbol((char) x);
+                    }
+                    pos += 2;
+                }
+            }
+            return negated ? DomainAlphabet.ALL & ~result : result;
+        }
+
+        private long parseEscape() {
+            if (pos >= end) throw new IllegalArgumentException("Trailing \\");
+            char c = pattern.charAt(pos++);
+            if (c == 'd') return DomainAlphabet.DIGITS;
+            if (c == 'w') return DomainAlphabet.LETTERS | DomainAlphabet.DIGITS | 1L << DomainAlphabet.UNDERSCORE;
+            if (Character.isLetterOrDigit(c)) throw new IllegalArgumentException("Unsupported escape \\" + c);
+            return 1L << DomainAlphabet.symbol(c);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package com.deviknitkkr.clean_net.blocklist;
+
+import org.xbill.DNS.Type;
+
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+/**
+ * Turns blocklist lines into {@link WildcardTrie} patterns, or into keyword and regex rules
+ * for {@link PatternRules}.
+ * <p>
+ * The format is detected per line, so plain domain lists, hosts files, AdBlock-style
+ * {@code ||domain^} rules and dnsmasq {@code address=/domain/} entries can be mixed freely.
+ * Keyword rules ({@code *adserver*}) are accepted in domain lists and AdBlock lists, regex
+ * rules ({@code /^ads?[0-9]*\./}) in AdBlock syntax.
+ */
+public final class RuleParser {
+    /**
+     * Separates a pattern from the query types its rule is limited to, as in
+     * {@code ads.example.com$dnstype=AAAA|HTTPS}. Only emitted for AdBlock {@code $dnstype} rules.
+     */
+    public static final String DNSTYPE_OPTION = "$dnstype=";
+
+    public enum Format {
+        DOMAINS,
+        HOSTS,
+        ADBLOCK,
+        DNSMASQ,
+        NONE
+    }
+
+    private RuleParser() {
+    }
+
+    /**
+     * Detects the format of a single line.
+     *
+     * @param line Trimmed line from a blocklist.
+     * @return The detected format, or NONE for blank lines and comments.
+     */
+    public static Format detect(String line) {
+        if (line.isEmpty() || line.startsWith("#") || line.startsWith("!") || line.startsWith("[")) {
+            return Format.NONE;
+        }
+        if (line.startsWith("|") || line.startsWith("@@") || line.endsWith("^") || line.contains("^$")
+                || (line.startsWith("/") && line.length() > 2)) {
+            return Format.ADBLOCK;
+        }
+        if (line.startsWith("address=/") || line.startsWith("server=/") || line.startsWith("local=/")) {
+            return Format.DNSMASQ;
+        }
+        int space = indexOfWhitespace(line);
+        if (space > 0 && isIpAddress(line.substring(0, space))) {
+            return Format.HOSTS;
+        }
+        return Format.DOMAINS;
+    }
+
+    /**
+     * Parses a line and hands every pattern it contains to {@code out}.
+     *
+     * @param line Raw line from a blocklist.
+     * @param out  Receives normalized patterns.
+     * @return Number of patterns emitted.
+     */
+    public static int parse(String line, Consumer<String> out) {
+        String trimmed = line.trim();
+        switch (detect(trimmed)) {
+            case DOMAINS:
+                return emit(stripComment(trimmed), out);
+            case HOSTS:
+                return parseHosts(stripComment(trimmed), out);
+            case ADBLOCK:
+                return parseAdblock(trimmed, out);
+            case DNSMASQ:
+                return parseDnsmasq(trimmed, out);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @param line Raw line from a blocklist.
+     * @return The first pattern on the line, or null if the line carries no rule.
+     */
+    public static String parseLine(String line) {
+        String[] first = new String[1];
+        parse(line, rule -> {
+            if (first[0] == null) first[0] = rule;
+        });
+        return first[0];
+    }
+
+    /**
+     * @return The pattern of a rule, without any {@link #DNSTYPE_OPTION}.
+     */
+    public static String patternOf(String rule) {
+        int option = rule.indexOf(DNSTYPE_OPTION);
+        return option >= 0 ? rule.substring(0, option) : rule;
+    }
+
+    /**
+     * @return The query types a rule is limited to, or null if it applies to all of them.
+     */
+    public static int[] dnsTypesOf(String rule) {
+        int option = rule.indexOf(DNSTYPE_OPTION);
+        if (option < 0) return null;
+        String[] names = rule.substring(option + DNSTYPE_OPTION.length()).split("\\|");
+        int[] types = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            types[i] = Type.value(names[i]);
+        }
+        return types;
+    }
+
+    private static int parseHosts(String line, Consumer<String> out) {
+        String[] tokens = line.split("\\s+");
+        int count = 0;
+        for (int i = 1; i < tokens.length; i++) {
+            String host = tokens[i];
+            if (host.equals("localhost") || host.equals("localhost.localdomain")
+                    || host.equals("broadcasthost") || host.equals("local") || isIpAddress(host)) {
+                continue;
+            }
+            count += emit(host, out);
+        }
+        return count;
+    }
+
+    private static int parseAdblock(String line, Consumer<String> out) {
+        // Exception rules need allowlist support, which the trie doesn't have.
+        if (line.startsWith("@@")) return 0;
+
+        String rule = line;
+        String dnsTypes = null;
+        // A regex may itself contain "$"; its options can only follow the closing slash.
+        int options = rule.startsWith("/") ? rule.indexOf('$', rule.lastIndexOf('/')) : rule.indexOf('$');
+        if (options >= 0) {
+            // Only modifiers that don't narrow the rule, or narrow it by query type, can be
+            // honoured at DNS level.
+            for (String option : rule.substring(options + 1).split(",")) {
+                if (option.startsWith("dnstype=")) {
+                    dnsTypes = normalizeDnsTypes(option.substring("dnstype=".length()));
+                    if (dnsTypes == null) return 0;
+                } else if (!option.equals("important") && !option.equals("all")) {
+                    return 0;
+                }
+            }
+            rule = rule.substring(0, options);
+        }
+        if (PatternRules.isRegexRule(rule)) {
+            // Kept verbatim: lower-casing would change escapes such as \D. Matching ignores case anyway.
+            if (dnsTypes != null || !RegexDfa.isSupported(rule.substring(1, rule.length() - 1))) return 0;
+            out.accept(rule);
+            return 1;
+        }
+        if (rule.startsWith("||")) {
+            rule = rule.substring(2);
+        } else if (rule.startsWith("|")) {
+            rule = rule.substring(1);
+        }
+        if (rule.endsWith("^")) {
+            rule = rule.substring(0, rule.length() - 1);
+        }
+        return emit(rule, dnsTypes, out);
+    }
+
+    /**
+     * @param value Value of a {@code dnstype} modifier, e.g. {@code AAAA|HTTPS}.
+     * @return The known types in canonical order, or null if any is unknown or excluded with {@code ~}.
+     */
+    private static String normalizeDnsTypes(String value) {
+        TreeSet<String> types = new TreeSet<>();
+        for (String name : value.split("\\|")) {
+            int type = Type.value(name.toUpperCase(Locale.ROOT));
+            if (type < 0) return null;
+            types.add(Type.string(type));
+        }
+        return types.isEmpty() ? null : String.join("|", types);
+    }
+
+    private static int parseDnsmasq(String line, Consumer<String> out) {
+        // server=/domain/ forwards instead of blocking, local=/domain/ only scopes lookups.
+        if (!line.startsWith("address=/")) return 0;
+        String[] parts = line.substring("address=".length()).split("/", -1);
+        int count = 0;
+        for (int i = 1; i < parts.length - 1; i++) {
+            count += emit(parts[i], out);
+        }
+        return count;
+    }
+
+    private static int emit(String candidate, Consumer<String> out) {
+        return emit(candidate, null, out);
+    }
+
+    private static int emit(String candidate, String dnsTypes, Consumer<String> out) {
+        String rule = candidate.toLowerCase(Locale.ROOT);
+        if (rule.endsWith(".")) {
+            rule = rule.substring(0, rule.length() - 1);
+        }
+        if (PatternRules.isKeywordRule(rule)) {
+            if (dnsTypes != null || !isValidKeyword(rule.substring(1, rule.length() - 1))) return 0;
+            out.accept(rule);
+            return 1;
+        }
+        if (!isValidPattern(rule)) return 0;
+        out.accept(dnsTypes == null ? rule : rule + DNSTYPE_OPTION + dnsTypes);
+        return 1;
+    }
+
+    /**
+     * Accepts host names whose only wildcard, if any, is a leading {@code *.} label. The trie
+     * treats any other wildcard as covering everything below it, so those are rejected.
+     */
+    static boolean isValidPattern(String rule) {
+        if (rule.isEmpty() || rule.length() > 253) return false;
+        int start = rule.startsWith("*.") ? 2 : 0;
+        if (start == 2 && rule.length() == 2) return false;
+        int labelLength = 0;
+        for (int i = start; i < rule.length(); i++) {
+            char c = rule.charAt(i);
+            if (c == '.') {
+                if (labelLength == 0) return false;
+                labelLength = 0;
+            } else if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_') {
+                if (++labelLength > 63) return false;
+            } else {
+                return false;
+            }
+        }
+        return labelLength > 0;
+    }
+
+    private static boolean isValidKeyword(String keyword) {
+        for (int i = 0; i < keyword.length(); i++) {
+            char c = keyword.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_' || c == '.')) {
+                return false;
+            }
+        }
+        return !keyword.isEmpty();
+    }
+
+    private static String stripComment(String line) {
+        int hash = line.indexOf('#');
+        return hash >= 0 ? line.substring(0, hash).trim() : line;
+    }
+
+    private static int indexOfWhitespace(String line) {
+        for (int i = 0; i < line.length(); i++) {
+            if (Character.isWhitespace(line.charAt(i))) return i;
+        }
+        return -1;
+    }
+
+    private static boolean isIpAddress(String token) {
+        if (token.indexOf(':') >= 0) {
+            for (int i = 0; i < token.length(); i++) {
+                char c = token.charAt(i);
+                if (c != ':' && c != '.' && Character.digit(c, 16) < 0) return false;
+            }
+            return true;
+        }
+        int dots = 0;
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (c == '.') dots++;
+            else if (c < '0' || c > '9') return false;
+        }
+        return dots == 3;
+    }
+}
@@ -0,0 +1,136 @@
+package com.deviknitkkr.clean_net.blocklist;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the blocklist subscriptions of the app up to date.
+ * <p>
+ * Every URL is fetched conditionally into its own cache file, then all cached sources are
+ * merged into a single deduplicated list. The merge is skipped when no source changed.
+ */
+public class SubscriptionManager {
+    private static final String MERGED_FILE = "subscription.txt";
+    private static final String SOURCES_FILE = "subscription.sources";
+
+    public static class RefreshResult {
+        public final boolean updated;
+        public final int ruleCount;
+        // The plain rules of the merged list when it changed, otherwise null.
+        public final WildcardTrie trie;
+        public final List<BlocklistMerger.SourceStats> sources;
+
+        RefreshResult(boolean updated, int ruleCount, WildcardTrie trie,
+                      List<BlocklistMerger.SourceStats> sources) {
+            this.updated = updated;
+            this.ruleCount = ruleCount;
+            this.trie = trie;
+            this.sources = sources;
+        }
+    }
+
+    private final File dir;
+    private final ExecutorService executor;
+    private final BlocklistFetcher fetcher = new BlocklistFetcher();
+
+    /**
+     * @param dir      Directory holding the per-source and merged cache files.
+     * @param executor Pool used for parallel fetching and parsing.
+     */
+    public SubscriptionManager(File dir, ExecutorService executor) {
+        this.dir = dir;
+        this.executor = executor;
+    }
+
+    /**
+     * Refreshes all subscriptions. A source that fails to download falls back to its cached
+     * copy; the refresh only fails if a source has never been downloaded successfully.
+     *
+     * @param ruleConsumer Receives the rules of the merged list that the result's trie doesn't
+     *                     hold, i.e. type-limited, keyword and regex rules, when it changed.
+     */
+    public RefreshResult refresh(List<String> urls, Consumer<String> ruleConsumer) throws IOException {
+        List<Future<BlocklistFetcher.Result>> fetches = new ArrayList<>(urls.size());
+        for (String url : urls) {
+            fetches.add(executor.submit(() -> fetcher.fetch(url, sourceFile(url), rule -> {})));
+        }
+
+        File sourcesFile = new File(dir, SOURCES_FILE);
+        boolean changed = !mergedFile().exists() || !urls.equals(readSources(sourcesFile));
+        List<BlocklistMerger.Source> sources = new ArrayList<>(urls.size());
+        for (int i = 0; i < urls.size(); i++) {
+            String url = urls.get(i);
+            File sourceFile = sourceFile(url);
+            try {
+                changed |= fetches.get(i).get().status == BlocklistFetcher.Status.UPDATED;
+            } catch (ExecutionException e) {
+                if (!sourceFile.exists()) {
+                    throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while fetching " + url, e);
+            }
+            sources.add(new BlocklistMerger.Source(url, () -> new InputStreamReader(
+                    new FileInputStream(sourceFile), StandardCharsets.UTF_8)));
+        }
+
+        if (!changed) {
+            return new RefreshResult(false, ruleCount(), null, Collections.emptyList());
+        }
+
+        BlocklistMerger.Result merged;
+        try (BlocklistFetcher.CacheWriter writer = new BlocklistFetcher.CacheWriter(mergedFile())) {
+            merged = new BlocklistMerger(executor).merge(sources, rule -> {
+                writer.add(rule);
+                if (!BlocklistMerger.isPlainRule(rule)) {
+                    ruleConsumer.accept(rule);
+                }
+            });
+            writer.commit();
+        }
+        BlocklistFetcher.writeCached(sourcesFile, urls);
+        return new RefreshResult(true, merged.ruleCount, merged.trie, merged.stats);
+    }
+
+    /**
+     * Streams the merged list into {@code ruleConsumer}.
+     *
+     * @return Number of rules loaded.
+     */
+    public int load(Consumer<String> ruleConsumer) throws IOException {
+        return BlocklistFetcher.loadCached(mergedFile(), ruleConsumer);
+    }
+
+    public int ruleCount() {
+        return BlocklistFetcher.cachedRuleCount(mergedFile());
+    }
+
+    private static List<String> readSources(File sourcesFile) {
+        List<String> urls = new ArrayList<>();
+        try {
+            BlocklistFetcher.loadCached(sourcesFile, urls::add);
+        } catch (IOException e) {
+            return Collections.emptyList();
+        }
+        return urls;
+    }
+
+    private File mergedFile() {
+        return new File(dir, MERGED_FILE);
+    }
+
+    private File sourceFile(String url) {
+        return new File(dir, "subscription-" + Integer.toHexString(url.hashCode()) + ".txt");
+    }
+}
@@ -0,0 +1,46 @@
+package com.deviknitkkr.clean_net.blocklist;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Blocklist rules limited to certain query types, e.g. {@code ||example.com^$dnstype=AAAA}.
+ * <p>
+ * They are kept apart from the main matcher, which only sees names, in one
+ * {@link WildcardTrie} per query type. Not thread-safe while being built; publish it once
+ * complete and only read it afterwards.
+ */
+public class TypedRules {
+    private final Map<Integer, WildcardTrie> byType = new HashMap<>();
+    private final List<String> rules = new ArrayList<>();
+
+    /**
+     * @param rule Rule as emitted by {@link RuleParser}.
+     * @return Whether the rule is type-specific and was added; plain rules belong in the main matcher.
+     */
+    public boolean add(String rule) {
+        int[] types = RuleParser.dnsTypesOf(rule);
+        if (types == null) return false;
+        String pattern = RuleParser.patternOf(rule);
+        for (int type : types) {
+            byType.computeIfAbsent(type, k -> new WildcardTrie()).insert(pattern);
+        }
+        rules.add(rule);
+        return true;
+    }
+
+    public boolean matches(String domain, int qtype) {
+        WildcardTrie trie = byType.get(qtype);
+        return trie != null && trie.matches(domain);
+    }
+
+    /**
+     * @return The rules in the form they were added, e.g. for persisting them.
+     */
+    public List<String> getRules() {
+        return Collections.unmodifiableList(rules);
+    }
+}
@@ -1,12 +1,10 @@
 package com.deviknitkkr.clean_net.blocklist;
 
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
-public class WildcardTrie {
-    private final TrieNode root = new TrieNode();
+public class WildcardTrie implements DomainMatcher {
+    final TrieNode root = new TrieNode();
 
     public void insert(String domainPattern) {
         if (domainPattern == null || domainPattern.isEmpty()) {
@@ -34,6 +32,7 @@ public class WildcardTrie {
         current.isWildcard = true;
     }
 
+    @Override
     public boolean matches(String domain) {
         if (domain == null || domain.isEmpty()) {
             return false;
@@ -66,7 +65,7 @@ public class WildcardTrie {
         return false;
     }
 
-    private static class TrieNode {
+    static class TrieNode {
         Map<String, TrieNode> children = new HashMap<>();
         boolean isWildcard = false;
     }
@@ -0,0 +1,292 @@
+package com.deviknitkkr.clean_net.cache;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Second cache tier that keeps wire-format DNS answers in a memory-mapped file, so they
+ * survive service and process restarts.
+ * <p>
+ * The file is a fixed table of slots addressed by key hash; a key may live in any of
+ * {@link #PROBES} consecutive slots, and a full neighbourhood evicts the entry expiring first.
+ * Writes are queued and flushed in batches on a background thread, which also opens the file.
+ * Lookups never touch the file system: they miss until the file is mapped, and only lock the
+ * slot they read, so a flush never holds up a query for longer than one slot write. Because
+ * the file is mapped, flushed entries reach the page cache immediately and outlive a killed
+ * process.
+ * Layout (big-endian):
+ * <pre>
+ * header: magic, version, slot count, slot size (4 x int)
+ * slot:   key hash (int), expires at (long, 0 = empty), key length, data length (2 x short), key, data
+ * </pre>
+ */
+public class DiskDnsCache implements Closeable {
+    private static final String TAG = "DiskDnsCache";
+    private static final int MAGIC = 0x434E4443; // "CNDC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 512;
+    private static final int SLOT_HEADER_SIZE = 16;
+    private static final int PROBES = 4;
+    private static final int FLUSH_DELAY_MS = 2_000;
+    private static final int MAX_PENDING_WRITES = 128;
+    private static final int LOCK_STRIPES = 64;
+
+    public static class Entry {
+        public final byte[] data;
+        public final long expiresAt;
+
+        Entry(byte[] data, long expiresAt) {
+            this.data = data;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final File file;
+    private final int slotCount;
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "dns-disk-cache");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private final Map<String, Entry> pendingWrites = new LinkedHashMap<>();
+    private boolean flushScheduled;
+    // Held by whoever writes the file: the writer thread, clear() and close().
+    private final Object writeLock = new Object();
+    // Guards the contents of the slots whose index maps to them.
+    private final Object[] slotLocks = new Object[LOCK_STRIPES];
+    private volatile MappedByteBuffer buffer;
+    private boolean unusable;
+    private boolean clearOnOpen;
+
+    /**
+     * The file is opened on the writer thread, so creating the cache costs nothing at startup.
+     *
+     * @param file      Backing file; created, or recreated if its layout doesn't match.
+     * @param slotCount Capacity in entries. The file takes {@code slotCount * 512} bytes.
+     */
+    public DiskDnsCache(File file, int slotCount) {
+        this.file = file;
+        this.slotCount = slotCount;
+        for (int i = 0; i < slotLocks.length; i++) {
+            slotLocks[i] = new Object();
+        }
+        writer.execute(() -> {
+            synchronized (writeLock) {
+                ensureOpen();
+            }
+        });
+    }
+
+    /**
+     * @return The entry for {@code key} if it is still valid at {@code now}, otherwise null.
+     */
+    public Entry get(String key, long now) {
+        synchronized (pendingWrites) {
+            Entry pending = pendingWrites.get(key);
+            if (pending != null) {
+                return pending.expiresAt > now ? pending : null;
+            }
+        }
+        MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) return null;
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = key.hashCode();
+        for (int i = 0; i < PROBES; i++) {
+            int index = slotIndex(hash, i);
+            int slot = HEADER_SIZE + index * SLOT_SIZE;
+            synchronized (slotLocks[index % LOCK_STRIPES]) {
+                long expiresAt = buffer.getLong(slot + 4);
+                if (expiresAt != 0 && buffer.getInt(slot) == hash && keyEquals(buffer, slot, keyBytes)) {
+                    if (expiresAt <= now) return null;
+                    int keyLength = buffer.getShort(slot + 12) & 0xFFFF;
+                    byte[] data = new byte[buffer.getShort(slot + 14) & 0xFFFF];
+                    for (int j = 0; j < data.length; j++) {
+                        data[j] = buffer.get(slot + SLOT_HEADER_SIZE + keyLength + j);
+                    }
+                    return new Entry(data, expiresAt);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queues an entry for the next batched write. Entries too large for a slot are ignored.
+     */
+    public void put(String key, byte[] data, long expiresAt) {
+        if (SLOT_HEADER_SIZE + key.length() * 3 + data.length > SLOT_SIZE) return;
+        boolean flushNow;
+        synchronized (pendingWrites) {
+            pendingWrites.put(key, new Entry(data, expiresAt));
+            flushNow = pendingWrites.size() >= MAX_PENDING_WRITES;
+            if (!flushNow && flushScheduled) return;
+            flushScheduled = true;
+        }
+        try {
+            writer.schedule(this::flush, flushNow ? 0 : FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            // Closed concurrently; the entry is simply not persisted.
+        }
+    }
+
+    /**
+     * Drops every entry, e.g. when answers from the previous resolvers no longer apply.
+     */
+    public void clear() {
+        synchronized (pendingWrites) {
+            pendingWrites.clear();
+        }
+        synchronized (writeLock) {
+            if (buffer == null) {
+                // Not mapped yet; wiping is left to the writer thread rather than opening here.
+                clearOnOpen = true;
+                return;
+            }
+            wipe(buffer);
+        }
+    }
+
+    /**
+     * Writes the queued entries and stops the writer thread.
+     */
+    @Override
+    public void close() {
+        writer.shutdown();
+        flush();
+        synchronized (writeLock) {
+            if (buffer != null) {
+                buffer.force();
+            }
+        }
+    }
+
+    private void flush() {
+        List<Map.Entry<String, Entry>> batch;
+        synchronized (pendingWrites) {
+            batch = new ArrayList<>(pendingWrites.entrySet());
+            pendingWrites.clear();
+            flushScheduled = false;
+        }
+        if (batch.isEmpty()) return;
+        long now = System.currentTimeMillis();
+        synchronized (writeLock) {
+            if (!ensureOpen()) return;
+            for (Map.Entry<String, Entry> entry : batch) {
+                if (entry.getValue().expiresAt > now) {
+                    write(entry.getKey(), entry.getValue(), now);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores one entry. Called with {@link #writeLock} held, so slots only change under it and
+     * the neighbourhood can be scanned without the slot locks.
+     */
+    private void write(String key, Entry entry, long now) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (SLOT_HEADER_SIZE + keyBytes.length + entry.data.length > SLOT_SIZE) return;
+        int hash = key.hashCode();
+
+        int target = -1;
+        long targetExpiry = Long.MAX_VALUE;
+        for (int i = 0; i < PROBES; i++) {
+            int index = slotIndex(hash, i);
+            int slot = HEADER_SIZE + index * SLOT_SIZE;
+            long expiresAt = buffer.getLong(slot + 4);
+            if (expiresAt != 0 && buffer.getInt(slot) == hash && keyEquals(buffer, slot, keyBytes)) {
+                target = index;
+                break;
+            }
+            long rank = expiresAt <= now ? 0 : expiresAt;
+            if (rank < targetExpiry) {
+                target = index;
+                targetExpiry = rank;
+            }
+        }
+
+        int slot = HEADER_SIZE + target * SLOT_SIZE;
+        synchronized (slotLocks[target % LOCK_STRIPES]) {
+            // Mark the slot empty while it is rewritten, so a crash never leaves a half-written entry valid.
+            buffer.putLong(slot + 4, 0);
+            buffer.putInt(slot, hash);
+            buffer.putShort(slot + 12, (short) keyBytes.length);
+            buffer.putShort(slot + 14, (short) entry.data.length);
+            int pos = slot + SLOT_HEADER_SIZE;
+            for (byte b : keyBytes) buffer.put(pos++, b);
+            for (byte b : entry.data) buffer.put(pos++, b);
+            buffer.putLong(slot + 4, entry.expiresAt);
+        }
+    }
+
+    private void wipe(MappedByteBuffer buffer) {
+        for (int i = 0; i < slotCount; i++) {
+            synchronized (slotLocks[i % LOCK_STRIPES]) {
+                buffer.putLong(HEADER_SIZE + i * SLOT_SIZE + 4, 0);
+            }
+        }
+    }
+
+    private static boolean keyEquals(MappedByteBuffer buffer, int slot, byte[] keyBytes) {
+        if ((buffer.getShort(slot + 12) & 0xFFFF) != keyBytes.length) return false;
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (buffer.get(slot + SLOT_HEADER_SIZE + i) != keyBytes[i]) return false;
+        }
+        return true;
+    }
+
+    private int slotIndex(int hash, int probe) {
+        return Math.floorMod(hash + probe, slotCount);
+    }
+
+    /**
+     * Maps the file, creating it if needed. Called with {@link #writeLock} held, on the
+     * writer thread or by {@link #close()}.
+     */
+    private boolean ensureOpen() {
+        if (buffer != null) return true;
+        if (unusable) return false;
+        long size = HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            boolean valid = raf.length() == size
+                    && raf.readInt() == MAGIC && raf.readInt() == VERSION
+                    && raf.readInt() == slotCount && raf.readInt() == SLOT_SIZE;
+            if (!valid) {
+                raf.setLength(0);
+                raf.setLength(size);
+                raf.seek(0);
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeInt(slotCount);
+                raf.writeInt(SLOT_SIZE);
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (clearOnOpen) {
+                clearOnOpen = false;
+                wipe(mapped);
+            }
+            buffer = mapped;
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Disabling disk cache " + file, e);
+            unusable = true;
+            return false;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.deviknitkkr.clean_net.memory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Sizes the in-memory structures from the heap the process may use and shrinks them step by
+ * step under memory pressure, so the VPN process is a less attractive target for the
+ * low-memory killer.
+ * <p>
+ * Full-size limits scale with the memory class (the per-app heap limit in MB). Each pressure
+ * step halves every limit, down to an eighth. The step only ever grows on trim events; once
+ * no pressure has been reported for {@link #RELAX_AFTER_MS}, {@link #relax(long)} undoes one
+ * step at a time. Free of Android dependencies: trim levels are passed as plain ints.
+ */
+public class MemoryBudget {
+    // Same values as android.content.ComponentCallbacks2.
+    public static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
+    public static final int TRIM_MEMORY_RUNNING_LOW = 10;
+    public static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+    public static final int TRIM_MEMORY_UI_HIDDEN = 20;
+    public static final int TRIM_MEMORY_BACKGROUND = 40;
+    public static final int TRIM_MEMORY_MODERATE = 60;
+    public static final int TRIM_MEMORY_COMPLETE = 80;
+
+    static final int MAX_STEP = 3;
+    static final long RELAX_AFTER_MS = 5 * 60_000;
+
+    public static class Limits {
+        /** DNS cache entries, across all shards. */
+        public final int cacheEntries;
+        /** Queries awaiting an upstream answer. */
+        public final int pendingQueries;
+        /** Lines kept in the app log. */
+        public final int logEntries;
+        /** Domains with a blocked-query counter. */
+        public final int statsEntries;
+
+        Limits(int cacheEntries, int pendingQueries, int logEntries, int statsEntries) {
+            this.cacheEntries = cacheEntries;
+            this.pendingQueries = pendingQueries;
+            this.logEntries = logEntries;
+            this.statsEntries = statsEntries;
+        }
+
+        @Override
+        public String toString() {
+            return cacheEntries + " cache entries, " + pendingQueries + " pending queries, "
+                    + logEntries + " log lines, " + statsEntries + " stats entries";
+        }
+    }
+
+    public interface Listener {
+        void onLimitsChanged(Limits limits);
+    }
+
+    private final int memoryClassMb;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private int step;
+    private long lastPressureAt;
+    private Limits limits;
+
+    /**
+     * @param memoryClassMb Heap limit of the process in MB, e.g. from {@code ActivityManager.getMemoryClass()}.
+     */
+    public MemoryBudget(int memoryClassMb) {
+        this.memoryClassMb = memoryClassMb;
+        this.limits = limitsFor(memoryClassMb, 0);
+    }
+
+    /**
+     * @param step Pressure step, 0 (none) to {@link #MAX_STEP}.
+     */
+    static Limits limitsFor(int memoryClassMb, int step) {
+        int mb = Math.max(16, Math.min(memoryClassMb, 512));
+        return new Limits(
+                Math.max(32, (mb * 8) >> step),
+                Math.max(32, (mb * 2) >> step),
+                Math.max(32, Math.min(mb * 2, 512) >> step),
+                Math.max(64, (mb * 32) >> step));
+    }
+
+    /**
+     * @return The step a trim level calls for. Levels only about hiding the UI don't concern a
+     * service and map to 0.
+     */
+    static int stepFor(int trimLevel) {
+        if (trimLevel >= TRIM_MEMORY_MODERATE) return MAX_STEP;
+        if (trimLevel >= TRIM_MEMORY_BACKGROUND) return 1;
+        if (trimLevel >= TRIM_MEMORY_UI_HIDDEN) return 0;
+        if (trimLevel >= TRIM_MEMORY_RUNNING_CRITICAL) return MAX_STEP;
+        if (trimLevel >= TRIM_MEMORY_RUNNING_LOW) return 2;
+        if (trimLevel >= TRIM_MEMORY_RUNNING_MODERATE) return 1;
+        return 0;
+    }
+
+    /**
+     * Registers a listener and immediately hands it the current limits.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+        listener.onLimitsChanged(getLimits());
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public synchronized Limits getLimits() {
+        return limits;
+    }
+
+    public synchronized int getStep() {
+        return step;
+    }
+
+    public void onTrimMemory(int level, long now) {
+        onPressure(stepFor(level), now);
+    }
+
+    public void onLowMemory(long now) {
+        onPressure(MAX_STEP, now);
+    }
+
+    /**
+     * Grows the limits back by one step if there was no pressure for a while. Meant to be
+     * called periodically.
+     */
+    public void relax(long now) {
+        Limits changed;
+        synchronized (this) {
+            if (step == 0 || now - lastPressureAt < RELAX_AFTER_MS) return;
+            lastPressureAt = now;
+            changed = setStep(step - 1);
+        }
+        notifyListeners(changed);
+    }
+
+    private void onPressure(int target, long now) {
+        if (target == 0) return;
+        Limits changed;
+        synchronized (this) {
+            lastPressureAt = now;
+            if (target <= step) return;
+            changed = setStep(target);
+        }
+        notifyListeners(changed);
+    }
+
+    private Limits setStep(int next) {
+        step = next;
+        limits = limitsFor(memoryClassMb, step);
+        return limits;
+    }
+
+    private void notifyListeners(Limits changed) {
+        for (Listener listener : listeners) {
+            listener.onLimitsChanged(changed);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.deviknitkkr.clean_net.net;
+
+import android.net.ConnectivityManager;
+import android.net.LinkAddress;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tracks the underlying networks through {@link ConnectivityManager.NetworkCallback}.
+ * <p>
+ * Once the VPN is up, the app's own default network is the VPN, so the monitor listens to
+ * every non-VPN network with internet access and picks the best one itself: validated
+ * before unvalidated, and Wi-Fi or Ethernet before cellular.
+ */
+public class AndroidNetworkMonitor implements NetworkMonitor {
+    private final ConnectivityManager connectivityManager;
+    private final Map<Network, LinkProperties> links = new HashMap<>();
+    private final Map<Network, NetworkCapabilities> capabilities = new HashMap<>();
+    private ConnectivityManager.NetworkCallback callback;
+    private Listener listener;
+    private NetworkState current;
+
+    public AndroidNetworkMonitor(ConnectivityManager connectivityManager) {
+        this.connectivityManager = connectivityManager;
+    }
+
+    @Override
+    public synchronized void start(Listener listener) {
+        if (callback != null) return;
+        this.listener = listener;
+        NetworkRequest request = new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_NOT_VPN)
+                .build();
+        callback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onCapabilitiesChanged(Network network, NetworkCapabilities networkCapabilities) {
+                synchronized (AndroidNetworkMonitor.this) {
+                    capabilities.put(network, networkCapabilities);
+                    publish();
+                }
+            }
+
+            @Override
+            public void onLinkPropertiesChanged(Network network, LinkProperties linkProperties) {
+                synchronized (AndroidNetworkMonitor.this) {
+                    links.put(network, linkProperties);
+                    publish();
+                }
+            }
+
+            @Override
+            public void onLost(Network network) {
+                synchronized (AndroidNetworkMonitor.this) {
+                    links.remove(network);
+                    capabilities.remove(network);
+                    publish();
+                }
+            }
+        };
+        connectivityManager.registerNetworkCallback(request, callback);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (callback == null) return;
+        try {
+            connectivityManager.unregisterNetworkCallback(callback);
+        } catch (IllegalArgumentException ignored) {
+            // Already unregistered.
+        }
+        callback = null;
+        listener = null;
+        links.clear();
+        capabilities.clear();
+        current = null;
+    }
+
+    private void publish() {
+        if (listener == null) return;
+        Network best = null;
+        int bestScore = -1;
+        for (Map.Entry<Network, NetworkCapabilities> entry : capabilities.entrySet()) {
+            if (!links.containsKey(entry.getKey())) continue;
+            int score = score(entry.getValue());
+            if (score > bestScore) {
+                best = entry.getKey();
+                bestScore = score;
+            }
+        }
+
+        if (best == null) {
+            if (current != null) {
+                current = null;
+                listener.onNetworkLost();
+            }
+            return;
+        }
+        LinkProperties link = links.get(best);
+        NetworkState state = new NetworkState(best.toString(), link.getDnsServers(), hasGlobalIpv6(link), best);
+        if (!state.equals(current)) {
+            current = state;
+            listener.onNetworkChanged(state);
+        }
+    }
+
+    /**
+     * @return Whether the link has an IPv6 address that can reach the internet; link-local and
+     * unique local (fc00::/7) addresses can't.
+     */
+    public static boolean hasGlobalIpv6(LinkProperties link) {
+        if (link == null) return false;
+        for (LinkAddress linkAddress : link.getLinkAddresses()) {
+            InetAddress address = linkAddress.getAddress();
+            if (address instanceof Inet6Address && !address.isLinkLocalAddress()
+                    && !address.isLoopbackAddress() && (address.getAddress()[0] & 0xFE) != 0xFC) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int score(NetworkCapabilities caps) {
+        int score = 0;
+        if (caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED)) score += 2;
+        if (!caps.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) score += 1;
+        return score;
+    }
+}
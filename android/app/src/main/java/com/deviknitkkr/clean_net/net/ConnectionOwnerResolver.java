@@ -0,0 +1,32 @@
+package com.deviknitkkr.clean_net.net;
+
+import android.net.ConnectivityManager;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Resolves socket owners through {@link ConnectivityManager#getConnectionOwnerUid}, which
+ * Android 10+ allows for connections routed through the caller's own VPN.
+ */
+public class ConnectionOwnerResolver implements SocketOwnerResolver {
+    private static final String TAG = "ConnectionOwnerResolver";
+
+    private final ConnectivityManager connectivityManager;
+
+    public ConnectionOwnerResolver(ConnectivityManager connectivityManager) {
+        this.connectivityManager = connectivityManager;
+    }
+
+    @Override
+    public int resolve(InetSocketAddress local, InetSocketAddress remote) {
+        try {
+            return connectivityManager.getConnectionOwnerUid(OsConstants.IPPROTO_UDP, local, remote);
+        } catch (SecurityException | IllegalArgumentException e) {
+            // Thrown when the VPN is no longer ours, e.g. while it is being torn down.
+            Log.d(TAG, "Owner lookup failed: " + e.getMessage());
+            return UNKNOWN_UID;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.deviknitkkr.clean_net.net;
+
+/**
+ * Source of underlying network changes. Kept behind an interface so upstream switching can be
+ * driven by simulated events instead of {@code ConnectivityManager}.
+ */
+public interface NetworkMonitor {
+    interface Listener {
+        /**
+         * Called when the network upstream queries should use changes, or its resolvers do.
+         */
+        void onNetworkChanged(NetworkState state);
+
+        /**
+         * Called when no usable network is left.
+         */
+        void onNetworkLost();
+    }
+
+    void start(Listener listener);
+
+    void stop();
+}
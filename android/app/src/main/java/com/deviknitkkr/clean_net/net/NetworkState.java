@@ -0,0 +1,50 @@
+package com.deviknitkkr.clean_net.net;
+
+import android.net.Network;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The underlying (non-VPN) network upstream queries leave through. Two states are equal when
+ * they describe the same network with the same resolvers and IPv6 connectivity.
+ */
+public class NetworkState {
+    public final String id;
+    public final List<InetAddress> dnsServers;
+    /**
+     * Whether the network has a global IPv6 address, i.e. whether AAAA answers are usable.
+     */
+    public final boolean ipv6;
+    /**
+     * Network to bind upstream sockets to; null when sockets should follow the default route.
+     */
+    public final Network network;
+
+    public NetworkState(String id, List<InetAddress> dnsServers, boolean ipv6, Network network) {
+        this.id = id;
+        this.dnsServers = dnsServers == null ? Collections.emptyList() : dnsServers;
+        this.ipv6 = ipv6;
+        this.network = network;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof NetworkState)) return false;
+        NetworkState other = (NetworkState) o;
+        return Objects.equals(id, other.id) && dnsServers.equals(other.dnsServers) && ipv6 == other.ipv6;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, dnsServers, ipv6);
+    }
+
+    @Override
+    public String toString() {
+        return "network " + id + " " + dnsServers + (ipv6 ? " ipv6" : "");
+    }
+}
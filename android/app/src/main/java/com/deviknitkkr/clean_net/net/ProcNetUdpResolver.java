@@ -0,0 +1,68 @@
+package com.deviknitkkr.clean_net.net;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Resolves socket owners from the kernel's UDP socket tables in {@code /proc/net/udp} and
+ * {@code udp6}. Apps can read them up to Android 9; on Linux they work everywhere.
+ * <p>
+ * Sockets are matched by local port only: a client socket is usually bound to the wildcard
+ * address, so the table doesn't show the address the query came from. An IPv4 query may come
+ * from a dual-stack socket, which is listed in {@code udp6}, so both tables are searched.
+ */
+public class ProcNetUdpResolver implements SocketOwnerResolver {
+    private static final int LOCAL_ADDRESS_FIELD = 1;
+    private static final int UID_FIELD = 7;
+
+    private final File udp;
+    private final File udp6;
+
+    public ProcNetUdpResolver() {
+        this(new File("/proc/net"));
+    }
+
+    /**
+     * @param procNet Directory holding the {@code udp} and {@code udp6} tables.
+     */
+    public ProcNetUdpResolver(File procNet) {
+        this.udp = new File(procNet, "udp");
+        this.udp6 = new File(procNet, "udp6");
+    }
+
+    @Override
+    public int resolve(InetSocketAddress local, InetSocketAddress remote) {
+        boolean ipv6 = local.getAddress() instanceof Inet6Address;
+        int uid = find(ipv6 ? udp6 : udp, local.getPort());
+        return uid != UNKNOWN_UID || ipv6 ? uid : find(udp6, local.getPort());
+    }
+
+    /**
+     * @return UID of the first socket bound to {@code port} in {@code table}, or {@link #UNKNOWN_UID}.
+     */
+    static int find(File table, int port) {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(table), StandardCharsets.US_ASCII))) {
+            reader.readLine(); // header
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length <= UID_FIELD) continue;
+                // "0100007F:0035": hex address and port.
+                String localAddress = fields[LOCAL_ADDRESS_FIELD];
+                int colon = localAddress.lastIndexOf(':');
+                if (colon < 0 || Integer.parseInt(localAddress.substring(colon + 1), 16) != port) continue;
+                return Integer.parseInt(fields[UID_FIELD]);
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not readable on Android 10+, or an unexpected format.
+        }
+        return UNKNOWN_UID;
+    }
+}
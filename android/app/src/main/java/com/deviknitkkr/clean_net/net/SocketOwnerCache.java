@@ -0,0 +1,99 @@
+package com.deviknitkkr.clean_net.net;
+
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache of socket owners keyed by the query's source port, so the owner lookup, a
+ * Binder call or a scan of a {@code /proc} table, runs once per socket instead of per query.
+ * <p>
+ * Ports are reused by other apps once a socket closes, and most resolvers pick a fresh port
+ * per query, so entries only live for {@link #TTL_MS}: long enough to cover a query and its
+ * answer, short enough that a reused port is rarely credited to its previous owner. Failed
+ * lookups are cached too; otherwise a socket without a known owner would cost a lookup on
+ * every query.
+ */
+public class SocketOwnerCache {
+    private static final int MAX_ENTRIES = 512;
+    static final long TTL_MS = 2_000;
+
+    private final List<SocketOwnerResolver> resolvers;
+    private final Map<Integer, Entry> entries = new LinkedHashMap<Integer, Entry>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private final AtomicLong lookups = new AtomicLong();
+
+    /**
+     * @param resolvers Tried in order until one knows the owner.
+     */
+    public SocketOwnerCache(List<SocketOwnerResolver> resolvers) {
+        this.resolvers = resolvers;
+    }
+
+    /**
+     * @return UID owning the socket {@code local}, or {@link SocketOwnerResolver#UNKNOWN_UID}.
+     */
+    public int uidFor(InetSocketAddress local, InetSocketAddress remote, long now) {
+        int key = key(local.getPort(), local.getAddress() instanceof Inet6Address);
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && now - entry.resolvedAt < TTL_MS) {
+                return entry.uid;
+            }
+        }
+        lookups.incrementAndGet();
+        int uid = SocketOwnerResolver.UNKNOWN_UID;
+        for (SocketOwnerResolver resolver : resolvers) {
+            uid = resolver.resolve(local, remote);
+            if (uid != SocketOwnerResolver.UNKNOWN_UID) break;
+        }
+        synchronized (entries) {
+            entries.put(key, new Entry(uid, now));
+        }
+        return uid;
+    }
+
+    /**
+     * Reads a cached owner without ever calling a resolver, so it is cheap enough for the
+     * query path.
+     *
+     * @return UID owning the socket on {@code port}, or {@link SocketOwnerResolver#UNKNOWN_UID}
+     * if it isn't cached or has expired.
+     */
+    public int peek(int port, boolean ipv6, long now) {
+        synchronized (entries) {
+            Entry entry = entries.get(key(port, ipv6));
+            return entry != null && now - entry.resolvedAt < TTL_MS ? entry.uid : SocketOwnerResolver.UNKNOWN_UID;
+        }
+    }
+
+    /**
+     * @return Lookups that missed the cache and went to a resolver.
+     */
+    public long getLookups() {
+        return lookups.get();
+    }
+
+    private static int key(int port, boolean ipv6) {
+        // IPv4 and IPv6 sockets may use the same port number.
+        return port | (ipv6 ? 0x10000 : 0);
+    }
+
+    private static class Entry {
+        final int uid;
+        final long resolvedAt;
+
+        Entry(int uid, long resolvedAt) {
+            this.uid = uid;
+            this.resolvedAt = resolvedAt;
+        }
+    }
+}
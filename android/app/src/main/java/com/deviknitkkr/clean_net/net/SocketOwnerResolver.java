@@ -0,0 +1,18 @@
+package com.deviknitkkr.clean_net.net;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Finds the app that owns a UDP socket. Kept behind an interface so attribution works from
+ * {@code ConnectivityManager} on device and from {@code /proc/net} on older releases and Linux.
+ */
+public interface SocketOwnerResolver {
+    int UNKNOWN_UID = -1;
+
+    /**
+     * @param local  The socket's own address, i.e. the source of a query.
+     * @param remote The address it sends to.
+     * @return UID of the owning app, or {@link #UNKNOWN_UID}.
+     */
+    int resolve(InetSocketAddress local, InetSocketAddress remote);
+}
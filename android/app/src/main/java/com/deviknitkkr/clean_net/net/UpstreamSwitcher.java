@@ -0,0 +1,141 @@
+package com.deviknitkkr.clean_net.net;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * Chooses the upstream resolvers for the current network and pushes a new choice to its
+ * {@link Target} whenever the underlying network changes.
+ * <p>
+ * The socket always moves to the new network. Cached answers are flushed when the network
+ * itself changed, whatever the resolver: answers can depend on where a query comes from
+ * (split horizon, captive portals, CDN steering by client address). New resolvers on the
+ * same network keep the cache.
+ */
+public class UpstreamSwitcher implements NetworkMonitor.Listener {
+    private static final String FALLBACK_DNS = "1.1.1.1";
+
+    private static final Map<String, String> PRESET_SECONDARIES = Map.of(
+            "1.1.1.1", "1.0.0.1",
+            "8.8.8.8", "8.8.4.4",
+            "9.9.9.9", "149.112.112.112",
+            "208.67.222.222", "208.67.220.220",
+            "8.26.56.26", "8.20.247.20",
+            "94.140.14.14", "94.140.15.15"
+    );
+
+    // IPv6 addresses of the same providers, raced against IPv4 on dual-stack networks.
+    private static final Map<String, String> PRESET_IPV6 = Map.of(
+            "1.1.1.1", "2606:4700:4700::1111",
+            "8.8.8.8", "2001:4860:4860::8888",
+            "9.9.9.9", "2620:fe::fe",
+            "208.67.222.222", "2620:119:35::35",
+            "94.140.14.14", "2a10:50c0::ad1:ff"
+    );
+
+    public interface Target {
+        void updateUpstreams(Selection selection, NetworkState network, boolean flushCache);
+    }
+
+    public static class Selection {
+        public final String primary;
+        public final List<String> secondaries;
+
+        Selection(String primary, List<String> secondaries) {
+            this.primary = primary;
+            this.secondaries = secondaries;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Selection)) return false;
+            Selection other = (Selection) o;
+            return primary.equals(other.primary) && secondaries.equals(other.secondaries);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(primary, secondaries);
+        }
+
+        @Override
+        public String toString() {
+            return primary + " " + secondaries;
+        }
+    }
+
+    private final String rootDns;
+    private final Target target;
+    private NetworkState network;
+    private Selection selection;
+
+    /**
+     * @param rootDns Resolver chosen by the user, or null/blank to follow the system resolvers.
+     * @param network Network the VPN starts on.
+     * @param target  Receives the new selection on every network change.
+     */
+    public UpstreamSwitcher(String rootDns, NetworkState network, Target target) {
+        this.rootDns = rootDns == null || rootDns.isBlank() ? null : rootDns;
+        this.target = target;
+        this.network = network;
+        this.selection = select(network.dnsServers);
+    }
+
+    public synchronized Selection getSelection() {
+        return selection;
+    }
+
+    @Override
+    public synchronized void onNetworkChanged(NetworkState state) {
+        if (state.equals(network)) return;
+        boolean sameNetwork = Objects.equals(state.id, network.id);
+        Selection next = select(state.dnsServers);
+        if (sameNetwork && next.equals(selection)) {
+            // Only the order of the resolvers or their IPv6 route changed.
+            network = state;
+            return;
+        }
+        boolean flushCache = !sameNetwork;
+        network = state;
+        selection = next;
+        target.updateUpstreams(next, state, flushCache);
+    }
+
+    @Override
+    public synchronized void onNetworkLost() {
+        // Keep the current upstreams; queries fail fast and are retried once a network is back.
+    }
+
+    /**
+     * System resolvers of both families are used, IPv4 first; the upstream forwarder decides
+     * per network which family it actually queries.
+     */
+    private Selection select(List<InetAddress> dnsServers) {
+        if (rootDns == null) {
+            List<String> systemDns = dnsServers.stream()
+                    .sorted(Comparator.comparing(x -> x instanceof Inet4Address ? 0 : 1))
+                    .map(InetAddress::getHostAddress)
+                    .distinct()
+                    .collect(Collectors.toList());
+            String primary = systemDns.isEmpty() ? FALLBACK_DNS : systemDns.get(0);
+            return new Selection(primary, systemDns.stream()
+                    .filter(ip -> !ip.equals(primary))
+                    .collect(Collectors.toList()));
+        }
+        // A user-selected resolver is only paired with the same provider's other addresses,
+        // so hedging never leaks queries to the ISP.
+        List<String> secondaries = new ArrayList<>(2);
+        String secondary = PRESET_SECONDARIES.get(rootDns);
+        if (secondary != null) secondaries.add(secondary);
+        String ipv6 = PRESET_IPV6.get(rootDns);
+        if (ipv6 != null) secondaries.add(ipv6);
+        return new Selection(rootDns, secondaries);
+    }
+}
@@ -0,0 +1,32 @@
+package com.deviknitkkr.clean_net.trace;
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Emits spans as {@link Trace} sections, shown by Perfetto and systrace when the app is
+ * traced. Async sections need API 29; on older devices only the synchronous stages show up.
+ */
+public final class AndroidTraceSink implements TraceSink {
+    private final boolean asyncSupported = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q;
+
+    @Override
+    public void beginSection(String name) {
+        Trace.beginSection(name);
+    }
+
+    @Override
+    public void endSection() {
+        Trace.endSection();
+    }
+
+    @Override
+    public void beginAsyncSection(String name, int cookie) {
+        if (asyncSupported) Trace.beginAsyncSection(name, cookie);
+    }
+
+    @Override
+    public void endAsyncSection(String name, int cookie) {
+        if (asyncSupported) Trace.endAsyncSection(name, cookie);
+    }
+}
@@ -0,0 +1,27 @@
+package com.deviknitkkr.clean_net.trace;
+
+/**
+ * Discards all spans.
+ */
+public final class NoopTraceSink implements TraceSink {
+    public static final NoopTraceSink INSTANCE = new NoopTraceSink();
+
+    private NoopTraceSink() {
+    }
+
+    @Override
+    public void beginSection(String name) {
+    }
+
+    @Override
+    public void endSection() {
+    }
+
+    @Override
+    public void beginAsyncSection(String name, int cookie) {
+    }
+
+    @Override
+    public void endAsyncSection(String name, int cookie) {
+    }
+}
@@ -0,0 +1,68 @@
+package com.deviknitkkr.clean_net.trace;
+
+/**
+ * Samples queries for tracing and forwards the stage spans of sampled ones to a
+ * {@link TraceSink}.
+ * <p>
+ * Whether a query is sampled is a pure function of its DNS transaction id, so every thread
+ * that touches the query (TUN reader, shard, response thread) comes to the same decision
+ * without passing a flag along, and the reply is traced together with its request. With a
+ * sample rate of 0 every check is a single field compare.
+ */
+public class QueryTracer {
+    public static final String STAGE_TUN_READ = "dns:tun-read";
+    public static final String STAGE_PARSE = "dns:parse";
+    public static final String STAGE_MATCH = "dns:match";
+    public static final String STAGE_CACHE = "dns:cache";
+    public static final String STAGE_UPSTREAM_SEND = "dns:upstream-send";
+    /** Async span from the first send of a query to the upstream answer. */
+    public static final String STAGE_UPSTREAM = "dns:upstream";
+    public static final String STAGE_UPSTREAM_RECEIVE = "dns:upstream-receive";
+    public static final String STAGE_TUN_WRITE = "dns:tun-write";
+
+    public static final QueryTracer DISABLED = new QueryTracer(NoopTraceSink.INSTANCE, 0);
+
+    private static final int SAMPLE_SCALE = 1 << 16;
+
+    private final TraceSink sink;
+    // Queries whose mixed transaction id falls below this out of SAMPLE_SCALE are sampled.
+    private final int threshold;
+
+    /**
+     * @param sampleRate Fraction of queries to trace, 0 to 1.
+     */
+    public QueryTracer(TraceSink sink, double sampleRate) {
+        this.sink = sink;
+        this.threshold = (int) Math.round(Math.max(0, Math.min(1, sampleRate)) * SAMPLE_SCALE);
+    }
+
+    public boolean isEnabled() {
+        return threshold > 0;
+    }
+
+    /**
+     * @param txnId DNS transaction id of the query or its reply.
+     */
+    public boolean isSampled(int txnId) {
+        if (threshold == 0) return false;
+        // Transaction ids are random per query, but mixing keeps clients with sequential ids spread.
+        int h = (txnId & 0xFFFF) * 0x9E3779B1;
+        return ((h >>> 16) & 0xFFFF) < threshold;
+    }
+
+    public void begin(boolean sampled, String stage) {
+        if (sampled) sink.beginSection(stage);
+    }
+
+    public void end(boolean sampled) {
+        if (sampled) sink.endSection();
+    }
+
+    public void beginAsync(boolean sampled, String stage, int txnId) {
+        if (sampled) sink.beginAsyncSection(stage, txnId);
+    }
+
+    public void endAsync(boolean sampled, String stage, int txnId) {
+        if (sampled) sink.endAsyncSection(stage, txnId);
+    }
+}
@@ -0,0 +1,18 @@
+package com.deviknitkkr.clean_net.trace;
+
+/**
+ * Receives the stage spans of sampled queries.
+ * <p>
+ * Sections are synchronous and nest on the calling thread. Async spans may end on another
+ * thread and are told apart by their cookie, e.g. the upstream round trip of a query that
+ * is sent by a shard and answered on the response thread.
+ */
+public interface TraceSink {
+    void beginSection(String name);
+
+    void endSection();
+
+    void beginAsyncSection(String name, int cookie);
+
+    void endAsyncSection(String name, int cookie);
+}
@@ -0,0 +1,79 @@
+package com.deviknitkkr.clean_net.upstream;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers per network which address family reaches the upstream resolvers faster, decided
+ * by an RFC 8305 (happy eyeballs) style race: the query goes to an IPv6 upstream first and,
+ * unless answered within a short delay, to an IPv4 upstream too; the first answer wins.
+ * <p>
+ * Until a network has a winner every query races. Afterwards queries use the winning family
+ * only, and every {@link #REPROBE_MS} a single query races again, so a family that became
+ * faster or reachable is picked up.
+ */
+public class FamilySelector {
+    public static final int UNDECIDED = 0;
+    public static final int IPV4 = 4;
+    public static final int IPV6 = 6;
+    public static final long RACE_DELAY_MS = 50;
+    static final long REPROBE_MS = 10 * 60_000;
+    private static final int MAX_NETWORKS = 16;
+
+    private static class Choice {
+        int family;
+        long decidedAt;
+        // When the current re-probe started, or 0; a probe that never finished is retried.
+        long probeStartedAt;
+    }
+
+    private final Map<String, Choice> choices = new HashMap<>();
+
+    public static int familyOf(InetAddress address) {
+        return address instanceof Inet6Address ? IPV6 : IPV4;
+    }
+
+    /**
+     * @return The family to use on {@code networkId}, or {@link #UNDECIDED} if this query
+     * should race both families.
+     */
+    public synchronized int preferred(String networkId, long now) {
+        Choice choice = choices.get(networkId);
+        if (choice == null) return UNDECIDED;
+        boolean probeDue = choice.probeStartedAt == 0 ? now - choice.decidedAt >= REPROBE_MS
+                : now - choice.probeStartedAt >= REPROBE_MS;
+        if (probeDue) {
+            choice.probeStartedAt = now;
+            return UNDECIDED;
+        }
+        return choice.family;
+    }
+
+    /**
+     * @return The decided family on {@code networkId} without starting a re-probe, or
+     * {@link #UNDECIDED}.
+     */
+    public synchronized int current(String networkId) {
+        Choice choice = choices.get(networkId);
+        return choice == null ? UNDECIDED : choice.family;
+    }
+
+    /**
+     * Records the family whose upstream answered a racing query first.
+     */
+    public synchronized void onRaceWon(String networkId, int family, long now) {
+        Choice choice = choices.get(networkId);
+        if (choice == null) {
+            if (choices.size() >= MAX_NETWORKS) {
+                choices.clear();
+            }
+            choice = new Choice();
+            choices.put(networkId, choice);
+        }
+        choice.family = family;
+        choice.decidedAt = now;
+        choice.probeStartedAt = 0;
+    }
+}
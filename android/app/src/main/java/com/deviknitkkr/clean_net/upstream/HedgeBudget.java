@@ -0,0 +1,29 @@
+package com.deviknitkkr.clean_net.upstream;
+
+/**
+ * Caps extra upstream queries, such as hedges or prefetches, to a fraction of the forwarded traffic.
+ * <p>
+ * Every forwarded query deposits {@code ratio} tokens, up to {@code maxTokens}, and every
+ * extra query spends one. A resolver outage therefore can't double the upstream load.
+ */
+public class HedgeBudget {
+    private final double ratio;
+    private final double maxTokens;
+    private double tokens;
+
+    public HedgeBudget(double ratio, double maxTokens) {
+        this.ratio = ratio;
+        this.maxTokens = maxTokens;
+        this.tokens = maxTokens;
+    }
+
+    public synchronized void onQuery() {
+        tokens = Math.min(maxTokens, tokens + ratio);
+    }
+
+    public synchronized boolean tryAcquire() {
+        if (tokens < 1) return false;
+        tokens -= 1;
+        return true;
+    }
+}
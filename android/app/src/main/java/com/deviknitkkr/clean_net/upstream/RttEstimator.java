@@ -0,0 +1,83 @@
+package com.deviknitkkr.clean_net.upstream;
+
+import java.util.Arrays;
+
+/**
+ * Round-trip time estimator for a single upstream resolver.
+ * <p>
+ * Keeps a smoothed RTT and RTT variance as described in RFC 6298 and derives the
+ * retransmission timeout from them. A small ring of recent samples is kept so that
+ * the forwarder can decide when a query is slower than usual (p90) and worth hedging.
+ */
+public class RttEstimator {
+    private static final long INITIAL_RTO_MS = 1_000;
+    private static final long MIN_RTO_MS = 150;
+    private static final long MAX_RTO_MS = 4_000;
+    private static final long CLOCK_GRANULARITY_MS = 10;
+    private static final int SAMPLE_WINDOW = 64;
+
+    private double srtt = -1;
+    private double rttvar;
+    private long rto = INITIAL_RTO_MS;
+
+    private final long[] samples = new long[SAMPLE_WINDOW];
+    private int sampleIndex = 0;
+    private int sampleCount = 0;
+    private long cachedP90 = INITIAL_RTO_MS;
+    private boolean p90Dirty = false;
+
+    /**
+     * Records an RTT sample. Callers must only pass samples of queries that were sent
+     * exactly once (Karn's algorithm), otherwise the answer can't be matched to a send.
+     */
+    public synchronized void addSample(long rttMs) {
+        if (rttMs < 0) return;
+        if (srtt < 0) {
+            srtt = rttMs;
+            rttvar = rttMs / 2.0;
+        } else {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rttMs);
+            srtt = 0.875 * srtt + 0.125 * rttMs;
+        }
+        rto = clamp((long) (srtt + Math.max(CLOCK_GRANULARITY_MS, 4 * rttvar)));
+
+        samples[sampleIndex] = rttMs;
+        sampleIndex = (sampleIndex + 1) % SAMPLE_WINDOW;
+        if (sampleCount < SAMPLE_WINDOW) sampleCount++;
+        p90Dirty = true;
+    }
+
+    /**
+     * @return The timeout to wait after a retransmission: double the previous one, within
+     * the RTO bounds. The backoff belongs to the query, so the shared estimate isn't touched.
+     */
+    public static long backoff(long rtoMs) {
+        return clamp(rtoMs * 2);
+    }
+
+    public synchronized long getRto() {
+        return rto;
+    }
+
+    public synchronized long getSrtt() {
+        return srtt < 0 ? INITIAL_RTO_MS : (long) srtt;
+    }
+
+    /**
+     * @return The 90th percentile of the recent samples, or the initial RTO when no samples exist yet.
+     */
+    public synchronized long getP90() {
+        if (sampleCount == 0) return INITIAL_RTO_MS;
+        if (p90Dirty) {
+            long[] sorted = Arrays.copyOf(samples, sampleCount);
+            Arrays.sort(sorted);
+            cachedP90 = sorted[Math.min(sampleCount - 1, (int) Math.ceil(sampleCount * 0.9) - 1)];
+            p90Dirty = false;
+        }
+        return cachedP90;
+    }
+
+    private static long clamp(long value) {
+        return Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, value));
+    }
+}
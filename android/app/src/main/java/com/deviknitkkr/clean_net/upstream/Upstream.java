@@ -0,0 +1,28 @@
+package com.deviknitkkr.clean_net.upstream;
+
+import java.net.InetAddress;
+
+/**
+ * An upstream resolver together with its RTT estimate.
+ */
+public class Upstream {
+    private final InetAddress address;
+    private final RttEstimator rtt = new RttEstimator();
+
+    public Upstream(InetAddress address) {
+        this.address = address;
+    }
+
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    public RttEstimator getRtt() {
+        return rtt;
+    }
+
+    @Override
+    public String toString() {
+        return address.getHostAddress();
+    }
+}
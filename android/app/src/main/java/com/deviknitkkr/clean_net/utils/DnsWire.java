@@ -0,0 +1,229 @@
+package com.deviknitkkr.clean_net.utils;
+
+/**
+ * Allocation-free helpers for reading DNS and IP headers straight from packet bytes.
+ */
+public final class DnsWire {
+    public static final int DNS_HEADER_SIZE = 12;
+    public static final int UDP_HEADER_SIZE = 8;
+    public static final int IPV4_MIN_HEADER_SIZE = 20;
+    public static final int IPV6_HEADER_SIZE = 40;
+
+    public static final int TYPE_A = 1;
+    public static final int TYPE_AAAA = 28;
+    public static final int TYPE_OPT = 41;
+    public static final int TYPE_SVCB = 64;
+    public static final int TYPE_HTTPS = 65;
+
+    private DnsWire() {
+    }
+
+    /**
+     * Returns the offset of the DNS message inside a raw IPv4/IPv6 + UDP packet.
+     *
+     * @param packet Raw IP packet as read from the TUN interface.
+     * @param length Number of valid bytes in {@code packet}.
+     * @return Offset of the DNS header, or -1 if the packet is not a well-formed UDP datagram.
+     */
+    public static int dnsOffset(byte[] packet, int length) {
+        if (length < 1) return -1;
+        int version = (packet[0] & 0xF0) >> 4;
+        int ipHeaderLength;
+        if (version == 4) {
+            ipHeaderLength = (packet[0] & 0x0F) * 4;
+            if (ipHeaderLength < IPV4_MIN_HEADER_SIZE || length < ipHeaderLength + UDP_HEADER_SIZE
+                    || packet[9] != 17) return -1;
+        } else if (version == 6) {
+            ipHeaderLength = IPV6_HEADER_SIZE;
+            if (length < ipHeaderLength + UDP_HEADER_SIZE || packet[6] != 17) return -1;
+        } else {
+            return -1;
+        }
+        int offset = ipHeaderLength + UDP_HEADER_SIZE;
+        return offset + DNS_HEADER_SIZE <= length ? offset : -1;
+    }
+
+    /**
+     * Finds the end of the first question, i.e. the offset right after its QCLASS field.
+     *
+     * @param buf    Buffer holding the DNS message.
+     * @param offset Offset of the DNS header inside {@code buf}.
+     * @param length Number of valid bytes in {@code buf}.
+     * @return Offset after the question, or -1 if the question is truncated or compressed.
+     */
+    public static int questionEnd(byte[] buf, int offset, int length) {
+        int pos = offset + DNS_HEADER_SIZE;
+        while (pos < length) {
+            int labelLength = buf[pos] & 0xFF;
+            if (labelLength == 0) {
+                pos += 5;
+                return pos <= length ? pos : -1;
+            }
+            if (labelLength > 63) return -1;
+            pos += 1 + labelLength;
+        }
+        return -1;
+    }
+
+    /**
+     * Checks that a reply answers the question of a query: same name, ignoring ASCII case,
+     * same QTYPE and QCLASS.
+     *
+     * @param query Complete DNS query.
+     * @param reply Complete DNS reply.
+     */
+    public static boolean sameQuestion(byte[] query, byte[] reply) {
+        int end = questionEnd(query, 0, query.length);
+        if (end < 0 || reply.length < end) return false;
+        int nameEnd = end - 4;
+        for (int i = DNS_HEADER_SIZE; i < end; i++) {
+            int a = query[i] & 0xFF;
+            int b = reply[i] & 0xFF;
+            if (a == b) continue;
+            if (i >= nameEnd || (a | 0x20) != (b | 0x20) || (a | 0x20) < 'a' || (a | 0x20) > 'z') return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param questionEnd Offset returned by {@link #questionEnd(byte[], int, int)}.
+     * @return The QTYPE of the question ending at {@code questionEnd}.
+     */
+    public static int qtype(byte[] buf, int questionEnd) {
+        return ((buf[questionEnd - 4] & 0xFF) << 8) | (buf[questionEnd - 3] & 0xFF);
+    }
+
+    /**
+     * Hashes the first question name of a DNS message, ignoring ASCII case.
+     *
+     * @param buf    Buffer holding the DNS message.
+     * @param offset Offset of the DNS header inside {@code buf}.
+     * @param length Number of valid bytes in {@code buf}.
+     * @return Hash of the name, or 0 if the name is truncated.
+     */
+    public static int qnameHash(byte[] buf, int offset, int length) {
+        int pos = offset + DNS_HEADER_SIZE;
+        int hash = 1;
+        while (pos < length) {
+            int labelLength = buf[pos] & 0xFF;
+            if (labelLength == 0) return hash;
+            if (labelLength > 63 || pos + 1 + labelLength > length) return 0;
+            for (int i = pos; i <= pos + labelLength; i++) {
+                int b = buf[i] & 0xFF;
+                if (b >= 'A' && b <= 'Z') b += 'a' - 'A';
+                hash = 31 * hash + b;
+            }
+            pos += 1 + labelLength;
+        }
+        return 0;
+    }
+
+    /**
+     * Lowers the UDP payload size advertised in the EDNS0 OPT record of a DNS message to
+     * {@code maxPayload}. Messages without an OPT record are left alone.
+     *
+     * @param buf        Buffer holding the DNS message; modified in place.
+     * @param offset     Offset of the DNS header inside {@code buf}.
+     * @param length     Number of valid bytes in {@code buf}.
+     * @param maxPayload Largest UDP payload size the message may advertise.
+     * @return Whether the advertised size was lowered.
+     */
+    public static boolean clampEdnsPayload(byte[] buf, int offset, int length, int maxPayload) {
+        if (offset + DNS_HEADER_SIZE > length) return false;
+        int questions = readShort(buf, offset + 4);
+        int records = readShort(buf, offset + 6) + readShort(buf, offset + 8);
+        int additional = readShort(buf, offset + 10);
+        if (additional == 0) return false;
+
+        int pos = offset + DNS_HEADER_SIZE;
+        for (int i = 0; i < questions; i++) {
+            pos = skipName(buf, pos, length);
+            if (pos < 0 || pos + 4 > length) return false;
+            pos += 4;
+        }
+        for (int i = 0; i < records + additional; i++) {
+            pos = skipName(buf, pos, length);
+            if (pos < 0 || pos + 10 > length) return false;
+            if (i >= records && readShort(buf, pos) == TYPE_OPT) {
+                if (readShort(buf, pos + 2) <= maxPayload) return false;
+                buf[pos + 2] = (byte) (maxPayload >> 8);
+                buf[pos + 3] = (byte) maxPayload;
+                return true;
+            }
+            pos += 10 + readShort(buf, pos + 8);
+        }
+        return false;
+    }
+
+    /**
+     * @param buf    Buffer holding the DNS message.
+     * @param offset Offset of the DNS header inside {@code buf}.
+     * @param length Number of valid bytes in {@code buf}.
+     * @return The smallest TTL in seconds of the answer and authority records, or -1 if there
+     * are none or the message is malformed.
+     */
+    public static long minTtl(byte[] buf, int offset, int length) {
+        return visitTtls(buf, offset, length, Long.MAX_VALUE, false);
+    }
+
+    /**
+     * Lowers every answer, authority and additional record TTL above {@code maxTtl} to it,
+     * e.g. to age a stored answer. The OPT pseudo-record is left alone.
+     *
+     * @param buf Buffer holding the DNS message; modified in place.
+     * @return The smallest TTL after capping, or -1 if there are no records or the message is malformed.
+     */
+    public static long capTtls(byte[] buf, int offset, int length, long maxTtl) {
+        return visitTtls(buf, offset, length, maxTtl, true);
+    }
+
+    private static long visitTtls(byte[] buf, int offset, int length, long maxTtl, boolean withAdditional) {
+        if (offset + DNS_HEADER_SIZE > length) return -1;
+        int questions = readShort(buf, offset + 4);
+        int answers = readShort(buf, offset + 6) + readShort(buf, offset + 8);
+        int records = answers + (withAdditional ? readShort(buf, offset + 10) : 0);
+
+        int pos = offset + DNS_HEADER_SIZE;
+        for (int i = 0; i < questions; i++) {
+            pos = skipName(buf, pos, length);
+            if (pos < 0 || pos + 4 > length) return -1;
+            pos += 4;
+        }
+        long min = -1;
+        for (int i = 0; i < records; i++) {
+            pos = skipName(buf, pos, length);
+            if (pos < 0 || pos + 10 > length) return -1;
+            if (readShort(buf, pos) != TYPE_OPT) {
+                long ttl = ((long) readShort(buf, pos + 4) << 16) | readShort(buf, pos + 6);
+                if (ttl > maxTtl) {
+                    ttl = maxTtl;
+                    buf[pos + 4] = (byte) (ttl >> 24);
+                    buf[pos + 5] = (byte) (ttl >> 16);
+                    buf[pos + 6] = (byte) (ttl >> 8);
+                    buf[pos + 7] = (byte) ttl;
+                }
+                if (i < answers && (min < 0 || ttl < min)) min = ttl;
+            }
+            pos += 10 + readShort(buf, pos + 8);
+        }
+        return min;
+    }
+
+    /**
+     * @return Offset right after the (possibly compressed) name at {@code pos}, or -1 if it is truncated.
+     */
+    private static int skipName(byte[] buf, int pos, int length) {
+        while (pos < length) {
+            int labelLength = buf[pos] & 0xFF;
+            if (labelLength == 0) return pos + 1;
+            if ((labelLength & 0xC0) == 0xC0) return pos + 2 <= length ? pos + 2 : -1;
+            if (labelLength > 63) return -1;
+            pos += 1 + labelLength;
+        }
+        return -1;
+    }
+
+    private static int readShort(byte[] buf, int pos) {
+        return ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+    }
+}
@@ -0,0 +1,113 @@
+package com.deviknitkkr.clean_net.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits IP packets that exceed the TUN MTU into fragments.
+ * <p>
+ * The TUN interface silently drops anything larger than its MTU, so oversized DNS replies
+ * have to be fragmented before they are written. IPv4 fragments reuse the packet header with
+ * the DF bit cleared; IPv6 fragments get a Fragment extension header (RFC 8200, section 4.5).
+ * Packets are expected as built by the handler: a plain IP header followed by UDP.
+ */
+public final class IpFragmenter {
+    private static final int IPV4_MIN_HEADER_SIZE = 20;
+    private static final int IPV6_FRAGMENT_HEADER_SIZE = 8;
+    private static final int IPV6_NEXT_HEADER_FRAGMENT = 44;
+    private static final int IPV4_FLAG_MORE_FRAGMENTS = 0x2000;
+    private static final int IPV6_FLAG_MORE_FRAGMENTS = 0x0001;
+
+    private IpFragmenter() {
+    }
+
+    /**
+     * @param packet         Complete IPv4 or IPv6 packet.
+     * @param mtu            Largest packet the interface accepts.
+     * @param identification Identification shared by all fragments of this packet.
+     * @return {@code packet} itself if it fits, otherwise its fragments in order.
+     */
+    public static List<byte[]> fragment(byte[] packet, int mtu, int identification) {
+        if (packet.length <= mtu) {
+            return Collections.singletonList(packet);
+        }
+        int version = (packet[0] & 0xF0) >> 4;
+        if (version == 4) {
+            return fragmentIpv4(packet, mtu, identification);
+        } else if (version == 6) {
+            return fragmentIpv6(packet, mtu, identification);
+        }
+        return Collections.singletonList(packet);
+    }
+
+    private static List<byte[]> fragmentIpv4(byte[] packet, int mtu, int identification) {
+        int headerLength = (packet[0] & 0x0F) * 4;
+        int payloadLength = packet.length - headerLength;
+        List<byte[]> fragments = new ArrayList<>();
+        int offset = 0;
+        while (offset < payloadLength) {
+            // Options are only repeated in the first fragment, later ones carry the bare header.
+            int fragmentHeaderLength = offset == 0 ? headerLength : IPV4_MIN_HEADER_SIZE;
+            int maxData = (mtu - fragmentHeaderLength) & ~7;
+            int dataLength = Math.min(maxData, payloadLength - offset);
+            boolean more = offset + dataLength < payloadLength;
+
+            byte[] fragment = new byte[fragmentHeaderLength + dataLength];
+            System.arraycopy(packet, 0, fragment, 0, fragmentHeaderLength);
+            System.arraycopy(packet, headerLength + offset, fragment, fragmentHeaderLength, dataLength);
+            fragment[0] = (byte) (0x40 | (fragmentHeaderLength / 4));
+            putShort(fragment, 2, fragment.length);
+            putShort(fragment, 4, identification);
+            putShort(fragment, 6, (more ? IPV4_FLAG_MORE_FRAGMENTS : 0) | (offset / 8));
+            putShort(fragment, 10, 0);
+            putShort(fragment, 10, ipv4HeaderChecksum(fragment, fragmentHeaderLength));
+            fragments.add(fragment);
+            offset += dataLength;
+        }
+        return fragments;
+    }
+
+    private static List<byte[]> fragmentIpv6(byte[] packet, int mtu, int identification) {
+        int headerLength = DnsWire.IPV6_HEADER_SIZE;
+        int nextHeader = packet[6] & 0xFF;
+        int payloadLength = packet.length - headerLength;
+        int maxData = (mtu - headerLength - IPV6_FRAGMENT_HEADER_SIZE) & ~7;
+        List<byte[]> fragments = new ArrayList<>();
+        int offset = 0;
+        while (offset < payloadLength) {
+            int dataLength = Math.min(maxData, payloadLength - offset);
+            boolean more = offset + dataLength < payloadLength;
+
+            byte[] fragment = new byte[headerLength + IPV6_FRAGMENT_HEADER_SIZE + dataLength];
+            System.arraycopy(packet, 0, fragment, 0, headerLength);
+            putShort(fragment, 4, IPV6_FRAGMENT_HEADER_SIZE + dataLength);
+            fragment[6] = (byte) IPV6_NEXT_HEADER_FRAGMENT;
+            fragment[headerLength] = (byte) nextHeader;
+            putShort(fragment, headerLength + 2, offset | (more ? IPV6_FLAG_MORE_FRAGMENTS : 0));
+            putShort(fragment, headerLength + 4, identification >>> 16);
+            putShort(fragment, headerLength + 6, identification);
+            System.arraycopy(packet, headerLength + offset, fragment,
+                    headerLength + IPV6_FRAGMENT_HEADER_SIZE, dataLength);
+            fragments.add(fragment);
+            offset += dataLength;
+        }
+        return fragments;
+    }
+
+    private static int ipv4HeaderChecksum(byte[] header, int length) {
+        int sum = 0;
+        for (int i = 0; i < length; i += 2) {
+            sum += ((header[i] & 0xFF) << 8) | (header[i + 1] & 0xFF);
+        }
+        while ((sum >> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >> 16);
+        }
+        return ~sum & 0xFFFF;
+    }
+
+    private static void putShort(byte[] buf, int pos, int value) {
+        buf[pos] = (byte) (value >> 8);
+        buf[pos + 1] = (byte) value;
+    }
+}
@@ -17,13 +17,79 @@ public class SubNetUtils {
             "fd00::/64", "fd01::/64", "fd02::/64"
     };
 
+    private static final Subnet[] CANDIDATE_IPV4 = parseAll(CANDIDATE_IPV4_SUBNETS);
+    private static final Subnet[] CANDIDATE_IPV6 = parseAll(CANDIDATE_IPV6_SUBNETS);
+
     /**
-     * Detects local subnets (both IPv4 and IPv6) on the device.
+     * A network prefix kept as address bytes, so overlap checks are plain byte compares
+     * instead of re-parsing CIDR strings.
+     */
+    public static final class Subnet {
+        private final byte[] network;
+        private final int prefixLength;
+
+        Subnet(byte[] address, int prefixLength) {
+            this.network = address.clone();
+            this.prefixLength = prefixLength;
+            for (int bit = prefixLength; bit < network.length * 8; bit++) {
+                network[bit / 8] &= (byte) ~(0x80 >>> (bit % 8));
+            }
+        }
+
+        /**
+         * @param cidr Subnet with a literal address, e.g. "10.0.0.0/24"; never resolved through DNS.
+         */
+        public static Subnet parse(String cidr) throws UnknownHostException {
+            String[] parts = cidr.split("/");
+            return new Subnet(InetAddress.getByName(parts[0]).getAddress(), Integer.parseInt(parts[1]));
+        }
+
+        /**
+         * @return Whether both prefixes share an address; prefixes of different families never do.
+         */
+        public boolean overlaps(Subnet other) {
+            if (network.length != other.network.length) return false;
+            int bits = Math.min(prefixLength, other.prefixLength);
+            int fullBytes = bits / 8;
+            for (int i = 0; i < fullBytes; i++) {
+                if (network[i] != other.network[i]) return false;
+            }
+            int remainderBits = bits % 8;
+            if (remainderBits == 0) return true;
+            int maskByte = (0xFF << (8 - remainderBits)) & 0xFF;
+            return (network[fullBytes] & maskByte) == (other.network[fullBytes] & maskByte);
+        }
+
+        @Override
+        public String toString() {
+            try {
+                return InetAddress.getByAddress(network).getHostAddress() + "/" + prefixLength;
+            } catch (UnknownHostException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static Subnet[] parseAll(String[] cidrs) {
+        Subnet[] subnets = new Subnet[cidrs.length];
+        for (int i = 0; i < cidrs.length; i++) {
+            try {
+                subnets[i] = Subnet.parse(cidrs[i]);
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException(cidrs[i], e);
+            }
+        }
+        return subnets;
+    }
+
+    /**
+     * Detects local subnets (both IPv4 and IPv6) on the device. Each address is assumed to be
+     * in a /24 (IPv4) or /64 (IPv6).
      *
-     * @return List of local subnets in CIDR notation (e.g., "192.168.1.0/24", "fd00::/64").
+     * @return List of local subnets, e.g. 192.168.1.0/24 and fd00::/64.
      */
-    public List<String> getLocalSubnets() {
-        List<String> subnets = new ArrayList<>();
+    public List<Subnet> getLocalSubnets() {
+        List<Subnet> subnets = new ArrayList<>();
         try {
             Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
             while (interfaces.hasMoreElements()) {
@@ -32,15 +98,7 @@ public class SubNetUtils {
                 while (addresses.hasMoreElements()) {
                     InetAddress addr = addresses.nextElement();
                     if (!addr.isLoopbackAddress()) {
-                        if (addr instanceof Inet4Address) {
-                            String ip = addr.getHostAddress();
-                            String subnet = ip.substring(0, ip.lastIndexOf('.') + 1) + "0/24"; // Example: 192.168.1.0/24
-                            subnets.add(subnet);
-                        } else if (addr instanceof Inet6Address) {
-                            String ip = addr.getHostAddress();
-                            String subnet = ip.substring(0, ip.lastIndexOf(':') + 1) + "0/64"; // Example: fd00::/64
-                            subnets.add(subnet);
-                        }
+                        subnets.add(new Subnet(addr.getAddress(), addr instanceof Inet4Address ? 24 : 64));
                     }
                 }
             }
@@ -56,58 +114,27 @@ public class SubNetUtils {
      * @param localSubnets List of local subnets to avoid conflicts with.
      * @return A map containing "ipv4" and "ipv6" keys with their respective subnets, or null if none are available.
      */
-    public Map<String, String> findAvailableSubnets(List<String> localSubnets) {
+    public Map<String, String> findAvailableSubnets(List<Subnet> localSubnets) {
         Map<String, String> availableSubnets = new HashMap<>();
+        String ipv4 = firstFree(CANDIDATE_IPV4, CANDIDATE_IPV4_SUBNETS, localSubnets);
+        if (ipv4 != null) availableSubnets.put("ipv4", ipv4);
+        String ipv6 = firstFree(CANDIDATE_IPV6, CANDIDATE_IPV6_SUBNETS, localSubnets);
+        if (ipv6 != null) availableSubnets.put("ipv6", ipv6);
+        return availableSubnets.isEmpty() ? null : availableSubnets;
+    }
 
-        // Find an available IPv4 subnet
-        for (String candidate : CANDIDATE_IPV4_SUBNETS) {
-            boolean conflict = false;
-            for (String localSubnet : localSubnets) {
-                if (subnetsOverlap(candidate, localSubnet)) {
-                    conflict = true;
-                    break;
-                }
-            }
-            if (!conflict) {
-                availableSubnets.put("ipv4", candidate);
-                break;
-            }
-        }
-
-        // Find an available IPv6 subnet
-        for (String candidate : CANDIDATE_IPV6_SUBNETS) {
+    private static String firstFree(Subnet[] candidates, String[] cidrs, List<Subnet> localSubnets) {
+        for (int i = 0; i < candidates.length; i++) {
             boolean conflict = false;
-            for (String localSubnet : localSubnets) {
-                if (subnetsOverlap(candidate, localSubnet)) {
+            for (Subnet localSubnet : localSubnets) {
+                if (candidates[i].overlaps(localSubnet)) {
                     conflict = true;
                     break;
                 }
             }
-            if (!conflict) {
-                availableSubnets.put("ipv6", candidate);
-                break;
-            }
-        }
-
-        return availableSubnets.isEmpty() ? null : availableSubnets;
-    }
-
-    /**
-     * Checks if two subnets overlap.
-     *
-     * @param subnet1 First subnet in CIDR notation (e.g., "10.0.0.0/24", "fd00::/64").
-     * @param subnet2 Second subnet in CIDR notation (e.g., "192.168.1.0/24", "fd01::/64").
-     * @return True if the subnets overlap, false otherwise.
-     */
-    public boolean subnetsOverlap(String subnet1, String subnet2) {
-        try {
-            CIDRUtils cidr1 = new CIDRUtils(subnet1);
-            CIDRUtils cidr2 = new CIDRUtils(subnet2);
-            return cidr1.isInRange(cidr2.getNetworkAddress()) || cidr2.isInRange(cidr1.getNetworkAddress());
-        } catch (Exception e) {
-            e.printStackTrace();
-            return true; // Assume overlap if there's an error
+            if (!conflict) return cidrs[i];
         }
+        return null;
     }
 
     /**
@@ -136,47 +163,4 @@ public class SubNetUtils {
             return null;
         }
     }
-
-    /**
-     * Helper class for CIDR calculations.
-     */
-    private static class CIDRUtils {
-        private final InetAddress address;
-        private final int networkLength;
-
-        public CIDRUtils(String cidr) throws UnknownHostException {
-            String[] parts = cidr.split("/");
-            this.address = InetAddress.getByName(parts[0]);
-            this.networkLength = Integer.parseInt(parts[1]);
-        }
-
-        public String getNetworkAddress() {
-            return address.getHostAddress();
-        }
-
-        public boolean isInRange(String ipAddress) throws UnknownHostException {
-            InetAddress remoteAddress = InetAddress.getByName(ipAddress);
-            byte[] remoteBytes = remoteAddress.getAddress();
-            byte[] localBytes = address.getAddress();
-
-            int mask = networkLength;
-            int fullBytes = mask / 8;
-            int remainderBits = mask % 8;
-
-            // Compare full bytes
-            for (int i = 0; i < fullBytes; i++) {
-                if (remoteBytes[i] != localBytes[i]) {
-                    return false;
-                }
-            }
-
-            // Compare remaining bits
-            if (remainderBits > 0) {
-                int maskByte = (0xFF << (8 - remainderBits)) & 0xFF;
-                return (remoteBytes[fullBytes] & maskByte) == (localBytes[fullBytes] & maskByte);
-            }
-
-            return true;
-        }
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,45 @@
+package com.deviknitkkr.clean_net;
+
+import static org.junit.Assert.assertEquals;
+
+import com.deviknitkkr.clean_net.utils.DnsWire;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+public class BlockResponderTest {
+
+    @Test
+    public void onlyTheSameTypeCountsAsRetry() {
+        BlockResponder responder = new BlockResponder(BlockResponder.Mode.NODATA, 60);
+        long before = retries();
+
+        // A and AAAA asked in parallel for the same blocked name.
+        responder.onQuery("ads.example.com", DnsWire.TYPE_A);
+        responder.onBlocked("ads.example.com", DnsWire.TYPE_A);
+        responder.onQuery("ads.example.com", DnsWire.TYPE_AAAA);
+        responder.onBlocked("ads.example.com", DnsWire.TYPE_AAAA);
+        assertEquals(before, retries());
+
+        responder.onQuery("ads.example.com", DnsWire.TYPE_A);
+        assertEquals(before + 1, retries());
+    }
+
+    @Test
+    public void searchSuffixVariantCountsAsRetry() {
+        BlockResponder responder = new BlockResponder(BlockResponder.Mode.NODATA, 60);
+        long before = retries();
+        responder.onBlocked("tracker.example.net", DnsWire.TYPE_A);
+
+        responder.onQuery("tracker.example.net.corp.lan", DnsWire.TYPE_AAAA);
+        assertEquals(before, retries());
+        responder.onQuery("tracker.example.net.corp.lan", DnsWire.TYPE_A);
+        assertEquals(before + 1, retries());
+    }
+
+    private static long retries() {
+        Map<String, Long> counters = BlockResponder.getStatsSnapshot().get("NODATA");
+        return counters == null ? 0 : counters.get("retries");
+    }
+}
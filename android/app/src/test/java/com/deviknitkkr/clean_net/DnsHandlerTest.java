@@ -0,0 +1,136 @@
+package com.deviknitkkr.clean_net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import android.net.VpnService;
+
+import com.deviknitkkr.clean_net.utils.DnsWire;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+public class DnsHandlerTest {
+    private static final long TIMEOUT_MS = 2_000;
+
+    private DatagramSocket upstream;
+    private FakeTun tun;
+    private Thread handlerThread;
+
+    @Before
+    public void setUp() throws Exception {
+        upstream = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        upstream.setSoTimeout((int) TIMEOUT_MS);
+        tun = new FakeTun();
+        DnsHandler handler = new DnsHandler.Builder()
+                .dnsServerIp("127.0.0.1")
+                .inputStream(tun.input)
+                .outputStream(tun.output)
+                .vpnService(new VpnService())
+                .dnsQueryCallback((name, qtype) -> false)
+                .build();
+        handlerThread = new Thread(handler, "test-handler");
+        handlerThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        tun.close();
+        handlerThread.join(TIMEOUT_MS);
+        upstream.close();
+    }
+
+    @Test
+    public void clientsWithTheSameIdGetTheirOwnAnswers() throws Exception {
+        tun.send(query("a.example.com", 0x1234), 40001, upstream.getLocalPort());
+        tun.send(query("b.example.com", 0x1234), 40002, upstream.getLocalPort());
+        DatagramPacket first = receiveUpstream();
+        DatagramPacket second = receiveUpstream();
+        assertNotEquals(id(first.getData()), id(second.getData()));
+
+        // Answer in reverse order; each reply must reach the client that asked.
+        answer(second, "192.0.2.2");
+        answer(first, "192.0.2.1");
+        for (int i = 0; i < 2; i++) {
+            byte[] reply = tun.nextReply(TIMEOUT_MS);
+            assertNotNull(reply);
+            Message message = new Message(dnsPayload(reply));
+            assertEquals(0x1234, message.getHeader().getID());
+            int clientPort = ((reply[22] & 0xFF) << 8) | (reply[23] & 0xFF);
+            String name = message.getQuestion().getName().toString(true);
+            assertEquals(clientPort == 40001 ? "a.example.com" : "b.example.com", name);
+            assertEquals(clientPort == 40001 ? "192.0.2.1" : "192.0.2.2",
+                    ((ARecord) message.getSection(Section.ANSWER).get(0)).getAddress().getHostAddress());
+        }
+    }
+
+    @Test
+    public void replyToAnotherQuestionIsIgnored() throws Exception {
+        tun.send(query("a.example.com", 0x4321), 40001, upstream.getLocalPort());
+        DatagramPacket sent = receiveUpstream();
+
+        Message spoofed = new Message(Arrays.copyOf(sent.getData(), sent.getLength()));
+        spoofed.removeAllRecords(Section.QUESTION);
+        spoofed.addRecord(Record.newRecord(Name.fromString("evil.example.com."), Type.A, DClass.IN), Section.QUESTION);
+        reply(sent, spoofed, "203.0.113.66");
+        assertNull(tun.nextReply(300));
+
+        answer(sent, "192.0.2.1");
+        byte[] reply = tun.nextReply(TIMEOUT_MS);
+        assertNotNull(reply);
+        Message message = new Message(dnsPayload(reply));
+        assertEquals(0x4321, message.getHeader().getID());
+        assertEquals("192.0.2.1",
+                ((ARecord) message.getSection(Section.ANSWER).get(0)).getAddress().getHostAddress());
+    }
+
+    private static byte[] query(String name, int id) throws IOException {
+        Message query = Message.newQuery(Record.newRecord(Name.fromString(name + "."), Type.A, DClass.IN));
+        query.getHeader().setID(id);
+        return query.toWire();
+    }
+
+    private DatagramPacket receiveUpstream() throws IOException {
+        DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+        upstream.receive(packet);
+        return packet;
+    }
+
+    private void answer(DatagramPacket sent, String address) throws IOException {
+        reply(sent, new Message(Arrays.copyOf(sent.getData(), sent.getLength())), address);
+    }
+
+    private void reply(DatagramPacket sent, Message response, String address) throws IOException {
+        response.getHeader().setFlag(Flags.QR);
+        Name name = response.getQuestion().getName();
+        response.addRecord(new ARecord(name, DClass.IN, 300, InetAddress.getByName(address)), Section.ANSWER);
+        byte[] wire = response.toWire();
+        upstream.send(new DatagramPacket(wire, wire.length, sent.getSocketAddress()));
+    }
+
+    private static int id(byte[] dns) {
+        return ((dns[0] & 0xFF) << 8) | (dns[1] & 0xFF);
+    }
+
+    private static byte[] dnsPayload(byte[] packet) {
+        int offset = DnsWire.dnsOffset(packet, packet.length);
+        return Arrays.copyOfRange(packet, offset, packet.length);
+    }
+}
@@ -0,0 +1,107 @@
+package com.deviknitkkr.clean_net;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-in for the TUN device in JVM tests: IPv4/UDP packets in, the handler's replies out.
+ */
+class FakeTun {
+    static final byte[] CLIENT_ADDRESS = {10, 0, 0, 2};
+    static final byte[] VPN_DNS_ADDRESS = {10, 0, 0, 1};
+    private static final byte[] END = new byte[0];
+
+    final Input input = new Input();
+    final Output output = new Output();
+
+    void send(byte[] dns, int srcPort, int dstPort) {
+        input.packets.add(udpPacket(dns, srcPort, dstPort));
+    }
+
+    /**
+     * Makes the next read fail, which stops the handler.
+     */
+    void close() {
+        input.packets.add(END);
+    }
+
+    /**
+     * @return The next packet the handler wrote, or null after {@code timeoutMs}.
+     */
+    byte[] nextReply(long timeoutMs) throws InterruptedException {
+        return output.packets.poll(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    static byte[] udpPacket(byte[] dns, int srcPort, int dstPort) {
+        byte[] packet = new byte[28 + dns.length];
+        packet[0] = 0x45;
+        packet[2] = (byte) (packet.length >> 8);
+        packet[3] = (byte) packet.length;
+        packet[8] = 64;
+        packet[9] = 17;
+        System.arraycopy(CLIENT_ADDRESS, 0, packet, 12, 4);
+        System.arraycopy(VPN_DNS_ADDRESS, 0, packet, 16, 4);
+        int sum = 0;
+        for (int i = 0; i < 20; i += 2) {
+            sum += ((packet[i] & 0xFF) << 8) | (packet[i + 1] & 0xFF);
+        }
+        while ((sum >> 16) != 0) sum = (sum & 0xFFFF) + (sum >> 16);
+        packet[10] = (byte) (~sum >> 8);
+        packet[11] = (byte) ~sum;
+        packet[20] = (byte) (srcPort >> 8);
+        packet[21] = (byte) srcPort;
+        packet[22] = (byte) (dstPort >> 8);
+        packet[23] = (byte) dstPort;
+        packet[24] = (byte) ((8 + dns.length) >> 8);
+        packet[25] = (byte) (8 + dns.length);
+        System.arraycopy(dns, 0, packet, 28, dns.length);
+        return packet;
+    }
+
+    static class Input extends FileInputStream {
+        final BlockingQueue<byte[]> packets = new LinkedBlockingQueue<>();
+
+        Input() {
+            super(FileDescriptor.in);
+        }
+
+        @Override
+        public int read(byte[] buf) throws IOException {
+            byte[] packet;
+            try {
+                packet = packets.take();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (packet == END) throw new IOException("TUN closed");
+            System.arraycopy(packet, 0, buf, 0, packet.length);
+            return packet.length;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    static class Output extends FileOutputStream {
+        final BlockingQueue<byte[]> packets = new LinkedBlockingQueue<>();
+
+        Output() {
+            super(FileDescriptor.out);
+        }
+
+        @Override
+        public void write(byte[] packet) {
+            packets.add(packet);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
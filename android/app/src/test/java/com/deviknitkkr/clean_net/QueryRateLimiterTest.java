@@ -0,0 +1,128 @@
+package com.deviknitkkr.clean_net;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.net.VpnService;
+
+import com.deviknitkkr.clean_net.net.SocketOwnerCache;
+import com.deviknitkkr.clean_net.net.SocketOwnerResolver;
+import com.deviknitkkr.clean_net.utils.DnsWire;
+
+import org.junit.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class QueryRateLimiterTest {
+    private static final long TIMEOUT_MS = 2_000;
+    private static final int FLOOD_UID = 10001;
+    private static final int OTHER_UID = 10002;
+    private static final int FLOOD_PORT = 41000;
+    private static final int FLOOD_PORTS = 8;
+    private static final int OTHER_PORT = 42000;
+
+    @Test
+    public void floodingSourceKeepsItsBucketWhileOthersComeAndGo() {
+        QueryRateLimiter limiter = new QueryRateLimiter(1, 5);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.tryAcquire("uid 1", 0));
+        }
+        // More one-off sources than are tracked; the busy one stays the most recently seen.
+        for (int i = 0; i < 2 * QueryRateLimiter.MAX_SOURCES; i++) {
+            assertTrue(limiter.tryAcquire("10.0.0.2:" + i, 0));
+            assertFalse(limiter.tryAcquire("uid 1", 0));
+        }
+    }
+
+    @Test
+    public void appRotatingPortsIsLimitedWhileAnotherAppGetsThrough() throws Exception {
+        SocketOwnerCache owners = new SocketOwnerCache(Collections.singletonList((local, remote) ->
+                local.getPort() >= FLOOD_PORT && local.getPort() < FLOOD_PORT + FLOOD_PORTS ? FLOOD_UID : OTHER_UID));
+        FakeTun tun = new FakeTun();
+        try (DatagramSocket upstream = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            upstream.setSoTimeout((int) TIMEOUT_MS);
+            DnsHandler handler = new DnsHandler.Builder()
+                    .dnsServerIp("127.0.0.1")
+                    .inputStream(tun.input)
+                    .outputStream(tun.output)
+                    .vpnService(new VpnService())
+                    .dnsQueryCallback((name, qtype) -> false)
+                    .rateLimiter(new QueryRateLimiter(1, 5))
+                    .socketOwners(owners)
+                    .build();
+            Thread handlerThread = new Thread(handler, "test-handler");
+            handlerThread.start();
+            try {
+                int dnsPort = upstream.getLocalPort();
+                // Each port's first query teaches the owner cache whose socket it is.
+                for (int i = 0; i < FLOOD_PORTS; i++) {
+                    tun.send(query("warm" + i + ".example.com"), FLOOD_PORT + i, dnsPort);
+                }
+                awaitOwners(owners);
+
+                int queries = 3 * FLOOD_PORTS;
+                for (int i = 0; i < queries; i++) {
+                    tun.send(query("flood" + i + ".example.com"), FLOOD_PORT + i % FLOOD_PORTS, dnsPort);
+                }
+                int refused = 0;
+                byte[] reply;
+                while ((reply = tun.nextReply(300)) != null) {
+                    if (rcode(reply) == Rcode.REFUSED) refused++;
+                }
+                // Keyed per port, each of the 8 ports would have had its own burst of 5.
+                assertTrue("refused " + refused + " of " + queries, refused >= queries - 5 - 1);
+
+                tun.send(query("other.example.com"), OTHER_PORT, dnsPort);
+                assertTrue(forwarded(upstream, "other.example.com"));
+                assertNull(tun.nextReply(300));
+            } finally {
+                tun.close();
+                handlerThread.join(TIMEOUT_MS);
+            }
+        }
+    }
+
+    private static void awaitOwners(SocketOwnerCache owners) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        for (int i = 0; i < FLOOD_PORTS; i++) {
+            while (owners.peek(FLOOD_PORT + i, false, System.currentTimeMillis()) == SocketOwnerResolver.UNKNOWN_UID) {
+                assertFalse("owner of port " + (FLOOD_PORT + i), System.currentTimeMillis() > deadline);
+                Thread.sleep(5);
+            }
+        }
+    }
+
+    /**
+     * @return Whether a query for {@code name} reached the upstream before the timeout.
+     */
+    private static boolean forwarded(DatagramSocket upstream, String name) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+            upstream.receive(packet);
+            Message message = new Message(Arrays.copyOf(packet.getData(), packet.getLength()));
+            if (message.getQuestion().getName().toString(true).equals(name)) return true;
+        }
+        return false;
+    }
+
+    private static byte[] query(String name) throws Exception {
+        return Message.newQuery(Record.newRecord(Name.fromString(name + "."), Type.A, DClass.IN)).toWire();
+    }
+
+    private static int rcode(byte[] packet) {
+        int offset = DnsWire.dnsOffset(packet, packet.length);
+        return packet[offset + 3] & 0x0F;
+    }
+}
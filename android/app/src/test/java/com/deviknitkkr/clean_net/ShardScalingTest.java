@@ -0,0 +1,218 @@
+package com.deviknitkkr.clean_net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.net.VpnService;
+
+import com.deviknitkkr.clean_net.trace.JfrTraceSink;
+import com.deviknitkkr.clean_net.trace.QueryTracer;
+
+import org.junit.Test;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiPredicate;
+
+/**
+ * Load harness for the pipelined mode: replays cached queries against a blocklist that is
+ * expensive to evaluate and compares the throughput of 1, 2 and 4 shards. Throughput scaling
+ * is only asserted on machines with at least 4 cores; the even spread of queries over the
+ * shard threads it relies on is checked everywhere.
+ * <p>
+ * Run with {@code -Dclean_net.traceRate=0.01} and {@code -XX:StartFlightRecording} to record
+ * the stages of that fraction of queries as JFR events through {@link JfrTraceSink}.
+ */
+public class ShardScalingTest {
+    private static final int NAMES = 4096;
+    private static final int QUERIES = 40_000;
+    private static final int BLOCKLIST_SIZE = 3_000;
+    // Packets handed out but not yet answered; below the shard queue size, so nothing is dropped.
+    private static final int WINDOW = 200;
+    private static final int SERVER_PORT = 5353;
+    private static final QueryTracer TRACER = new QueryTracer(new JfrTraceSink(),
+            Double.parseDouble(System.getProperty("clean_net.traceRate", "0")));
+
+    @Test
+    public void everyQueryIsAnsweredWithAnyShardCount() throws Exception {
+        for (int shards : new int[]{1, 3}) {
+            assertTrue(run(shards, 2_000) > 0);
+        }
+    }
+
+    /**
+     * Near-linear scaling needs every shard to get an even share of the work on its own
+     * thread. Unlike the throughput check this holds on any number of cores.
+     */
+    @Test
+    public void queriesAreSpreadEvenlyOverShardThreads() throws Exception {
+        int shards = 4;
+        int queries = 8_000;
+        Map<String, AtomicInteger> perThread = new ConcurrentHashMap<>();
+        run(shards, queries, (name, qtype) -> {
+            perThread.computeIfAbsent(Thread.currentThread().getName(), k -> new AtomicInteger()).incrementAndGet();
+            return false;
+        });
+        assertEquals(perThread.toString(), shards, perThread.size());
+        for (Map.Entry<String, AtomicInteger> entry : perThread.entrySet()) {
+            assertTrue(perThread.toString(), entry.getKey().startsWith("dns-shard-"));
+            int share = entry.getValue().get();
+            assertTrue(perThread.toString(), share > 0.75 * queries / shards && share < 1.25 * queries / shards);
+        }
+    }
+
+    @Test
+    public void throughputScalesWithShards() throws Exception {
+        assumeTrue(Runtime.getRuntime().availableProcessors() >= 4);
+        double one = measure(1);
+        double two = measure(2);
+        double four = measure(4);
+        String measured = String.format("1 shard %.0f, 2 shards %.0f, 4 shards %.0f queries/s", one, two, four);
+        assertTrue("2 shards below 1.6x: " + measured, two >= 1.6 * one);
+        assertTrue("4 shards below 2.8x: " + measured, four >= 2.8 * one);
+    }
+
+    private static double measure(int shards) throws Exception {
+        run(shards, QUERIES / 4); // warm-up
+        return run(shards, QUERIES);
+    }
+
+    /**
+     * @return Queries answered per second.
+     */
+    private static double run(int shards, int queries) throws Exception {
+        return run(shards, queries, heavyBlocklist());
+    }
+
+    private static double run(int shards, int queries, BiPredicate<String, Integer> blocklist) throws Exception {
+        List<byte[]> packets = new ArrayList<>(NAMES);
+        List<DnsHandler.CachedAnswer> answers = new ArrayList<>(NAMES);
+        long expiresAt = System.currentTimeMillis() + 3_600_000;
+        for (int i = 0; i < NAMES; i++) {
+            String name = "host" + i + ".example.com";
+            Message query = Message.newQuery(Record.newRecord(Name.fromString(name + "."), Type.A, DClass.IN));
+            Message response = query.clone();
+            response.getHeader().setFlag(Flags.QR);
+            response.addRecord(new ARecord(Name.fromString(name + "."), DClass.IN, 300,
+                    InetAddress.getByName("192.0.2.1")), Section.ANSWER);
+            packets.add(FakeTun.udpPacket(query.toWire(), 40000, SERVER_PORT));
+            answers.add(new DnsHandler.CachedAnswer(name + "/" + Type.A, response.toWire(), expiresAt));
+        }
+
+        ReplayInput input = new ReplayInput(packets, queries);
+        CountingOutput output = new CountingOutput(input);
+        DnsHandler handler = new DnsHandler.Builder()
+                .dnsServerIp("127.0.0.1")
+                .inputStream(input)
+                .outputStream(output)
+                .vpnService(new VpnService())
+                .shards(shards)
+                .dnsQueryCallback(blocklist)
+                .warmCache(answers)
+                .tracer(TRACER)
+                .build();
+
+        Thread reader = new Thread(handler, "harness-reader");
+        long start = System.nanoTime();
+        reader.start();
+        reader.join(120_000);
+        long elapsed = System.nanoTime() - start;
+        assertEquals(queries, output.answered);
+        return queries * 1e9 / elapsed;
+    }
+
+    /**
+     * A linear suffix scan, standing in for a blocklist whose predicate dominates query handling.
+     */
+    private static BiPredicate<String, Integer> heavyBlocklist() {
+        String[] suffixes = new String[BLOCKLIST_SIZE];
+        for (int i = 0; i < suffixes.length; i++) {
+            suffixes[i] = ".tracker" + i + ".net";
+        }
+        return (name, qtype) -> {
+            for (String suffix : suffixes) {
+                if (name.endsWith(suffix)) return true;
+            }
+            return false;
+        };
+    }
+
+    /**
+     * Stands in for the TUN device: hands out one query per read, at most {@link #WINDOW}
+     * unanswered, and fails once every query has been answered so the handler stops.
+     */
+    private static class ReplayInput extends FileInputStream {
+        private final List<byte[]> packets;
+        private final int total;
+        private int sent;
+        private int answered;
+
+        ReplayInput(List<byte[]> packets, int total) {
+            super(FileDescriptor.in);
+            this.packets = packets;
+            this.total = total;
+        }
+
+        @Override
+        public synchronized int read(byte[] buf) throws IOException {
+            try {
+                while (sent < total && sent - answered >= WINDOW) wait();
+                if (sent == total) {
+                    while (answered < total) wait();
+                    throw new IOException("replay done");
+                }
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            byte[] packet = packets.get(sent++ % packets.size());
+            System.arraycopy(packet, 0, buf, 0, packet.length);
+            return packet.length;
+        }
+
+        synchronized void onAnswer() {
+            answered++;
+            notifyAll();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class CountingOutput extends FileOutputStream {
+        private final ReplayInput input;
+        volatile int answered;
+
+        CountingOutput(ReplayInput input) {
+            super(FileDescriptor.out);
+            this.input = input;
+        }
+
+        @Override
+        public void write(byte[] packet) {
+            answered++;
+            input.onAnswer();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
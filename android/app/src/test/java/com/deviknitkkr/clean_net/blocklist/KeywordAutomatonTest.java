@@ -0,0 +1,53 @@
+package com.deviknitkkr.clean_net.blocklist;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class KeywordAutomatonTest {
+
+    @Test
+    public void matchesAnyKeywordAnywhere() {
+        KeywordAutomaton automaton = KeywordAutomaton.build(Arrays.asList("adserver", "track", "metrics"));
+        assertTrue(automaton.matches("adserver.example.com"));
+        assertTrue(automaton.matches("eu.tracking.example.com"));
+        assertTrue(automaton.matches("example.com.metrics"));
+        assertFalse(automaton.matches("example.com"));
+        assertFalse(automaton.matches("adserve.example.com"));
+    }
+
+    @Test
+    public void overlappingKeywordsFollowFailureLinks() {
+        // "she" fails over into "he", and "hers" shares its prefix with "he".
+        KeywordAutomaton automaton = KeywordAutomaton.build(Arrays.asList("he", "she", "hers", "abcd", "bc"));
+        assertTrue(automaton.matches("ushers.com"));
+        assertTrue(automaton.matches("abce.com"));
+        assertTrue(automaton.matches("xshx.he"));
+        assertFalse(automaton.matches("abd.com"));
+    }
+
+    @Test
+    public void caseAndSeparatorsAreHandled() {
+        KeywordAutomaton automaton = KeywordAutomaton.build(Arrays.asList("ad-srv", "pixel."));
+        assertTrue(automaton.matches("AD-SRV.example.com"));
+        assertTrue(automaton.matches("cdn.pixel.example.com"));
+        assertFalse(automaton.matches("pixels.example.com"));
+    }
+
+    @Test
+    public void patternRulesKeepKeywordsApartFromRegexes() {
+        PatternRules rules = new PatternRules();
+        assertTrue(rules.add("*adserver*"));
+        assertTrue(rules.add("/^ads?[0-9]*\\./"));
+        assertFalse(rules.add("ads.example.com"));
+        rules.compile();
+        assertTrue(rules.matches("my-adserver.net"));
+        assertTrue(rules.matches("ads7.example.com"));
+        assertFalse(rules.matches("example.com"));
+        assertTrue(PatternRules.isPatternRule("*adserver*"));
+        assertFalse(PatternRules.isPatternRule("*.example.com"));
+    }
+}
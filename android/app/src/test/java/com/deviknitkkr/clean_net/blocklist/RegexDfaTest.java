@@ -0,0 +1,80 @@
+package com.deviknitkkr.clean_net.blocklist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class RegexDfaTest {
+
+    @Test
+    public void unanchoredExpressionMatchesAnywhere() {
+        RegexDfa dfa = RegexDfa.compile(Collections.singletonList("ads?[0-9]*\\."), 64);
+        assertNotNull(dfa);
+        assertTrue(dfa.matches("ad.example.com"));
+        assertTrue(dfa.matches("cdn.ads42.example.com"));
+        assertFalse(dfa.matches("adx.example.com"));
+    }
+
+    @Test
+    public void anchorsAndCase() {
+        RegexDfa dfa = RegexDfa.compile(Arrays.asList("^track(er)?\\.", "\\.doubleclick\\.net$"), 256);
+        assertNotNull(dfa);
+        assertTrue(dfa.matches("tracker.example.com"));
+        assertTrue(dfa.matches("Track.Example.com"));
+        assertFalse(dfa.matches("notrack.example.com"));
+        assertTrue(dfa.matches("stats.g.doubleclick.net"));
+        assertFalse(dfa.matches("doubleclick.net.example.com"));
+    }
+
+    @Test
+    public void classesAndBoundedRepeats() {
+        RegexDfa dfa = RegexDfa.compile(Collections.singletonList("^[^.]{2,3}-[a-f\\d]{4}\\."), 1024);
+        assertNotNull(dfa);
+        assertTrue(dfa.matches("ab-12ef.example.com"));
+        assertTrue(dfa.matches("abc-0000.example.com"));
+        assertFalse(dfa.matches("a-12ef.example.com"));
+        assertFalse(dfa.matches("ab-12eg.example.com"));
+    }
+
+    @Test
+    public void unsupportedSyntaxIsRejected() {
+        assertFalse(RegexDfa.isSupported("(ads)\\1"));
+        assertFalse(RegexDfa.isSupported("ads(?=\\.)"));
+        assertFalse(RegexDfa.isSupported("[a-z"));
+        assertTrue(RegexDfa.isSupported("^(ad|track)s?\\.[a-z]+$"));
+    }
+
+    @Test
+    public void compileGivesUpAtTheStateLimit() {
+        // "an a nine characters before the end" needs 2^10 states.
+        assertNull(RegexDfa.compile(Collections.singletonList("a[a-z]{9}$"), 1023));
+        assertNotNull(RegexDfa.compile(Collections.singletonList("a[a-z]{9}$"), 1024));
+    }
+
+    @Test
+    public void patternRulesSplitExpressionsThatDoNotFitTogether() {
+        PatternRules rules = new PatternRules();
+        // Each fits the limit alone; any two together need far more states.
+        for (String letter : new String[]{"a", "b", "c", "d"}) {
+            assertTrue(rules.add("/" + letter + "[a-z]{9}$/"));
+        }
+        // Needs 2^14 states even alone.
+        assertTrue(rules.add("/x[a-z]{13}$/"));
+        rules.compile();
+
+        assertTrue(rules.getDfaCount() > 1);
+        assertEquals(1, rules.getRejectedCount());
+        assertTrue(rules.matches("qqbcdefghijk"));
+        assertTrue(rules.matches("dcdefghijk"));
+        // The dropped expression would match this one.
+        assertFalse(rules.matches("qqxcdefghijklmno"));
+        assertFalse(rules.matches("ab.cdefghijk"));
+    }
+}
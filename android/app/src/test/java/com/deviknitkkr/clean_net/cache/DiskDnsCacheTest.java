@@ -0,0 +1,74 @@
+package com.deviknitkkr.clean_net.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+public class DiskDnsCacheTest {
+    private static final long TIMEOUT_MS = 2_000;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("disk-cache", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void entriesSurviveReopening() throws Exception {
+        long now = System.currentTimeMillis();
+        byte[] data = {1, 2, 3};
+        DiskDnsCache cache = new DiskDnsCache(file, 64);
+        cache.put("example.com/1", data, now + 60_000);
+        cache.close();
+
+        DiskDnsCache reopened = new DiskDnsCache(file, 64);
+        DiskDnsCache.Entry entry = awaitEntry(reopened, "example.com/1", now);
+        assertNotNull(entry);
+        assertArrayEquals(data, entry.data);
+        reopened.close();
+    }
+
+    @Test
+    public void clearDropsStoredEntriesEvenBeforeTheFileIsMapped() throws Exception {
+        long now = System.currentTimeMillis();
+        DiskDnsCache cache = new DiskDnsCache(file, 64);
+        cache.put("example.com/1", new byte[]{1}, now + 60_000);
+        cache.put("example.com/28", new byte[]{2}, now + 60_000);
+        cache.close();
+
+        DiskDnsCache reopened = new DiskDnsCache(file, 64);
+        reopened.clear();
+        reopened.put("example.com/28", new byte[]{3}, now + 60_000);
+        reopened.close();
+
+        DiskDnsCache checked = new DiskDnsCache(file, 64);
+        assertArrayEquals(new byte[]{3}, awaitEntry(checked, "example.com/28", now).data);
+        assertNull(checked.get("example.com/1", now));
+        checked.close();
+    }
+
+    /**
+     * Lookups miss until the writer thread has mapped the file.
+     */
+    private static DiskDnsCache.Entry awaitEntry(DiskDnsCache cache, String key, long now) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        DiskDnsCache.Entry entry;
+        while ((entry = cache.get(key, now)) == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        return entry;
+    }
+}
@@ -0,0 +1,91 @@
+package com.deviknitkkr.clean_net.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class MemoryBudgetTest {
+    private static final long START = 1_000_000;
+
+    @Test
+    public void stepForTrimLevels() {
+        assertEquals(0, MemoryBudget.stepFor(0));
+        assertEquals(1, MemoryBudget.stepFor(MemoryBudget.TRIM_MEMORY_RUNNING_MODERATE));
+        assertEquals(2, MemoryBudget.stepFor(MemoryBudget.TRIM_MEMORY_RUNNING_LOW));
+        assertEquals(MemoryBudget.MAX_STEP, MemoryBudget.stepFor(MemoryBudget.TRIM_MEMORY_RUNNING_CRITICAL));
+        // Hiding the UI says nothing about memory for a service.
+        assertEquals(0, MemoryBudget.stepFor(MemoryBudget.TRIM_MEMORY_UI_HIDDEN));
+        assertEquals(1, MemoryBudget.stepFor(MemoryBudget.TRIM_MEMORY_BACKGROUND));
+        assertEquals(MemoryBudget.MAX_STEP, MemoryBudget.stepFor(MemoryBudget.TRIM_MEMORY_MODERATE));
+        assertEquals(MemoryBudget.MAX_STEP, MemoryBudget.stepFor(MemoryBudget.TRIM_MEMORY_COMPLETE));
+    }
+
+    @Test
+    public void pressureOnlyRaisesTheStep() {
+        MemoryBudget budget = new MemoryBudget(256);
+        budget.onTrimMemory(MemoryBudget.TRIM_MEMORY_RUNNING_LOW, START);
+        assertEquals(2, budget.getStep());
+        budget.onTrimMemory(MemoryBudget.TRIM_MEMORY_RUNNING_MODERATE, START + 1);
+        assertEquals(2, budget.getStep());
+        budget.onTrimMemory(MemoryBudget.TRIM_MEMORY_UI_HIDDEN, START + 2);
+        assertEquals(2, budget.getStep());
+        budget.onLowMemory(START + 3);
+        assertEquals(MemoryBudget.MAX_STEP, budget.getStep());
+    }
+
+    @Test
+    public void eachStepHalvesTheLimits() {
+        MemoryBudget.Limits full = MemoryBudget.limitsFor(256, 0);
+        MemoryBudget.Limits halved = MemoryBudget.limitsFor(256, 1);
+        assertEquals(full.cacheEntries / 2, halved.cacheEntries);
+        assertEquals(full.pendingQueries / 2, halved.pendingQueries);
+        assertEquals(full.statsEntries / 2, halved.statsEntries);
+        // Small heaps never go below the floors.
+        MemoryBudget.Limits smallest = MemoryBudget.limitsFor(8, MemoryBudget.MAX_STEP);
+        assertTrue(smallest.cacheEntries >= 32 && smallest.pendingQueries >= 32);
+    }
+
+    @Test
+    public void relaxUndoesOneStepPerQuietPeriod() {
+        MemoryBudget budget = new MemoryBudget(256);
+        List<MemoryBudget.Limits> changes = new ArrayList<>();
+        budget.addListener(changes::add);
+        budget.onLowMemory(START);
+        assertEquals(2, changes.size());
+
+        budget.relax(START + MemoryBudget.RELAX_AFTER_MS - 1);
+        assertEquals(MemoryBudget.MAX_STEP, budget.getStep());
+
+        long now = START + MemoryBudget.RELAX_AFTER_MS;
+        budget.relax(now);
+        assertEquals(MemoryBudget.MAX_STEP - 1, budget.getStep());
+        // The next step needs another quiet period.
+        budget.relax(now + 1);
+        assertEquals(MemoryBudget.MAX_STEP - 1, budget.getStep());
+
+        for (int i = 1; i <= MemoryBudget.MAX_STEP; i++) {
+            budget.relax(now + i * MemoryBudget.RELAX_AFTER_MS);
+        }
+        assertEquals(0, budget.getStep());
+        assertEquals(MemoryBudget.limitsFor(256, 0).cacheEntries, budget.getLimits().cacheEntries);
+        assertSame(budget.getLimits(), changes.get(changes.size() - 1));
+        assertEquals(2 + MemoryBudget.MAX_STEP, changes.size());
+    }
+
+    @Test
+    public void pressureRestartsTheQuietPeriod() {
+        MemoryBudget budget = new MemoryBudget(256);
+        budget.onTrimMemory(MemoryBudget.TRIM_MEMORY_RUNNING_LOW, START);
+        // Pressure at or below the current step changes nothing but still counts as pressure.
+        budget.onTrimMemory(MemoryBudget.TRIM_MEMORY_RUNNING_MODERATE, START + MemoryBudget.RELAX_AFTER_MS - 10);
+        budget.relax(START + MemoryBudget.RELAX_AFTER_MS);
+        assertEquals(2, budget.getStep());
+        budget.relax(START + 2 * MemoryBudget.RELAX_AFTER_MS);
+        assertEquals(1, budget.getStep());
+    }
+}
@@ -0,0 +1,49 @@
+package com.deviknitkkr.clean_net.net;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SocketOwnerCacheTest {
+    private static final InetSocketAddress LOCAL = new InetSocketAddress("10.0.0.2", 40001);
+    private static final InetSocketAddress REMOTE = new InetSocketAddress("10.0.0.3", 53);
+
+    @Test
+    public void ownerIsReusedWithinTheTtl() {
+        AtomicInteger owner = new AtomicInteger(10001);
+        SocketOwnerCache cache = new SocketOwnerCache(Collections.singletonList((local, remote) -> owner.get()));
+
+        assertEquals(10001, cache.uidFor(LOCAL, REMOTE, 1_000));
+        owner.set(10002);
+        assertEquals(10001, cache.uidFor(LOCAL, REMOTE, 1_000 + SocketOwnerCache.TTL_MS - 1));
+        assertEquals(1, cache.getLookups());
+    }
+
+    @Test
+    public void reusedPortIsResolvedAgainAfterTheTtl() {
+        AtomicInteger owner = new AtomicInteger(10001);
+        SocketOwnerCache cache = new SocketOwnerCache(Collections.singletonList((local, remote) -> owner.get()));
+
+        cache.uidFor(LOCAL, REMOTE, 1_000);
+        owner.set(10002);
+        assertEquals(10002, cache.uidFor(LOCAL, REMOTE, 1_000 + SocketOwnerCache.TTL_MS));
+        assertEquals(2, cache.getLookups());
+    }
+
+    @Test
+    public void peekNeverCallsAResolver() {
+        SocketOwnerCache cache = new SocketOwnerCache(Collections.singletonList((local, remote) -> 10001));
+
+        assertEquals(SocketOwnerResolver.UNKNOWN_UID, cache.peek(LOCAL.getPort(), false, 1_000));
+        assertEquals(0, cache.getLookups());
+        cache.uidFor(LOCAL, REMOTE, 1_000);
+        assertEquals(10001, cache.peek(LOCAL.getPort(), false, 1_500));
+        assertEquals(SocketOwnerResolver.UNKNOWN_UID, cache.peek(LOCAL.getPort(), true, 1_500));
+        assertEquals(SocketOwnerResolver.UNKNOWN_UID, cache.peek(LOCAL.getPort(), false, 1_000 + SocketOwnerCache.TTL_MS));
+        assertEquals(1, cache.getLookups());
+    }
+}
@@ -0,0 +1,97 @@
+package com.deviknitkkr.clean_net.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Replays network events through the switcher and checks what reaches the handler.
+ */
+public class UpstreamSwitcherTest {
+
+    private static class Update {
+        final UpstreamSwitcher.Selection selection;
+        final boolean flushCache;
+
+        Update(UpstreamSwitcher.Selection selection, boolean flushCache) {
+            this.selection = selection;
+            this.flushCache = flushCache;
+        }
+    }
+
+    private final List<Update> updates = new ArrayList<>();
+
+    @Test
+    public void newNetworkFlushesEvenWithUserResolver() throws Exception {
+        UpstreamSwitcher switcher = new UpstreamSwitcher("1.1.1.1", state("wifi", false, "192.168.1.1"), this::record);
+        switcher.onNetworkChanged(state("cell", false, "10.0.0.53"));
+
+        assertEquals(1, updates.size());
+        assertTrue(updates.get(0).flushCache);
+        assertEquals("1.1.1.1", updates.get(0).selection.primary);
+    }
+
+    @Test
+    public void newResolversOnSameNetworkKeepTheCache() throws Exception {
+        UpstreamSwitcher switcher = new UpstreamSwitcher(null, state("wifi", false, "192.168.1.1"), this::record);
+        switcher.onNetworkChanged(state("wifi", false, "192.168.1.2"));
+
+        assertEquals(1, updates.size());
+        assertFalse(updates.get(0).flushCache);
+        assertEquals("192.168.1.2", updates.get(0).selection.primary);
+    }
+
+    @Test
+    public void systemResolversOnNewNetworkFlush() throws Exception {
+        UpstreamSwitcher switcher = new UpstreamSwitcher(null, state("wifi", false, "192.168.1.1"), this::record);
+        switcher.onNetworkChanged(state("cell", false, "10.0.0.53", "10.0.0.54"));
+
+        assertEquals(1, updates.size());
+        assertTrue(updates.get(0).flushCache);
+        assertEquals(Arrays.asList("10.0.0.54"), updates.get(0).selection.secondaries);
+    }
+
+    @Test
+    public void reorderedResolversOrIpv6ChangeDoNotSwitch() throws Exception {
+        UpstreamSwitcher switcher = new UpstreamSwitcher(null,
+                state("wifi", false, "192.168.1.1", "192.168.1.2"), this::record);
+        switcher.onNetworkChanged(state("wifi", false, "192.168.1.1", "192.168.1.2"));
+        switcher.onNetworkChanged(state("wifi", true, "192.168.1.1", "192.168.1.2"));
+        switcher.onNetworkChanged(state("wifi", true, "192.168.1.1", "192.168.1.2", "192.168.1.1"));
+        switcher.onNetworkLost();
+
+        assertTrue(updates.isEmpty());
+    }
+
+    @Test
+    public void returningToTheFirstNetworkFlushesAgain() throws Exception {
+        UpstreamSwitcher switcher = new UpstreamSwitcher(null, state("wifi", false, "192.168.1.1"), this::record);
+        switcher.onNetworkLost();
+        switcher.onNetworkChanged(state("cell", false, "10.0.0.53"));
+        switcher.onNetworkChanged(state("wifi", false, "192.168.1.1"));
+
+        assertEquals(2, updates.size());
+        assertTrue(updates.get(1).flushCache);
+        assertEquals("192.168.1.1", switcher.getSelection().primary);
+    }
+
+    private void record(UpstreamSwitcher.Selection selection, NetworkState network, boolean flushCache) {
+        updates.add(new Update(selection, flushCache));
+    }
+
+    private static NetworkState state(String id, boolean ipv6, String... dnsServers) throws UnknownHostException {
+        List<InetAddress> servers = new ArrayList<>();
+        for (String server : dnsServers) {
+            servers.add(InetAddress.getByName(server));
+        }
+        return new NetworkState(id, servers, ipv6, null);
+    }
+}
@@ -0,0 +1,69 @@
+package com.deviknitkkr.clean_net.trace;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Records spans as JDK Flight Recorder events, for tracing the handler in JVM harnesses on
+ * Linux, e.g. with {@code -XX:StartFlightRecording}, where {@link AndroidTraceSink} has no
+ * {@code android.os.Trace} to write to. Events show up in JDK Mission Control per thread.
+ */
+public final class JfrTraceSink implements TraceSink {
+    private final ThreadLocal<Deque<StageEvent>> open = ThreadLocal.withInitial(ArrayDeque::new);
+    private final Map<String, AsyncStageEvent> openAsync = new ConcurrentHashMap<>();
+
+    @Name("clean_net.Stage")
+    @Label("DNS stage")
+    @Category("CleanNet")
+    static class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+    }
+
+    @Name("clean_net.AsyncStage")
+    @Label("DNS async stage")
+    @Category("CleanNet")
+    static class AsyncStageEvent extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("Transaction id")
+        int cookie;
+    }
+
+    @Override
+    public void beginSection(String name) {
+        StageEvent event = new StageEvent();
+        event.stage = name;
+        event.begin();
+        open.get().push(event);
+    }
+
+    @Override
+    public void endSection() {
+        StageEvent event = open.get().poll();
+        if (event != null) event.commit();
+    }
+
+    @Override
+    public void beginAsyncSection(String name, int cookie) {
+        AsyncStageEvent event = new AsyncStageEvent();
+        event.stage = name;
+        event.cookie = cookie;
+        event.begin();
+        openAsync.put(name + "/" + cookie, event);
+    }
+
+    @Override
+    public void endAsyncSection(String name, int cookie) {
+        AsyncStageEvent event = openAsync.remove(name + "/" + cookie);
+        if (event != null) event.commit();
+    }
+}
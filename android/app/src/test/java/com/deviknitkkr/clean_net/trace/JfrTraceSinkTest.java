@@ -0,0 +1,53 @@
+package com.deviknitkkr.clean_net.trace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class JfrTraceSinkTest {
+    @Test
+    public void spansAreRecordedAsEvents() throws Exception {
+        File dump = File.createTempFile("trace", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(JfrTraceSink.StageEvent.class);
+            recording.enable(JfrTraceSink.AsyncStageEvent.class);
+            recording.start();
+
+            QueryTracer tracer = new QueryTracer(new JfrTraceSink(), 1);
+            tracer.begin(true, QueryTracer.STAGE_PARSE);
+            tracer.begin(true, QueryTracer.STAGE_MATCH);
+            tracer.end(true);
+            tracer.end(true);
+            tracer.beginAsync(true, QueryTracer.STAGE_UPSTREAM, 0x1234);
+            Thread responder = new Thread(() -> tracer.endAsync(true, QueryTracer.STAGE_UPSTREAM, 0x1234));
+            responder.start();
+            responder.join();
+
+            recording.stop();
+            recording.dump(dump.toPath());
+        }
+
+        List<String> stages = new ArrayList<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(dump.toPath())) {
+            if (!event.getEventType().getName().startsWith("clean_net.")) continue;
+            stages.add(event.getString("stage"));
+            if (event.getEventType().getName().equals("clean_net.AsyncStage")) {
+                assertEquals(0x1234, event.getInt("cookie"));
+            }
+        }
+        dump.delete();
+        assertEquals(3, stages.size());
+        assertTrue(stages.toString(), stages.contains(QueryTracer.STAGE_PARSE));
+        assertTrue(stages.toString(), stages.contains(QueryTracer.STAGE_MATCH));
+        assertTrue(stages.toString(), stages.contains(QueryTracer.STAGE_UPSTREAM));
+    }
+}
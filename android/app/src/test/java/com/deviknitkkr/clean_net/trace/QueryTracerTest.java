@@ -0,0 +1,69 @@
+package com.deviknitkkr.clean_net.trace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class QueryTracerTest {
+    private static final int IDS = 1 << 16;
+
+    @Test
+    public void samplingDependsOnlyOnTheTransactionId() {
+        QueryTracer tracer = new QueryTracer(NoopTraceSink.INSTANCE, 0.25);
+        QueryTracer other = new QueryTracer(new CountingSink(), 0.25);
+        int sampled = 0;
+        for (int id = 0; id < IDS; id++) {
+            boolean decision = tracer.isSampled(id);
+            assertEquals("id " + id, decision, tracer.isSampled(id));
+            assertEquals("id " + id, decision, other.isSampled(id));
+            // Only the 16 bits of the DNS header count.
+            assertEquals("id " + id, decision, tracer.isSampled(id | 0x30000));
+            if (decision) sampled++;
+        }
+        assertTrue("sampled " + sampled, Math.abs(sampled - IDS / 4) < IDS / 100);
+    }
+
+    @Test
+    public void zeroRateNeverCallsTheSink() {
+        CountingSink sink = new CountingSink();
+        QueryTracer tracer = new QueryTracer(sink, 0);
+        assertFalse(tracer.isEnabled());
+        for (int id = 0; id < IDS; id++) {
+            boolean sampled = tracer.isSampled(id);
+            assertFalse(sampled);
+            tracer.begin(sampled, QueryTracer.STAGE_PARSE);
+            tracer.end(sampled);
+            tracer.beginAsync(sampled, QueryTracer.STAGE_UPSTREAM, id);
+            tracer.endAsync(sampled, QueryTracer.STAGE_UPSTREAM, id);
+        }
+        assertEquals(0, sink.calls.get());
+    }
+
+    private static class CountingSink implements TraceSink {
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public void beginSection(String name) {
+            calls.incrementAndGet();
+        }
+
+        @Override
+        public void endSection() {
+            calls.incrementAndGet();
+        }
+
+        @Override
+        public void beginAsyncSection(String name, int cookie) {
+            calls.incrementAndGet();
+        }
+
+        @Override
+        public void endAsyncSection(String name, int cookie) {
+            calls.incrementAndGet();
+        }
+    }
+}
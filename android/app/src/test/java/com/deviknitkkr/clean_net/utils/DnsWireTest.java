@@ -0,0 +1,39 @@
+package com.deviknitkkr.clean_net.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class DnsWireTest {
+
+    @Test
+    public void shortOrMalformedIpv4HeadersAreRejected() {
+        // IHL below the 20-byte minimum, claiming no header at all.
+        assertEquals(-1, DnsWire.dnsOffset(new byte[]{0x40}, 1));
+        assertEquals(-1, DnsWire.dnsOffset(new byte[]{0x41, 0, 0, 0}, 4));
+        // Valid IHL but shorter than the IP and UDP headers.
+        byte[] truncated = new byte[24];
+        truncated[0] = 0x45;
+        truncated[9] = 17;
+        assertEquals(-1, DnsWire.dnsOffset(truncated, truncated.length));
+        assertEquals(-1, DnsWire.dnsOffset(new byte[]{0x45, 0, 0}, 3));
+    }
+
+    @Test
+    public void shortIpv6PacketsAreRejected() {
+        byte[] packet = new byte[44];
+        packet[0] = 0x60;
+        packet[6] = 17;
+        assertEquals(-1, DnsWire.dnsOffset(packet, packet.length));
+    }
+
+    @Test
+    public void udpDnsOffsetFollowsTheHeaders() {
+        byte[] packet = new byte[20 + 8 + 12];
+        packet[0] = 0x45;
+        packet[9] = 17;
+        assertEquals(28, DnsWire.dnsOffset(packet, packet.length));
+        packet[9] = 6;
+        assertEquals(-1, DnsWire.dnsOffset(packet, packet.length));
+    }
+}
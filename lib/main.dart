@@ -1,3 +1,5 @@
+import 'dart:async';
+
 import 'package:flutter/material.dart';
 import 'package:flutter/services.dart';
 import 'package:provider/provider.dart';
@@ -27,6 +29,8 @@ void main() async {
 
   final vpnModel = VpnModel(prefs);
   await vpnModel.checkVpnState();
+  await vpnModel.loadSubscriptionInfo();
+  unawaited(vpnModel.migrateDownloadedDomains());
   runApp(
     ChangeNotifierProvider.value(
       value: vpnModel,
@@ -1,7 +1,10 @@
+import 'dart:async';
+import 'dart:convert';
+import 'dart:io';
+
 import 'package:flutter/foundation.dart';
 import 'package:flutter/services.dart';
 import 'package:flutter/widgets.dart';
-import 'package:http/http.dart' as http;
 import 'package:shared_preferences/shared_preferences.dart';
 
 bool _mapEquals(Map<String, int> a, Map<String, int> b) {
@@ -17,16 +20,31 @@ class VpnModel extends ChangeNotifier {
 
   bool _isVpnEnabled = false;
   List<String> _blockedDomains = [];
+  int _subscriptionCount = 0;
   String _dnsServer = '1.1.1.1';
+  String _blockMode = 'NXDOMAIN';
+  bool _answerHttpsLocally = false;
   Map<String, int> _blockedStats = {};
   List<String> _logs = [];
   bool _isRefreshing = false;
+  String? _blocklistPath;
 
   static const String _vpnChannelName = 'com.deviknitkkr.clean_net/vpn';
   final MethodChannel _vpnChannel = const MethodChannel(_vpnChannelName);
 
-  static const String blocklistUrl =
-      'https://raw.githubusercontent.com/deviknitkkr/CleanNet/main/blocklist.txt';
+  static const String _telemetryChannelName =
+      'com.deviknitkkr.clean_net/telemetry';
+  final EventChannel _telemetryChannel =
+      const EventChannel(_telemetryChannelName);
+  StreamSubscription<dynamic>? _telemetrySubscription;
+  final List<String> _statNames = [];
+  static const int _maxLogs = 128;
+
+  // Hosts files, AdBlock lists, dnsmasq files and plain domain lists can be
+  // mixed; the Android side detects the format and merges them.
+  static const List<String> blocklistUrls = [
+    'https://raw.githubusercontent.com/deviknitkkr/CleanNet/main/blocklist.txt',
+  ];
 
   static const List<Map<String, String>> dnsPresets = [
     {'name': 'System DNS', 'ip': ''},
@@ -38,6 +56,15 @@ class VpnModel extends ChangeNotifier {
     {'name': 'AdGuard DNS', 'ip': '94.140.14.14'},
   ];
 
+  static const List<Map<String, String>> blockModes = [
+    {'name': 'NXDOMAIN', 'mode': 'NXDOMAIN'},
+    {'name': 'No data', 'mode': 'NODATA'},
+    {'name': 'Null IP (0.0.0.0 / ::)', 'mode': 'NULL_IP'},
+    {'name': 'Refused', 'mode': 'REFUSED'},
+  ];
+
+  static const int blockTtl = 300;
+
   VpnModel(this._prefs) {
     _loadPreferences();
   }
@@ -45,7 +72,10 @@ class VpnModel extends ChangeNotifier {
   bool get isVpnEnabled => _isVpnEnabled;
   List<String> get blockedDomains => _blockedDomains;
   int get blockedDomainsCount => _blockedDomains.length;
+  int get subscriptionDomainsCount => _subscriptionCount;
   String get dnsServer => _dnsServer;
+  String get blockMode => _blockMode;
+  bool get answerHttpsLocally => _answerHttpsLocally;
   Map<String, int> get blockedStats => _blockedStats;
   int get totalBlocked =>
       _blockedStats.values.fold(0, (sum, v) => sum + v);
@@ -56,6 +86,8 @@ class VpnModel extends ChangeNotifier {
     _isVpnEnabled = _prefs.getBool('vpn_enabled') ?? false;
     _blockedDomains = _prefs.getStringList('blocked_domains') ?? [];
     _dnsServer = _prefs.getString('dns_server') ?? '';
+    _blockMode = _prefs.getString('block_mode') ?? 'NXDOMAIN';
+    _answerHttpsLocally = _prefs.getBool('answer_https_locally') ?? false;
   }
 
   Future<void> checkVpnState() async {
@@ -69,6 +101,17 @@ class VpnModel extends ChangeNotifier {
     } catch (_) {}
   }
 
+  Future<void> loadSubscriptionInfo() async {
+    try {
+      final count =
+          await _vpnChannel.invokeMethod<int>('getSubscriptionCount');
+      if (count != null && count != _subscriptionCount) {
+        _subscriptionCount = count;
+        notifyListeners();
+      }
+    } catch (_) {}
+  }
+
   Future<void> refreshStats() async {
     try {
       final stats = await _vpnChannel
@@ -92,6 +135,65 @@ class VpnModel extends ChangeNotifier {
     notifyListeners();
   }
 
+  /// Subscribes to stats and log deltas pushed by the service, at most one
+  /// update per [interval]. The service stops producing them once
+  /// [stopTelemetry] is called.
+  void startTelemetry({Duration interval = const Duration(seconds: 1)}) {
+    _telemetrySubscription?.cancel();
+    _telemetrySubscription = _telemetryChannel
+        .receiveBroadcastStream({'intervalMs': interval.inMilliseconds})
+        .listen((frame) => _applyTelemetry(frame as Uint8List),
+            onError: (_) {});
+  }
+
+  void stopTelemetry() {
+    _telemetrySubscription?.cancel();
+    _telemetrySubscription = null;
+  }
+
+  // See TelemetryStream.java for the frame layout.
+  void _applyTelemetry(Uint8List frame) {
+    final reader = _FrameReader(frame);
+    if (reader.byte() != 1) return;
+    final flags = reader.byte();
+    reader.varint(); // Sequence of the newest log line.
+
+    if ((flags & 1) != 0) {
+      _statNames.clear();
+      _blockedStats = {};
+    }
+    if ((flags & 2) != 0) {
+      _logs = [];
+    }
+
+    final newNames = reader.varint();
+    for (var i = 0; i < newNames; i++) {
+      _statNames.add(reader.string());
+    }
+    final counters = reader.varint();
+    for (var i = 0; i < counters; i++) {
+      final name = _statNames[reader.varint()];
+      _blockedStats[name] = reader.varint();
+    }
+    final lines = reader.varint();
+    if (lines > 0) {
+      final logs = [..._logs];
+      for (var i = 0; i < lines; i++) {
+        logs.add(reader.string());
+      }
+      _logs = logs.length > _maxLogs
+          ? logs.sublist(logs.length - _maxLogs)
+          : logs;
+    }
+    notifyListeners();
+  }
+
+  @override
+  void dispose() {
+    stopTelemetry();
+    super.dispose();
+  }
+
   Future<void> fetchLogs() async {
     try {
       final logs = await _vpnChannel.invokeMethod<List<Object?>>('getLogs');
@@ -116,9 +218,15 @@ class VpnModel extends ChangeNotifier {
         await _vpnChannel.invokeMethod('stopVpn');
         _isVpnEnabled = false;
       } else {
+        // Stamped at the tap, so writing the blocklist counts towards the start time.
+        final startRequestedAt = DateTime.now().millisecondsSinceEpoch;
         await _vpnChannel.invokeMethod('startVpn', {
+          'startRequestedAt': startRequestedAt,
           'dnsServer': _dnsServer,
-          'blockedDomains': _blockedDomains,
+          'blocklistPath': await _writeBlocklist(),
+          'blockMode': _blockMode,
+          'blockTtl': blockTtl,
+          'answerHttpsLocally': _answerHttpsLocally,
         });
       _isVpnEnabled = true;
       // Poll stats immediately after start
@@ -141,6 +249,24 @@ class VpnModel extends ChangeNotifier {
     notifyListeners();
   }
 
+  Future<void> updateBlockMode(String mode) async {
+    _blockMode = mode;
+    _prefs.setString('block_mode', _blockMode);
+    if (_isVpnEnabled) {
+      await _restartVpn();
+    }
+    notifyListeners();
+  }
+
+  Future<void> updateAnswerHttpsLocally(bool enabled) async {
+    _answerHttpsLocally = enabled;
+    _prefs.setBool('answer_https_locally', _answerHttpsLocally);
+    if (_isVpnEnabled) {
+      await _restartVpn();
+    }
+    notifyListeners();
+  }
+
   Future<void> updateBlockedDomains(List<String> domains) async {
     _blockedDomains = domains;
     _prefs.setStringList('blocked_domains', _blockedDomains);
@@ -175,23 +301,12 @@ class VpnModel extends ChangeNotifier {
     notifyListeners();
 
     try {
-      final response = await http.get(Uri.parse(blocklistUrl));
-      if (response.statusCode == 200) {
-        final domains = response.body
-            .split('\n')
-            .map((l) => l.trim())
-            .where((l) => l.isNotEmpty && !l.startsWith('#'))
-            .map((l) {
-          if (l.startsWith('||')) return l.substring(2);
-          if (l.startsWith('|')) return l.substring(1);
-          return l;
-        }).toList();
-
-        _blockedDomains = domains;
-        _prefs.setStringList('blocked_domains', _blockedDomains);
-        if (_isVpnEnabled) {
-          await _updateBlocklist();
-        }
+      // The subscription is downloaded, cached and compiled on the Android
+      // side; only the resulting rule count crosses the channel.
+      final result = await _vpnChannel.invokeMethod<Map<Object?, Object?>>(
+          'refreshBlocklist', {'urls': blocklistUrls});
+      if (result != null) {
+        _subscriptionCount = (result['count'] as num).toInt();
         return true;
       }
     } catch (e) {
@@ -203,24 +318,100 @@ class VpnModel extends ChangeNotifier {
     return false;
   }
 
+  /// Releases that downloaded the subscription in the UI kept it in
+  /// `blocked_domains`, next to the domains the user added. Runs once after
+  /// the upgrade and keeps only the domains the subscription doesn't hold;
+  /// if the subscription can't be fetched it is retried on the next launch.
+  Future<void> migrateDownloadedDomains() async {
+    if (_prefs.getBool('downloaded_domains_migrated') ?? false) return;
+    try {
+      if (_blockedDomains.isNotEmpty) {
+        if (_subscriptionCount == 0 && !await refreshBlocklist()) return;
+        final kept = await _vpnChannel.invokeMethod<List<Object?>>(
+            'filterSubscribedDomains', {
+          'blocklistPath': await _writeBlocklist(),
+        });
+        if (kept == null) return;
+        _blockedDomains = kept.map((e) => e.toString()).toList();
+        _prefs.setStringList('blocked_domains', _blockedDomains);
+        if (_isVpnEnabled) {
+          await _updateBlocklist();
+        }
+        notifyListeners();
+      }
+      _prefs.setBool('downloaded_domains_migrated', true);
+    } catch (e) {
+      debugPrint('Error migrating downloaded domains: $e');
+    }
+  }
+
   Future<void> _updateBlocklist() async {
     try {
       await _vpnChannel.invokeMethod('updateBlocklist', {
-        'blockedDomains': _blockedDomains,
+        'blocklistPath': await _writeBlocklist(),
       });
     } catch (_) {}
   }
 
+  /// Writes the custom domains to the file the service reads them from and
+  /// returns its path. Only the path crosses the platform channel and the
+  /// service Intent, which keeps large lists under the Binder size limit.
+  Future<String> _writeBlocklist() async {
+    final path = _blocklistPath ??=
+        (await _vpnChannel.invokeMethod<String>('getBlocklistPath'))!;
+    final tmp = File('$path.tmp');
+    final sink = tmp.openWrite();
+    for (final domain in _blockedDomains) {
+      sink.writeln(domain);
+    }
+    await sink.close();
+    // Replaced atomically, so a rebuild still reading the old file is unaffected.
+    await tmp.rename(path);
+    return path;
+  }
+
   Future<void> _restartVpn() async {
     try {
       await _vpnChannel.invokeMethod('stopVpn');
       await Future.delayed(const Duration(milliseconds: 800));
+      final startRequestedAt = DateTime.now().millisecondsSinceEpoch;
       await _vpnChannel.invokeMethod('startVpn', {
+        'startRequestedAt': startRequestedAt,
         'dnsServer': _dnsServer,
-        'blockedDomains': _blockedDomains,
+        'blocklistPath': await _writeBlocklist(),
+        'blockMode': _blockMode,
+        'blockTtl': blockTtl,
+        'answerHttpsLocally': _answerHttpsLocally,
       });
     } catch (e) {
       debugPrint('Error restarting VPN: $e');
     }
   }
 }
+
+class _FrameReader {
+  _FrameReader(this._bytes);
+
+  final Uint8List _bytes;
+  int _pos = 0;
+
+  int byte() => _bytes[_pos++];
+
+  int varint() {
+    var result = 0;
+    var shift = 0;
+    while (true) {
+      final b = _bytes[_pos++];
+      result |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return result;
+      shift += 7;
+    }
+  }
+
+  String string() {
+    final length = varint();
+    final value = utf8.decode(_bytes.sublist(_pos, _pos + length));
+    _pos += length;
+    return value;
+  }
+}
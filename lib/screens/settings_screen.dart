@@ -25,12 +25,29 @@ class SettingsScreen extends StatelessWidget {
                 onTap: () => _showDnsPicker(context, model),
               ),
 
+              ListTile(
+                leading: const Icon(Icons.block),
+                title: const Text('Block Response'),
+                subtitle: Text(_blockModeLabel(model.blockMode)),
+                trailing: const Icon(Icons.arrow_forward_ios, size: 16),
+                onTap: () => _showBlockModePicker(context, model),
+              ),
+              SwitchListTile(
+                secondary: const Icon(Icons.speed),
+                title: const Text('Skip HTTPS Records'),
+                subtitle: const Text(
+                    'Answer HTTPS/SVCB lookups locally; fewer queries, no ECH'),
+                value: model.answerHttpsLocally,
+                onChanged: (v) => model.updateAnswerHttpsLocally(v),
+              ),
+
               const Divider(),
               _sectionHeader('Blocklist'),
               ListTile(
                 leading: const Icon(Icons.download),
                 title: const Text('Refresh from GitHub'),
-                subtitle: Text('${model.blockedDomainsCount} domains loaded'),
+                subtitle:
+                    Text('${model.subscriptionDomainsCount} domains loaded'),
                 trailing: model.isRefreshing
                     ? const SizedBox(
                         width: 24,
@@ -78,6 +95,34 @@ class SettingsScreen extends StatelessWidget {
     return match != null ? match['name']! : 'Custom';
   }
 
+  String _blockModeLabel(String mode) {
+    final match = VpnModel.blockModes.cast<Map<String, String>?>().firstWhere(
+          (m) => m!['mode'] == mode,
+          orElse: () => null,
+        );
+    return match != null ? match['name']! : mode;
+  }
+
+  void _showBlockModePicker(BuildContext context, VpnModel model) {
+    showDialog(
+      context: context,
+      builder: (ctx) => SimpleDialog(
+        title: const Text('Block Response'),
+        children: VpnModel.blockModes
+            .map((m) => RadioListTile<String>(
+                  title: Text(m['name']!),
+                  value: m['mode']!,
+                  groupValue: model.blockMode,
+                  onChanged: (v) {
+                    model.updateBlockMode(v!);
+                    Navigator.pop(ctx);
+                  },
+                ))
+            .toList(),
+      ),
+    );
+  }
+
   Widget _sectionHeader(String title) {
     return Padding(
       padding: const EdgeInsets.fromLTRB(16, 16, 16, 4),
@@ -160,7 +205,7 @@ class SettingsScreen extends StatelessWidget {
       ScaffoldMessenger.of(context).showSnackBar(
         SnackBar(
           content: Text(ok
-              ? 'Blocklist updated: ${model.blockedDomainsCount} domains'
+              ? 'Blocklist updated: ${model.subscriptionDomainsCount} domains'
               : 'Failed to refresh blocklist'),
           backgroundColor: ok ? Colors.green : Colors.red,
         ),
@@ -1,4 +1,3 @@
-import 'dart:async';
 import 'package:flutter/material.dart';
 import 'package:provider/provider.dart';
 import '../models/vpn_model.dart';
@@ -11,23 +10,20 @@ class StatisticsScreen extends StatefulWidget {
 }
 
 class _StatisticsScreenState extends State<StatisticsScreen> {
-  Timer? _timer;
+  late final VpnModel _model;
   final _logScrollController = ScrollController();
   int _prevLogCount = 0;
 
   @override
   void initState() {
     super.initState();
-    _timer = Timer.periodic(const Duration(seconds: 8), (_) {
-      final model = context.read<VpnModel>();
-      model.refreshStats();
-      model.fetchLogs();
-    });
+    _model = context.read<VpnModel>();
+    _model.startTelemetry();
   }
 
   @override
   void dispose() {
-    _timer?.cancel();
+    _model.stopTelemetry();
     _logScrollController.dispose();
     super.dispose();
   }